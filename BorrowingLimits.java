@@ -0,0 +1,80 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The BorrowingLimits class tells how many books a student may have at once (issued and
+ * reserved together), depending on the student's stream. For example, faculty accounts
+ * can borrow dozens of books while students keep the old limit of two.
+ *
+ * The limits are read from a limits file (limits.txt in the library directory), one
+ * "stream=limit" per line; blank lines and lines starting with '#' are skipped.
+ * Streams are compared ignoring case. A "default=limit" line sets the limit of every
+ * stream not listed; without one it is DEFAULT_LIMIT. For example:
+ *   # Faculty borrow for a whole semester.
+ *   Faculty=40
+ *   M.Tech=5
+ *   default=2
+ *
+ * LoanService looks up a student's limit once and keeps it in the Student (see
+ * LoanService.limitOf()), so issuing a book does not fold the stream's case again.
+ */
+class BorrowingLimits {
+    // The limit of streams not listed, when the file has no "default" line.
+    static final int DEFAULT_LIMIT = 2;
+
+    private final Map<String, Integer> limits = new HashMap<>();
+    private int defaultLimit = DEFAULT_LIMIT;
+
+    /**
+     * Reads a limits file. A missing file gives every stream DEFAULT_LIMIT.
+     */
+    static BorrowingLimits load(File file) throws IOException {
+        BorrowingLimits result = new BorrowingLimits();
+        if (!file.exists())
+            return result;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                int eq = line.lastIndexOf('=');
+                if (eq <= 0)
+                    throw new IOException(file + " line " + lineNo + ": expected stream=limit");
+                try {
+                    result.set(line.substring(0, eq).trim(), Integer.parseInt(line.substring(eq + 1).trim()));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + " line " + lineNo + ": bad limit '" + line.substring(eq + 1) + "'");
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the limit of a stream, or of every stream not listed if 'stream' is "default".
+     */
+    void set(String stream, int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("A limit cannot be negative: " + limit);
+        if (stream.equalsIgnoreCase("default"))
+            defaultLimit = limit;
+        else
+            limits.put(stream.toLowerCase(Locale.ROOT), limit);
+    }
+
+    /**
+     * @return How many books a student of a stream may have issued and reserved at once.
+     */
+    int limitFor(String stream) {
+        Integer limit = stream == null ? null : limits.get(stream.toLowerCase(Locale.ROOT));
+        return limit != null ? limit : defaultLimit;
+    }
+}
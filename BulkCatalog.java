@@ -0,0 +1,358 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The BulkCatalog class reads and writes whole catalogs as CSV or TSV files, one book per
+ * line: name, total quantity, available quantity. Book names may contain spaces, and in
+ * CSV files they may be quoted ("Data, Models and Code") to contain commas.
+ *
+ * Reading streams the file in large segments. Each segment is cut into chunks at line
+ * ends and the chunks are parsed in parallel with fork/join, so a catalog with millions
+ * of rows is read in a few seconds. LoanService.importCatalog() then adds the books in
+ * one bulk pass (see there).
+ */
+class BulkCatalog {
+    private static final int SEGMENT_SIZE = 32 << 20; // Bytes read from the file at a time.
+    private static final int CHUNK_SIZE = 1 << 20; // Bytes parsed by one fork/join task.
+
+    /**
+     * The parsed rows of a catalog file, in file order.
+     */
+    static class Rows {
+        String[] titles = new String[1024];
+        int[] totals = new int[1024];
+        int[] available = new int[1024];
+        int count;
+        int skipped; // Header or malformed lines.
+
+        void add(String title, int total, int avail) {
+            if (count == titles.length) {
+                titles = Arrays.copyOf(titles, count * 2);
+                totals = Arrays.copyOf(totals, count * 2);
+                available = Arrays.copyOf(available, count * 2);
+            }
+            titles[count] = title;
+            totals[count] = total;
+            available[count] = avail;
+            count++;
+        }
+
+        void addAll(Rows other) {
+            int n = count + other.count;
+            if (n > titles.length) {
+                int size = Math.max(n, titles.length * 2);
+                titles = Arrays.copyOf(titles, size);
+                totals = Arrays.copyOf(totals, size);
+                available = Arrays.copyOf(available, size);
+            }
+            System.arraycopy(other.titles, 0, titles, count, other.count);
+            System.arraycopy(other.totals, 0, totals, count, other.count);
+            System.arraycopy(other.available, 0, available, count, other.count);
+            count = n;
+            skipped += other.skipped;
+        }
+
+        /**
+         * Drops the rows whose counts are negative or have more copies available than in
+         * total, and counts them as skipped.
+         */
+        void dropInvalid() {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (totals[i] < 0 || available[i] < 0 || available[i] > totals[i]) {
+                    skipped++;
+                    continue;
+                }
+                titles[kept] = titles[i];
+                totals[kept] = totals[i];
+                available[kept] = available[i];
+                kept++;
+            }
+            Arrays.fill(titles, kept, count, null);
+            count = kept;
+        }
+    }
+
+    /**
+     * Reads a catalog file. Lines whose last two columns are not valid quantities
+     * (such as a header line) are skipped and counted.
+     * @param file A .csv file (comma separated) or any other file (tab separated).
+     * @return The rows, in file order.
+     */
+    static Rows read(File file) throws IOException {
+        byte delimiter = isCsv(file) ? (byte) ',' : (byte) '\t';
+        Rows rows = new Rows();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            byte[] buf = new byte[SEGMENT_SIZE];
+            int carry = 0; // Bytes of an unfinished line kept from the previous segment.
+            boolean eof = false;
+            while (!eof) {
+                ByteBuffer bb = ByteBuffer.wrap(buf, carry, buf.length - carry);
+                while (bb.hasRemaining())
+                    if (channel.read(bb) < 0) {
+                        eof = true;
+                        break;
+                    }
+                int filled = bb.position();
+
+                // Parse up to the last line end; a file's last line may have none.
+                int end = filled;
+                if (!eof) {
+                    while (end > 0 && buf[end - 1] != '\n')
+                        end--;
+                    if (end == 0) {
+                        // One line longer than a segment: make room and read on.
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                        carry = filled;
+                        continue;
+                    }
+                }
+                rows.addAll(parseSegment(buf, end, delimiter));
+                carry = filled - end;
+                System.arraycopy(buf, end, buf, 0, carry);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Cuts a segment into chunks at line ends and parses them in parallel.
+     */
+    private static Rows parseSegment(byte[] buf, int length, byte delimiter) {
+        List<ChunkParser> chunks = new ArrayList<>();
+        int from = 0;
+        while (from < length) {
+            int to = Math.min(length, from + CHUNK_SIZE);
+            while (to < length && buf[to - 1] != '\n')
+                to++;
+            chunks.add(new ChunkParser(buf, from, to, delimiter));
+            from = to;
+        }
+        ForkJoinTask.invokeAll(chunks);
+
+        Rows rows = new Rows();
+        for (ChunkParser c : chunks)
+            rows.addAll(c.rows);
+        return rows;
+    }
+
+    /**
+     * Parses the lines in one chunk of bytes.
+     */
+    private static class ChunkParser extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final byte[] buf;
+        private final int from, to;
+        private final byte delimiter;
+        final Rows rows = new Rows();
+
+        ChunkParser(byte[] buf, int from, int to, byte delimiter) {
+            this.buf = buf;
+            this.from = from;
+            this.to = to;
+            this.delimiter = delimiter;
+        }
+
+        @Override
+        protected void compute() {
+            int start = from;
+            for (int i = from; i <= to; i++) {
+                if (i == to || buf[i] == '\n') {
+                    if (i > start)
+                        parseLine(start, i);
+                    start = i + 1;
+                }
+            }
+        }
+
+        /**
+         * The quantities are the last two columns, so everything before them is the
+         * name, even if it contains the delimiter.
+         */
+        private void parseLine(int start, int end) {
+            if (buf[end - 1] == '\r')
+                end--;
+            int d2 = lastIndexOf(delimiter, start, end);
+            int d1 = d2 < 0 ? -1 : lastIndexOf(delimiter, start, d2);
+            if (d1 < 0) {
+                rows.skipped++;
+                return;
+            }
+            int total = parseInt(d1 + 1, d2);
+            int avail = parseInt(d2 + 1, end);
+            String title = title(start, d1);
+            if (total < 0 || avail < 0 || avail > total || title.isEmpty()) {
+                rows.skipped++;
+                return;
+            }
+            rows.add(title, total, avail);
+        }
+
+        private int lastIndexOf(byte b, int start, int end) {
+            for (int i = end - 1; i >= start; i--)
+                if (buf[i] == b)
+                    return i;
+            return -1;
+        }
+
+        /**
+         * @return The number, or -1 if the bytes are not a non-negative number.
+         */
+        private int parseInt(int start, int end) {
+            while (start < end && buf[start] == ' ')
+                start++;
+            while (end > start && buf[end - 1] == ' ')
+                end--;
+            if (start == end || end - start > 9)
+                return -1;
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                int digit = buf[i] - '0';
+                if (digit < 0 || digit > 9)
+                    return -1;
+                n = n * 10 + digit;
+            }
+            return n;
+        }
+
+        private String title(int start, int end) {
+            String s = new String(buf, start, end - start, StandardCharsets.UTF_8).strip();
+            if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"')
+                s = s.substring(1, s.length() - 1).replace("\"\"", "\"");
+            return s;
+        }
+    }
+
+    /**
+     * Opens a catalog file for writing and writes its header line.
+     * @return The writer; pass it to writeRow() and close it when done.
+     */
+    static Writer create(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+                1 << 20);
+        char d = isCsv(file) ? ',' : '\t';
+        out.write("title" + d + "total" + d + "available\n");
+        return out;
+    }
+
+    /**
+     * Writes one book. In CSV files, names containing a comma or quote are quoted.
+     */
+    static void writeRow(Writer out, File file, String title, int total, int available) throws IOException {
+        char d;
+        if (isCsv(file)) {
+            d = ',';
+            if (title.indexOf(',') >= 0 || title.indexOf('"') >= 0)
+                title = '"' + title.replace("\"", "\"\"") + '"';
+        } else {
+            d = '\t';
+        }
+        out.write(title);
+        out.write(d);
+        out.write(Integer.toString(total));
+        out.write(d);
+        out.write(Integer.toString(available));
+        out.write('\n');
+    }
+
+    private static boolean isCsv(File file) {
+        return file.getName().toLowerCase().endsWith(".csv");
+    }
+
+    /**
+     * Sorts row numbers by book name (ignoring case) with a parallel merge sort.
+     * The sort is stable, so of two rows with the same name the earlier one comes first.
+     * Files written by an export are already in order; that is checked first in O(n).
+     * @return Row numbers 0..count-1 in name order.
+     */
+    static int[] sortedOrder(String[] titles, int count) {
+        int[] order = new int[count];
+        boolean sorted = true;
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            if (i > 0 && sorted && titles[i].compareToIgnoreCase(titles[i - 1]) < 0)
+                sorted = false;
+        }
+        if (sorted)
+            return order;
+        new MergeSort(titles, order, new int[count], 0, count).invoke();
+        return order;
+    }
+
+    private static class MergeSort extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int SEQUENTIAL = 1 << 13;
+        private final String[] titles;
+        private final int[] a, tmp;
+        private final int lo, hi;
+
+        MergeSort(String[] titles, int[] a, int[] tmp, int lo, int hi) {
+            this.titles = titles;
+            this.a = a;
+            this.tmp = tmp;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= SEQUENTIAL) {
+                // Insertion sort for tiny ranges, otherwise split and merge sequentially.
+                sequential(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new MergeSort(titles, a, tmp, lo, mid), new MergeSort(titles, a, tmp, mid, hi));
+            merge(lo, mid, hi);
+        }
+
+        private void sequential(int from, int to) {
+            if (to - from <= 16) {
+                for (int i = from + 1; i < to; i++) {
+                    int x = a[i];
+                    int j = i - 1;
+                    while (j >= from && compare(a[j], x) > 0) {
+                        a[j + 1] = a[j];
+                        j--;
+                    }
+                    a[j + 1] = x;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sequential(from, mid);
+            sequential(mid, to);
+            merge(from, mid, to);
+        }
+
+        private void merge(int from, int mid, int to) {
+            if (compare(a[mid - 1], a[mid]) <= 0)
+                return; // Already in order.
+            System.arraycopy(a, from, tmp, from, to - from);
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to)
+                a[k++] = compare(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+            while (i < mid)
+                a[k++] = tmp[i++];
+            while (j < to)
+                a[k++] = tmp[j++];
+        }
+
+        private int compare(int x, int y) {
+            return titles[x].compareToIgnoreCase(titles[y]);
+        }
+    }
+}
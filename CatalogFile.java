@@ -0,0 +1,362 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The CatalogFile class keeps the whole catalog in one binary file (catalog.bin) that is
+ * memory-mapped with FileChannel.map, instead of the three line-aligned text files
+ * x.txt, y.txt and z.txt, which were only ever appended to.
+ *
+ * The file is laid out in columns indexed by slot (see InventoryStore):
+ *   header        64 bytes: magic, version, capacity (slots in the columns), slot limit,
+ *                 heap end and the synced log sequence number (see sync())
+ *   counts        16 bytes per slot: total, available, and the sequence number of the last
+ *                 transaction log record applied to them (-1 if none)
+ *   titles        8 bytes per slot: offset and length of the name in the heap (length -1 = free)
+ *   heap          the book names, UTF-8 encoded, one after the other
+ * Every count change writes its slot's 16 bytes in place, so an issue or return reaches the
+ * file without rewriting anything. A slot's counts and their log sequence number share one
+ * aligned 16-byte cell, so they always reach the disk together, and recovery replays a log
+ * record into a slot only if the slot has not seen it yet.
+ *
+ * Starting up maps the file and reads the columns directly: no lines to split and no numbers
+ * to parse. The names of deleted books stay in the heap until the columns have to grow,
+ * when the file is rewritten without them.
+ *
+ * Count changes may come from many threads at once, each for the slot it holds the title lock
+ * of; they touch different bytes of the mapping. Adding and removing books must be done while
+ * no count changes are running (LoanService holds every catalog write lock).
+ */
+class CatalogFile implements AutoCloseable {
+    static final int MAGIC = 0x4C494243; // "LIBC"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int COUNTS_WIDTH = 16;
+    private static final int TITLE_WIDTH = 8;
+    private static final int FREE = -1;
+
+    // Header field positions.
+    private static final int CAPACITY_AT = 8;
+    private static final int SLOT_LIMIT_AT = 12;
+    private static final int HEAP_END_AT = 16;
+    private static final int SYNCED_AT = 24;
+
+    private final File file;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int slotLimit;
+    private int heapEnd; // Bytes of the heap in use.
+    private int heapGarbage; // Bytes of the heap held by names of deleted books.
+
+    private CatalogFile(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Maps an existing catalog file.
+     * @return The catalog file, or null if it does not exist or is not a complete catalog
+     *         file (recovery then falls back to the snapshot and creates a new one).
+     */
+    static CatalogFile open(File file) throws IOException {
+        if (!file.exists())
+            return null;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        CatalogFile c = new CatalogFile(file, channel);
+        if (!c.mapExisting()) {
+            channel.close();
+            return null;
+        }
+        return c;
+    }
+
+    /**
+     * Writes a new catalog file holding every book of an inventory store, replacing any old
+     * one, and maps it. Every slot is marked as having seen the log records below 'logSeq'.
+     * @param logSeq The number of log records already applied to the inventory.
+     */
+    static CatalogFile create(File file, InventoryStore inventory, long logSeq) throws IOException {
+        int limit = inventory.slotLimit();
+        String[] titles = new String[limit];
+        int[] totals = new int[limit];
+        int[] available = new int[limit];
+        long[] seqs = new long[limit];
+        for (int slot = 0; slot < limit; slot++) {
+            titles[slot] = inventory.title(slot);
+            if (titles[slot] != null) {
+                totals[slot] = inventory.total(slot);
+                available[slot] = inventory.available(slot);
+                seqs[slot] = logSeq - 1;
+            } else {
+                seqs[slot] = -1;
+            }
+        }
+        write(file, Math.max(1024, limit * 2), limit, titles, totals, available, seqs, logSeq);
+        return open(file);
+    }
+
+    /**
+     * @return The log sequence number of the last sync(): every record below it is reflected
+     *         in the file on disk.
+     */
+    long syncedSeq() {
+        return map.getLong(SYNCED_AT);
+    }
+
+    /**
+     * @return The sequence number of the last log record applied to a slot's counts,
+     *         or -1 if none (or if the slot is beyond the file).
+     */
+    long seq(int slot) {
+        return slot < slotLimit ? map.getLong(countsAt(slot) + 8) : -1;
+    }
+
+    /**
+     * Puts every book of the file into an empty inventory store, in its own slot.
+     */
+    void restore(InventoryStore inventory) {
+        inventory.ensureCapacity(slotLimit);
+        byte[] buf = new byte[256];
+        int heapStart = heapStart(capacity);
+        for (int slot = 0; slot < slotLimit; slot++) {
+            int length = map.getInt(titleAt(slot) + 4);
+            if (length == FREE)
+                continue;
+            if (length > buf.length)
+                buf = new byte[length * 2];
+            map.get(heapStart + map.getInt(titleAt(slot)), buf, 0, length);
+            String title = new String(buf, 0, length, StandardCharsets.UTF_8);
+            inventory.restore(slot, title, map.getInt(countsAt(slot)), map.getInt(countsAt(slot) + 4));
+        }
+        inventory.rebuildFreeSlots();
+    }
+
+    /**
+     * Writes a book's quantities in place.
+     * @param seq The sequence number of the log record that changed them.
+     */
+    void setCounts(int slot, int total, int available, long seq) {
+        int at = countsAt(slot);
+        map.putInt(at, total);
+        map.putInt(at + 4, available);
+        map.putLong(at + 8, seq);
+    }
+
+    /**
+     * Adds a book in a slot that is free in the file. The columns or the heap grow if needed.
+     * @param seq The sequence number of the last log record written, so older records (of a
+     *            deleted book that had the same slot) are never applied to this book.
+     */
+    void add(int slot, String title, int total, int available, long seq) throws IOException {
+        byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+        if (slot >= capacity)
+            rewrite(Math.max(capacity * 2, slot + 1));
+        long needed = heapStart(capacity) + (long) heapEnd + bytes.length;
+        if (needed > map.capacity()) {
+            if (heapGarbage > heapEnd / 2)
+                rewrite(capacity); // Drop the names of deleted books instead of growing.
+            needed = heapStart(capacity) + (long) heapEnd + bytes.length;
+            if (needed > Integer.MAX_VALUE)
+                throw new IOException("Catalog too large for one mapped file.");
+            if (needed > map.capacity())
+                remap(Math.min(Integer.MAX_VALUE, Math.max(needed, (long) map.capacity() * 2)));
+        }
+
+        map.put(heapStart(capacity) + heapEnd, bytes);
+        // Set the counts first and the name last, so a crash never leaves a named book
+        // with the counts of the slot's previous book.
+        setCounts(slot, total, available, seq);
+        map.putInt(titleAt(slot), heapEnd);
+        map.putInt(titleAt(slot) + 4, bytes.length);
+        heapEnd += bytes.length;
+        map.putInt(HEAP_END_AT, heapEnd);
+        if (slot >= slotLimit) {
+            // Slots between the old limit and this one stay free.
+            for (int s = slotLimit; s < slot; s++)
+                map.putInt(titleAt(s) + 4, FREE);
+            slotLimit = slot + 1;
+            map.putInt(SLOT_LIMIT_AT, slotLimit);
+        }
+    }
+
+    /**
+     * Frees a book's slot. Its name stays in the heap until the next rewrite.
+     */
+    void remove(int slot) {
+        if (slot >= slotLimit)
+            return;
+        int length = map.getInt(titleAt(slot) + 4);
+        if (length == FREE)
+            return;
+        map.putInt(titleAt(slot) + 4, FREE);
+        setCounts(slot, 0, 0, -1);
+        heapGarbage += length;
+    }
+
+    /**
+     * Forces the file to disk and then records that it reflects every log record below
+     * 'logSeq'. Called when a snapshot is saved, with no count changes running.
+     */
+    void sync(long logSeq) {
+        map.force();
+        map.putLong(SYNCED_AT, logSeq);
+        map.force(0, HEADER_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    // ---- Layout ----
+
+    private static int countsAt(int slot) {
+        return HEADER_SIZE + slot * COUNTS_WIDTH;
+    }
+
+    private int titleAt(int slot) {
+        return HEADER_SIZE + capacity * COUNTS_WIDTH + slot * TITLE_WIDTH;
+    }
+
+    private static int heapStart(int capacity) {
+        return HEADER_SIZE + capacity * (COUNTS_WIDTH + TITLE_WIDTH);
+    }
+
+    /**
+     * Maps the file and checks its header and title column.
+     * @return false if the file is not a complete catalog file.
+     */
+    private boolean mapExisting() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+            return false;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+            return false;
+        capacity = map.getInt(CAPACITY_AT);
+        slotLimit = map.getInt(SLOT_LIMIT_AT);
+        heapEnd = map.getInt(HEAP_END_AT);
+        if (capacity < 0 || slotLimit < 0 || slotLimit > capacity || heapEnd < 0
+                || heapStart(capacity) + (long) heapEnd > size)
+            return false;
+        // A name past the heap end was being added when the program stopped.
+        int live = 0;
+        for (int slot = 0; slot < slotLimit; slot++) {
+            int offset = map.getInt(titleAt(slot));
+            int length = map.getInt(titleAt(slot) + 4);
+            if (length == FREE)
+                continue;
+            if (length < 0 || offset < 0 || (long) offset + length > heapEnd)
+                return false;
+            live += length;
+        }
+        heapGarbage = heapEnd - live;
+        return true;
+    }
+
+    private void remap(long size) throws IOException {
+        map.force();
+        // Mapping past the end of the file makes the file longer.
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Writes the file again with room for 'newCapacity' slots, leaving out the names of
+     * deleted books, and maps the new file.
+     */
+    private void rewrite(int newCapacity) throws IOException {
+        String[] titles = new String[slotLimit];
+        int[] totals = new int[slotLimit];
+        int[] available = new int[slotLimit];
+        long[] seqs = new long[slotLimit];
+        byte[] buf = new byte[256];
+        for (int slot = 0; slot < slotLimit; slot++) {
+            int length = map.getInt(titleAt(slot) + 4);
+            if (length != FREE) {
+                if (length > buf.length)
+                    buf = new byte[length * 2];
+                map.get(heapStart(capacity) + map.getInt(titleAt(slot)), buf, 0, length);
+                titles[slot] = new String(buf, 0, length, StandardCharsets.UTF_8);
+            }
+            totals[slot] = map.getInt(countsAt(slot));
+            available[slot] = map.getInt(countsAt(slot) + 4);
+            seqs[slot] = map.getLong(countsAt(slot) + 8);
+        }
+        write(file, newCapacity, slotLimit, titles, totals, available, seqs, syncedSeq());
+
+        // The file was replaced by a rename, so map the new one through a new channel.
+        channel.close();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!mapExisting())
+            throw new IOException("Could not map the rewritten catalog file " + file);
+    }
+
+    /**
+     * Writes a whole catalog file to a temporary file, forces it to disk and renames it
+     * into place, so a crash never leaves a half-written catalog behind.
+     */
+    private static void write(File file, int capacity, int slotLimit, String[] titles, int[] totals,
+                              int[] available, long[] seqs, long syncedSeq) throws IOException {
+        byte[][] names = new byte[slotLimit][];
+        long heap = 0;
+        for (int slot = 0; slot < slotLimit; slot++) {
+            if (titles[slot] != null) {
+                names[slot] = titles[slot].getBytes(StandardCharsets.UTF_8);
+                heap += names[slot].length;
+            }
+        }
+        if (heapStart(capacity) + heap * 2 > Integer.MAX_VALUE)
+            throw new IOException("Catalog too large for one mapped file.");
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(capacity);
+            out.writeInt(slotLimit);
+            out.writeInt((int) heap);
+            out.writeInt(0);
+            out.writeLong(syncedSeq);
+            out.write(new byte[HEADER_SIZE - 32]);
+
+            for (int slot = 0; slot < capacity; slot++) {
+                boolean used = slot < slotLimit && titles[slot] != null;
+                out.writeInt(used ? totals[slot] : 0);
+                out.writeInt(used ? available[slot] : 0);
+                out.writeLong(slot < slotLimit ? seqs[slot] : -1);
+            }
+            int offset = 0;
+            for (int slot = 0; slot < capacity; slot++) {
+                if (slot < slotLimit && names[slot] != null) {
+                    out.writeInt(offset);
+                    out.writeInt(names[slot].length);
+                    offset += names[slot].length;
+                } else {
+                    out.writeInt(0);
+                    out.writeInt(FREE);
+                }
+            }
+            for (int slot = 0; slot < slotLimit; slot++)
+                if (names[slot] != null)
+                    out.write(names[slot]);
+            // Leave as much room again for names added later.
+            byte[] zeros = new byte[1 << 16];
+            for (long room = Math.max(heap, zeros.length); room > 0; room -= zeros.length)
+                out.write(zeros, 0, (int) Math.min(room, zeros.length));
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The CatalogLoader class builds the in-memory library from the three book data files
+ * (x.txt for names, y.txt for total quantities, z.txt for available quantities).
+ * It runs once at startup and reads the three files side by side in a single streaming pass,
+ * filling the book tree and the inventory store together.
+ * Each name's TitleKey is made once and shared by the tree and the store.
+ * When the names arrive in alphabetical order the tree is built in one O(n) step.
+ */
+class CatalogLoader {
+    // Read buffer per file. Large buffers keep the number of read() system calls low.
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Loads the catalog from the given files. Missing files are treated as empty.
+     * Line 'i' of each file describes the same book, so the files are read in lockstep.
+     * A blank name line is skipped together with its two quantity lines.
+     * @param names File with one book name per line.
+     * @param totals File with one total quantity per line.
+     * @param available File with one available quantity per line.
+     * @param tree The book tree to fill.
+     * @param inventory The inventory store to fill.
+     */
+    static void load(File names, File totals, File available, library_management tree,
+                              InventoryStore inventory) throws IOException {
+        TitleKey[] keys = new TitleKey[1024];
+        int count = 0;
+        boolean sorted = true; // Catalog exports are usually already in alphabetical order.
+
+        BufferedReader reader = open(names);
+        BufferedReader reader2 = open(totals);
+        BufferedReader reader3 = open(available);
+        try {
+            if (reader != null) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        nextNumber(reader2);
+                        nextNumber(reader3);
+                        continue;
+                    }
+                    int i = count;
+                    if (i == keys.length)
+                        keys = Arrays.copyOf(keys, i * 2);
+                    TitleKey key = TitleKey.of(line);
+                    if (i > 0 && sorted && key.compareTo(keys[i - 1]) <= 0)
+                        sorted = false;
+
+                    keys[i] = key;
+                    inventory.add(key, nextNumber(reader2), nextNumber(reader3));
+                    count++;
+                }
+            }
+        } finally {
+            close(reader);
+            close(reader2);
+            close(reader3);
+        }
+
+        // Sorted input into an empty tree can be built directly in balanced shape.
+        if (sorted && tree.root == null) {
+            tree.buildFromSorted(keys, count);
+        } else {
+            for (int i = 0; i < count; i++)
+                tree.insert(keys[i]);
+        }
+    }
+
+    /**
+     * Opens a file for reading, or returns null if it does not exist yet.
+     */
+    private static BufferedReader open(File f) throws IOException {
+        return f.exists() ? new BufferedReader(new FileReader(f), BUFFER_SIZE) : null;
+    }
+
+    /**
+     * Reads the next quantity from a quantity file. A missing file or line counts as 0.
+     */
+    private static int nextNumber(BufferedReader r) throws IOException {
+        if (r == null)
+            return 0;
+        String number = r.readLine();
+        return number == null ? 0 : Integer.parseInt(number.trim());
+    }
+
+    private static void close(BufferedReader r) {
+        try { if (r != null) r.close(); } catch (Exception ex) {}
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * The CatalogWriter class keeps the catalog files (x.txt, y.txt, z.txt) in step with the
+ * books in memory, without writing to them on every change ("write-behind").
+ *
+ * Adding, deleting or updating a book only records the change in a queue, where several
+ * changes to the same book are merged into one. A background "writer" thread takes the
+ * queue as one batch when batchSize books are waiting or flushMillis after the first
+ * change, whichever comes first, and writes the whole batch at once:
+ *   - a batch that only adds new books is appended to the three files;
+ *   - any other batch (a deleted or updated book) rewrites the three files in one
+ *     sequential pass from a catalog snapshot, to temporary files that are then renamed.
+ * The first batch after startup is always a rewrite, so files left behind by older
+ * versions (which never wrote deletes and updates) are brought back in line.
+ *
+ * When 'capacity' books are waiting, callers wait for the writer to catch up
+ * (backpressure), so a long stocking session cannot fill memory.
+ *
+ * The catalog files are only read on the very first run (see LoanService.open()); the
+ * snapshots, catalog.bin and the transaction log are what the library is restored from.
+ */
+class CatalogWriter implements AutoCloseable {
+    // Kinds of change waiting in the queue.
+    private static final byte ADDED = 1;
+    private static final byte UPDATED = 2;
+    private static final byte DELETED = 3;
+
+    // Write buffer per file.
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The latest change to one book while it waits in the queue.
+     */
+    private static final class Change {
+        byte kind;
+        String title;
+        int total, available;
+    }
+
+    private final File names, totals, available;
+    private final Supplier<PersistentCatalog.Snapshot> catalog; // Source of full rewrites.
+    private final int batchSize; // Write early once this many books are waiting.
+    private final long flushMillis; // Longest time a change may wait.
+    private final int capacity; // Most books waiting before callers are held up.
+
+    // Changes waiting to be written, one per book (names compared ignoring case, like the tree).
+    private TreeMap<String, Change> pending = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private boolean rewriteRequested; // The next batch rewrites the files (see rewrite()).
+    private boolean flushRequested; // A caller of flush() is waiting.
+    private long batchesTaken; // Batches taken off the queue by the writer thread.
+    private long batchesWritten; // Batches written to the files.
+    private boolean closed;
+    private IOException failure; // Set if the writer could not write; reported to callers.
+
+    // Used by the writer thread only.
+    private boolean rewritten; // At least one full rewrite was done.
+    private PersistentCatalog.Snapshot lastRewrite; // Source of the last rewrite.
+
+    private final Thread writer;
+
+    /**
+     * Starts a writer for the catalog files in a directory.
+     * @param dir The directory holding x.txt, y.txt and z.txt.
+     * @param catalog Gives the current catalog, for rewrites.
+     * @param batchSize How many books to collect before writing early.
+     * @param flushMillis How long a change may wait before it is written.
+     * @param capacity How many books may wait before callers wait for the writer.
+     */
+    CatalogWriter(File dir, Supplier<PersistentCatalog.Snapshot> catalog, int batchSize, long flushMillis,
+                  int capacity) {
+        this.names = new File(dir, "x.txt");
+        this.totals = new File(dir, "y.txt");
+        this.available = new File(dir, "z.txt");
+        this.catalog = catalog;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushMillis = flushMillis;
+        this.capacity = Math.max(this.batchSize, capacity);
+
+        writer = new Thread(this::writeLoop, "catalog-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a new book.
+     */
+    void added(String title, int total, int available) throws IOException {
+        record(ADDED, title, total, available);
+    }
+
+    /**
+     * Queues new quantities of a book.
+     */
+    void updated(String title, int total, int available) throws IOException {
+        record(UPDATED, title, total, available);
+    }
+
+    /**
+     * Queues the deletion of a book.
+     */
+    void deleted(String title) throws IOException {
+        record(DELETED, title, 0, 0);
+    }
+
+    /**
+     * Asks for the files to be written again from the catalog, for changes too many to
+     * queue one by one (such as an import).
+     */
+    synchronized void rewrite() throws IOException {
+        checkOpen();
+        rewriteRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Merges a change into the queue, waiting first if the queue is full.
+     */
+    private synchronized void record(byte kind, String title, int total, int available) throws IOException {
+        checkOpen();
+        Change c = pending.get(title);
+        if (c == null && pending.size() >= capacity) {
+            // Wait for the writer to take a batch (backpressure). The writer is woken only
+            // once: waking it on every pass also wakes the other waiting callers, and they
+            // can then keep waking each other without the writer ever getting the lock.
+            notifyAll();
+            do {
+                waitUninterruptibly();
+                checkOpen();
+            } while ((c = pending.get(title)) == null && pending.size() >= capacity);
+        }
+        if (c == null) {
+            c = new Change();
+            c.kind = kind;
+            pending.put(title, c);
+        } else if (kind == DELETED || c.kind == DELETED) {
+            // Deleted then added again is an update. A deletion always stays a deletion,
+            // even of a book added in the same batch, since a rewrite may already have
+            // written that book (see writeBatch()).
+            c.kind = kind == DELETED ? DELETED : UPDATED;
+        }
+        // Otherwise added then updated stays an addition, with the newest quantities.
+        c.title = title;
+        c.total = total;
+        c.available = available;
+        // Wake the writer for the first change (to start its flushMillis wait), and again
+        // early when a full batch is waiting.
+        if (pending.size() == 1 || pending.size() >= batchSize)
+            notifyAll();
+    }
+
+    /**
+     * Blocks until every change queued so far is in the files.
+     */
+    synchronized void flush() throws IOException {
+        long target = pending.isEmpty() && !rewriteRequested ? batchesTaken : batchesTaken + 1;
+        flushRequested = true;
+        notifyAll();
+        while (batchesWritten < target) {
+            if (failure != null)
+                throw failure;
+            waitUninterruptibly();
+        }
+    }
+
+    /**
+     * Writes all waiting changes and stops the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of the writer thread. Once a change is waiting, it holds off until a batch is
+     * full, a caller asks for a flush or flushMillis has passed, then writes the batch.
+     */
+    private void writeLoop() {
+        while (true) {
+            TreeMap<String, Change> batch;
+            boolean rewriteAll;
+            synchronized (this) {
+                // Sleep until there is something to write.
+                while (!closed && pending.isEmpty() && !rewriteRequested)
+                    waitUninterruptibly();
+                if (pending.isEmpty() && !rewriteRequested)
+                    return; // Closed and fully written.
+
+                // Give more changes until the deadline to join this batch.
+                long deadline = System.currentTimeMillis() + flushMillis;
+                while (!closed && !flushRequested && pending.size() < batchSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        break;
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                // Take the batch so callers can keep queueing while it is written.
+                batch = pending;
+                pending = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                rewriteAll = rewriteRequested;
+                rewriteRequested = false;
+                flushRequested = false;
+                batchesTaken++;
+                notifyAll();
+            }
+
+            try {
+                writeBatch(batch, rewriteAll);
+                synchronized (this) {
+                    batchesWritten++;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes one batch: appends it if it only adds books that are not in the files yet,
+     * otherwise rewrites the files from the current catalog.
+     *
+     * The catalog snapshot is taken after the batch left the queue, so it may already hold
+     * a book whose addition is queued later. Such a book is in the files already, so later
+     * batches check the last rewrite's snapshot before appending; no book is written twice.
+     */
+    private void writeBatch(Map<String, Change> batch, boolean rewriteAll) throws IOException {
+        boolean append = rewritten && !rewriteAll;
+        for (Change c : batch.values()) {
+            if (!append)
+                break;
+            append = c.kind == ADDED && (lastRewrite == null || lastRewrite.get(c.title) == null);
+        }
+
+        if (append) {
+            try (Writer x = new BufferedWriter(new FileWriter(names, true), BUFFER_SIZE);
+                 Writer y = new BufferedWriter(new FileWriter(totals, true), BUFFER_SIZE);
+                 Writer z = new BufferedWriter(new FileWriter(available, true), BUFFER_SIZE)) {
+                for (Change c : batch.values())
+                    writeBook(x, y, z, c.title, c.total, c.available);
+            }
+            return;
+        }
+
+        PersistentCatalog.Snapshot books = catalog.get();
+        File x = temp(names), y = temp(totals), z = temp(available);
+        try (Writer xw = new BufferedWriter(new FileWriter(x), BUFFER_SIZE);
+             Writer yw = new BufferedWriter(new FileWriter(y), BUFFER_SIZE);
+             Writer zw = new BufferedWriter(new FileWriter(z), BUFFER_SIZE)) {
+            for (PersistentCatalog.Book book : books)
+                writeBook(xw, yw, zw, book.title, book.total, book.available);
+        }
+        Files.move(x.toPath(), names.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(y.toPath(), totals.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(z.toPath(), available.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        rewritten = true;
+        lastRewrite = books;
+    }
+
+    private static void writeBook(Writer x, Writer y, Writer z, String title, int total, int available)
+            throws IOException {
+        x.write(title);
+        x.write('\n');
+        y.write(Integer.toString(total));
+        y.write('\n');
+        z.write(Integer.toString(available));
+        z.write('\n');
+    }
+
+    private static File temp(File f) {
+        return new File(f.getPath() + ".tmp");
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("Catalog writer is closed.");
+    }
+
+    private void waitUninterruptibly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
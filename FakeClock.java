@@ -0,0 +1,33 @@
+/**
+ * The FakeClock class is a clock that only moves when told to, for tests and demonstrations:
+ * issue a book, advance the clock past its due date and check the late fee, without waiting.
+ */
+class FakeClock implements LibraryClock {
+    private volatile long now;
+
+    /**
+     * @param startMillis The time the clock shows at first, in epoch milliseconds.
+     */
+    FakeClock(long startMillis) {
+        this.now = startMillis;
+    }
+
+    @Override
+    public long millis() {
+        return now;
+    }
+
+    /**
+     * Sets the time.
+     */
+    void set(long epochMillis) {
+        now = epochMillis;
+    }
+
+    /**
+     * Moves the time forward (or back, for a negative amount).
+     */
+    synchronized void advance(long millis) {
+        now += millis;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * The Hashing class holds the few helpers the library's open-addressing hash tables
+ * (LongIntMap, InventoryStore, TitleCache, StudentRegistry, TitleIndex) share. Those tables
+ * use linear probing in a power-of-two array, so a key's bucket is its hash masked with
+ * the table size, and the hash has to mix every key bit into the low bits.
+ */
+class Hashing {
+    private Hashing() {
+    }
+
+    /**
+     * Mixes the bits of an int hash (or an int key, such as a student ID), so that similar
+     * keys do not land in neighbouring buckets.
+     */
+    static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Mixes the bits of a long key down to an int hash.
+     */
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return The smallest power of two (at least 16) that is at least twice 'n',
+     *         so a table for 'n' keys starts at most half full.
+     */
+    static int tableSizeFor(int n) {
+        int size = 16;
+        while (size < n * 2)
+            size <<= 1;
+        return size;
+    }
+
+    /**
+     * Tells whether the entry in bucket j may move back into an empty bucket 'gap' before it.
+     * Deleting from a linear-probing table moves such entries back one by one, instead of
+     * leaving a "deleted" marker that every later lookup would have to step over.
+     * @param home The bucket the entry's hash points to.
+     * @param mask The table size minus one.
+     * @return true if 'home' is not between the gap and j, so the entry is still found after the move.
+     */
+    static boolean fillsGap(int home, int gap, int j, int mask) {
+        return ((j - home) & mask) >= ((j - gap) & mask);
+    }
+}
@@ -0,0 +1,341 @@
+import java.util.Arrays;
+
+/**
+ * The InventoryStore class keeps the quantity data for every book.
+ * Each book gets a "slot" number. The total and available quantities of slot 's'
+ * are stored in plain int arrays (total[s] and available[s]), so reading or changing
+ * a quantity never creates objects. Book names are found through an open-addressing
+ * hash table that stores slot numbers, which avoids the boxed Integer values and
+ * per-entry objects of a HashMap. All arrays grow as books are added, and slots of
+ * deleted books are reused by the next book that is added.
+ *
+ * Books are stored by their TitleKey, so names are matched ignoring case, exactly like
+ * in the book tree: a name the tree knows always has a slot here too.
+ */
+class InventoryStore {
+    // Markers used in the hash table instead of a slot number.
+    private static final int EMPTY = -1; // Bucket was never used; a lookup can stop here.
+    private static final int DELETED = -2; // Bucket used to hold a book that was deleted.
+
+    // Returned by slotOf() when a book is not in the store.
+    static final int NOT_FOUND = -1;
+
+    private int[] table; // Hash table of slot numbers. Its length is always a power of two.
+    private int tableUsed; // Buckets that are not EMPTY (live books plus DELETED markers).
+
+    // Per-slot data. These arrays are indexed by slot number.
+    private TitleKey[] keys; // Book name, or null if the slot is free.
+    private int[] hashes; // Spread hash of the book name, checked before calling equals().
+    private int[] total; // Total quantity of the book.
+    private int[] available; // Currently available quantity of the book.
+
+    private int slotLimit; // Slots 0..slotLimit-1 have been handed out at least once.
+    private int[] freeSlots = new int[16]; // Stack of slots released by remove().
+    private int freeCount;
+    private int size; // Number of books currently stored.
+
+    /**
+     * Creates an empty store.
+     * @param expectedBooks How many books the store should hold before it has to grow.
+     */
+    InventoryStore(int expectedBooks) {
+        int slots = Math.max(16, expectedBooks);
+        keys = new TitleKey[slots];
+        hashes = new int[slots];
+        total = new int[slots];
+        available = new int[slots];
+        table = newTable(Hashing.tableSizeFor(slots));
+    }
+
+    /**
+     * Finds the slot of a book.
+     * @param title The name of the book (ignoring case).
+     * @return The slot number, or NOT_FOUND if the book is not stored.
+     */
+    int slotOf(String title) {
+        // Compares the typed name with the stored keys, so no key is made for it.
+        int h = Hashing.spread(TitleKey.hashOf(title));
+        int mask = table.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int slot = table[i];
+            if (slot == EMPTY)
+                return NOT_FOUND;
+            if (slot >= 0 && hashes[slot] == h && keys[slot].matches(title))
+                return slot;
+        }
+    }
+
+    /**
+     * Like slotOf(String), with a key that was already made.
+     */
+    int slotOf(TitleKey key) {
+        int h = hash(key);
+        int mask = table.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int slot = table[i];
+            if (slot == EMPTY)
+                return NOT_FOUND;
+            if (slot >= 0 && hashes[slot] == h && key.equals(keys[slot]))
+                return slot;
+        }
+    }
+
+    /**
+     * Adds a new book. The caller should check with slotOf() first; adding a book
+     * that is already stored just returns its existing slot.
+     * @param title The name of the book.
+     * @param totalQuantity The total number of copies.
+     * @param availableQuantity The number of copies currently on the shelf.
+     * @return The slot assigned to the book.
+     */
+    int add(String title, int totalQuantity, int availableQuantity) {
+        return add(TitleKey.of(title), totalQuantity, availableQuantity);
+    }
+
+    /**
+     * Like add(String, int, int), with a key that was already made. The store keeps that
+     * key, so the book tree and the catalog can share it.
+     */
+    int add(TitleKey key, int totalQuantity, int availableQuantity) {
+        int existing = slotOf(key);
+        if (existing != NOT_FOUND)
+            return existing;
+
+        // Reuse a slot freed by a deleted book if there is one.
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slotLimit == keys.length)
+                growSlots();
+            slot = slotLimit++;
+        }
+
+        // Keep the table at most half full so probe sequences stay short.
+        if ((tableUsed + 1) * 2 > table.length)
+            rehash(Hashing.tableSizeFor((size + 1) * 2));
+
+        int h = hash(key);
+        keys[slot] = key;
+        hashes[slot] = h;
+        total[slot] = totalQuantity;
+        available[slot] = availableQuantity;
+        size++;
+        insertIntoTable(slot, h);
+        return slot;
+    }
+
+    /**
+     * Makes room for more books in one step, before a bulk import, so the arrays
+     * and the hash table are not grown and rehashed again and again.
+     * @param books The number of books the store should be able to hold.
+     */
+    void ensureCapacity(int books) {
+        if (books > keys.length) {
+            keys = Arrays.copyOf(keys, books);
+            hashes = Arrays.copyOf(hashes, books);
+            total = Arrays.copyOf(total, books);
+            available = Arrays.copyOf(available, books);
+        }
+        if (books * 2 > table.length)
+            rehash(Hashing.tableSizeFor(books));
+    }
+
+    /**
+     * Puts a book back into a specific slot. This is used when restoring a snapshot,
+     * where slot numbers must match the ones recorded in the transaction log.
+     * Call rebuildFreeSlots() once all books have been restored.
+     * @param slot The slot the book had when the snapshot was taken.
+     * @param title The name of the book.
+     * @param totalQuantity The total number of copies.
+     * @param availableQuantity The number of copies currently on the shelf.
+     */
+    void restore(int slot, String title, int totalQuantity, int availableQuantity) {
+        while (slot >= keys.length)
+            growSlots();
+        if ((tableUsed + 1) * 2 > table.length)
+            rehash(Hashing.tableSizeFor((size + 1) * 2));
+
+        TitleKey key = TitleKey.of(title);
+        int h = hash(key);
+        keys[slot] = key;
+        hashes[slot] = h;
+        total[slot] = totalQuantity;
+        available[slot] = availableQuantity;
+        slotLimit = Math.max(slotLimit, slot + 1);
+        size++;
+        insertIntoTable(slot, h);
+    }
+
+    /**
+     * Marks every unused slot below slotLimit() as free, after a restore.
+     */
+    void rebuildFreeSlots() {
+        freeCount = 0;
+        for (int slot = slotLimit - 1; slot >= 0; slot--) {
+            if (keys[slot] == null) {
+                if (freeCount == freeSlots.length)
+                    freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+                freeSlots[freeCount++] = slot;
+            }
+        }
+    }
+
+    /**
+     * Removes a book and frees its slot for reuse.
+     * @param title The name of the book.
+     * @return true if the book was stored, false otherwise.
+     */
+    boolean remove(String title) {
+        return remove(TitleKey.of(title));
+    }
+
+    /**
+     * Like remove(String), with a key that was already made.
+     */
+    boolean remove(TitleKey key) {
+        int h = hash(key);
+        int mask = table.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int slot = table[i];
+            if (slot == EMPTY)
+                return false;
+            if (slot >= 0 && hashes[slot] == h && key.equals(keys[slot])) {
+                // Leave a DELETED marker so lookups for other books keep probing past it.
+                table[i] = DELETED;
+                keys[slot] = null;
+                total[slot] = 0;
+                available[slot] = 0;
+                if (freeCount == freeSlots.length)
+                    freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+                freeSlots[freeCount++] = slot;
+                size--;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes one copy of a book off the shelf, if one is available.
+     * @param slot The book's slot.
+     * @return true if a copy was taken, false if none were available.
+     */
+    boolean tryIssue(int slot) {
+        if (available[slot] <= 0)
+            return false;
+        available[slot]--;
+        return true;
+    }
+
+    /**
+     * Puts one copy of a book back on the shelf.
+     * @param slot The book's slot.
+     */
+    void release(int slot) {
+        available[slot]++;
+    }
+
+    /**
+     * Adds more copies of a book. The new copies count towards both quantities.
+     * @param slot The book's slot.
+     * @param quantity The number of copies to add.
+     */
+    void addCopies(int slot, int quantity) {
+        total[slot] += quantity;
+        available[slot] += quantity;
+    }
+
+    /**
+     * Sets both quantities of a book, for example back to the ones saved in a snapshot.
+     * @param slot The book's slot.
+     */
+    void setQuantities(int slot, int totalQuantity, int availableQuantity) {
+        total[slot] = totalQuantity;
+        available[slot] = availableQuantity;
+    }
+
+    /**
+     * @return The name of the book in a slot as it was typed, or null if the slot is free.
+     */
+    String title(int slot) {
+        TitleKey key = keys[slot];
+        return key == null ? null : key.title;
+    }
+
+    /**
+     * @return The key of the book in a slot, or null if the slot is free.
+     */
+    TitleKey key(int slot) {
+        return keys[slot];
+    }
+
+    int total(int slot) {
+        return total[slot];
+    }
+
+    int available(int slot) {
+        return available[slot];
+    }
+
+    /**
+     * @return The number of books currently stored.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Every stored book has a slot below this value. To visit all books, loop over
+     * 0..slotLimit()-1 and skip slots whose title() is null.
+     * @return One more than the highest slot ever handed out.
+     */
+    int slotLimit() {
+        return slotLimit;
+    }
+
+    /**
+     * Spreads the bits of TitleKey.hashCode() (which the key caches) so that
+     * similar names do not cluster in neighbouring buckets.
+     */
+    private static int hash(TitleKey key) {
+        return Hashing.spread(key.hashCode());
+    }
+
+
+    private void insertIntoTable(int slot, int h) {
+        int mask = table.length - 1;
+        int i = h & mask;
+        while (table[i] >= 0)
+            i = (i + 1) & mask;
+        if (table[i] == EMPTY)
+            tableUsed++;
+        table[i] = slot;
+    }
+
+    /**
+     * Rebuilds the hash table with the given size, dropping all DELETED markers.
+     */
+    private void rehash(int newSize) {
+        table = newTable(Math.max(newSize, table.length));
+        tableUsed = 0;
+        for (int slot = 0; slot < slotLimit; slot++) {
+            if (keys[slot] != null)
+                insertIntoTable(slot, hashes[slot]);
+        }
+    }
+
+    private void growSlots() {
+        int n = keys.length * 2;
+        keys = Arrays.copyOf(keys, n);
+        hashes = Arrays.copyOf(hashes, n);
+        total = Arrays.copyOf(total, n);
+        available = Arrays.copyOf(available, n);
+    }
+
+    private static int[] newTable(int size) {
+        int[] t = new int[size];
+        Arrays.fill(t, EMPTY);
+        return t;
+    }
+
+}
@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The LatencyHistogram class counts how long operations take, so percentiles
+ * (median, p99, ...) can be reported without keeping every measurement.
+ *
+ * Buckets are log-linear, like HdrHistogram: every power of two is split into 32 equal
+ * buckets, so a reported value is never more than about 3% away from the real one, from
+ * nanoseconds up to hours, in a fixed array of 1888 counters. Recording is one array
+ * increment and never allocates, so it can be called from every thread at once.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records one measurement.
+     * @param nanos The duration in nanoseconds (negative values count as 0).
+     */
+    void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(v));
+        total.increment();
+        sum.add(v);
+    }
+
+    /**
+     * @return The number of measurements recorded.
+     */
+    long count() {
+        return total.sum();
+    }
+
+    /**
+     * @return The average measurement in nanoseconds, or 0 if nothing was recorded.
+     */
+    double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Finds the value below which a fraction of the measurements fall.
+     * @param fraction For example 0.99 for the 99th percentile.
+     * @return The upper edge of the bucket holding that measurement, in nanoseconds.
+     */
+    long percentile(double fraction) {
+        long n = total.sum();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return highestValueIn(i);
+        }
+        return highestValueIn(BUCKETS - 1);
+    }
+
+    /**
+     * @return The upper edge of the highest bucket used, in nanoseconds.
+     */
+    long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--)
+            if (counts.get(i) != 0)
+                return highestValueIn(i);
+        return 0;
+    }
+
+    /**
+     * Values below 32 get a bucket each. Above that, the position of the highest set bit
+     * picks the power of two, and the next five bits pick one of its 32 buckets.
+     */
+    private static int bucketOf(long v) {
+        if (v < SUB_BUCKETS)
+            return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        if (exp == 63)
+            return Long.MAX_VALUE; // The top power of two does not fit a long's upper edge.
+        long sub = bucket % SUB_BUCKETS;
+        long low = (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+        return low + (1L << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The LibraryBatch class runs a file of commands (see LibraryCommands) without the menus,
+ * for scripted work such as stocking the library at the start of a term or replaying a
+ * day's circulation. Every command runs against the same LoanService as the menus and
+ * the server, so the same checks apply, and the replies are written one per line.
+ *
+ * The work is pipelined: a reader thread reads the commands in batches of BATCH_SIZE
+ * lines while the main thread runs the previous batch, and all replies go through one
+ * large output buffer. No prompt is printed and nothing is flushed per command, so a
+ * million commands take about as long as the library needs to run them.
+ *
+ * Usage: java LibraryBatch [commands file|-] [replies file]
+ *        java library_management --batch [commands file|-] [replies file]
+ * The commands are read from standard input if no file (or "-") is given, and the
+ * replies are written to standard output if no replies file is given.
+ */
+class LibraryBatch {
+    private static final int BATCH_SIZE = 1024; // Commands handed from the reader to the runner at a time.
+    private static final int QUEUED_BATCHES = 16; // Batches read ahead before the reader waits.
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * One batch of command lines; the last one (end of input) has 'last' set.
+     */
+    private static final class Batch {
+        final String[] lines;
+        final int count;
+        final boolean last;
+        final IOException failure; // Set if reading the commands failed.
+
+        Batch(String[] lines, int count, boolean last, IOException failure) {
+            this.lines = lines;
+            this.count = count;
+            this.last = last;
+            this.failure = failure;
+        }
+    }
+
+    private final LibraryCommands commands;
+
+    LibraryBatch(LoanService loans) {
+        this.commands = new LibraryCommands(loans);
+    }
+
+    /**
+     * Runs every command from a reader until the end of input or a QUIT command.
+     * @param in The commands, one per line.
+     * @param out Where the replies are written. It is flushed at the end, not per command.
+     * @return The number of commands run (blank lines included).
+     */
+    long run(BufferedReader in, Writer out) throws IOException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        Thread reader = new Thread(() -> read(in, queue), "batch-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long executed = 0;
+        try {
+            while (true) {
+                Batch batch = take(queue);
+                int done = commands.executeBatch(batch.lines, batch.count, out);
+                executed += done;
+                if (done < batch.count)
+                    break; // QUIT
+                if (batch.failure != null)
+                    throw batch.failure;
+                if (batch.last)
+                    break;
+            }
+        } finally {
+            reader.interrupt(); // Stops a reader still reading ahead after QUIT.
+            out.flush();
+        }
+        return executed;
+    }
+
+    /**
+     * Body of the reader thread: reads the commands into batches and queues them.
+     */
+    private static void read(BufferedReader in, BlockingQueue<Batch> queue) {
+        try {
+            String[] lines = new String[BATCH_SIZE];
+            int count = 0;
+            IOException failure = null;
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lines[count++] = line;
+                    if (count == BATCH_SIZE) {
+                        queue.put(new Batch(lines, count, false, null));
+                        lines = new String[BATCH_SIZE];
+                        count = 0;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            queue.put(new Batch(Arrays.copyOf(lines, count), count, true, failure));
+        } catch (InterruptedException e) {
+            // The runner stopped early (QUIT); nothing more is needed.
+        }
+    }
+
+    private static Batch take(BlockingQueue<Batch> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for commands.");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        InputStream commandsIn = args.length > 0 && !args[0].equals("-") ? new FileInputStream(args[0]) : System.in;
+        OutputStream repliesOut = args.length > 1 ? new FileOutputStream(args[1]) : System.out;
+
+        LoanService loans = LoanService.open(new File("."), library_management.loadStudents(),
+                library_management.LOAN_PERIOD_MILLIS);
+        long start = System.nanoTime();
+        long executed;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(commandsIn, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(repliesOut, StandardCharsets.UTF_8), BUFFER_SIZE);
+            executed = new LibraryBatch(loans).run(in, out);
+            if (repliesOut != System.out)
+                out.close();
+        } finally {
+            // Saves a snapshot and flushes the transaction log.
+            loans.close();
+        }
+        // The summary goes to standard error, so the replies on standard output stay one per command.
+        System.err.println(executed + " commands run in " + (System.nanoTime() - start) / 1000000 + " ms.");
+    }
+}
@@ -0,0 +1,33 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * The LibraryClock interface is where the library gets the current time from.
+ * Times are plain epoch milliseconds (a long), so issuing and returning books never
+ * creates Date or Calendar objects. The clock is passed to the LoanService, so a test
+ * can use a FakeClock and move time forward by hand instead of waiting.
+ *
+ * Times are only turned into text when a person has to read them, with format().
+ */
+interface LibraryClock {
+    // The real time of this computer.
+    LibraryClock SYSTEM = System::currentTimeMillis;
+
+    // The date format used everywhere a time is shown. DateTimeFormatter is immutable,
+    // so unlike SimpleDateFormat one instance can be shared by all threads.
+    DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * @return The current time in epoch milliseconds.
+     */
+    long millis();
+
+    /**
+     * Formats a time for display, for example "05/03/2024 14:30:00".
+     * @param epochMillis The time in epoch milliseconds.
+     */
+    static String format(long epochMillis) {
+        return FORMAT.format(Instant.ofEpochMilli(epochMillis));
+    }
+}
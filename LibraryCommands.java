@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The LibraryCommands class runs the librarian and user menu operations from one-line
+ * text commands, so they can be used over a network connection instead of the console.
+ * Every command goes through the LoanService, so the same checks apply
+ * (containsNode, slot lookup, availability, the borrowing limit).
+ *
+ * Commands (the book name is always last, so it may contain spaces):
+ *   ADD <quantity> <book>       Add a new book.
+ *   DELETE <book>               Delete a book.
+ *   UPDATE <quantity> <book>    Add more copies of a book.
+ *   LIST                        One line per book in alphabetical order: name, total, available
+ *                               (tab separated), then END.
+ *   ISSUE <studentId> <book>    Issue a book to a student.
+ *   RETURN <studentId> <book>   Return a book. If students are waiting for it, the copy is
+ *                               issued to the first of them at once.
+ *   RESERVE <studentId> <book>  Join the queue for a book that has no copy left.
+ *   CANCEL <studentId> <book>   Leave the queue for a book.
+ *   WAITING <book>              The number of students waiting for a book.
+ *   BOOK <book>                 The total and available copies of a book: "OK total available".
+ *   LOANS <studentId>           The books a student has, most recent first: book, copy number,
+ *                               due date in epoch milliseconds (tab separated), then END.
+ *   HOLDER <copy> <book>        Who has a copy of a book: student id and due date, or ERR if the
+ *                               copy is not out.
+ *   PREFIX <limit> <text>       Up to 'limit' book names starting with the text, one per line, then END.
+ *   SEARCH <limit> <text>       Up to 'limit' book names containing the text, one per line, then END.
+ *   PAGE <offset> <limit>       Up to 'limit' book names in alphabetical order, starting at position
+ *                               'offset' (0 is the first book), one per line, then END.
+ *   AFTER <limit> <book>        Up to 'limit' book names that come after the given name, one per line,
+ *                               then END. Pass the last name of a page to get the next page.
+ *   RANGE <limit> <from>\t<to>  Up to 'limit' book names from 'from' to 'to' (both included),
+ *                               one per line, then END. The two names are separated by a tab.
+ *   RANK <book>                 The position of the book in alphabetical order
+ *                               (the number of books whose name comes before it).
+ *   OVERDUE <limit>             Up to 'limit' overdue loans, earliest first: student id, book,
+ *                               due date in epoch milliseconds (tab separated), then END.
+ *   DUE <hours> <limit>         Like OVERDUE, for the loans that fall due within the next hours.
+ *   METRICS                     Operation counts, latency percentiles and gauges
+ *                               (Prometheus text format), then END.
+ *   STUDENTS                    One line per student ordered by ID: id, name, stream (tab separated), then END.
+ *   REPORT <top>                Utilization per title, the most borrowed titles, loans per stream
+ *                               and late fees, ranking 'top' books per list (0 for all), then END.
+ *   QUIT                        Close the connection.
+ * Replies start with "OK" or "ERR" followed by the message the console menu would print.
+ * Over the network, ADD, DELETE and UPDATE need the librarian's LOGIN first (see LibraryServer);
+ * batch files and shards in the same JVM are trusted and run them directly.
+ */
+class LibraryCommands implements LibraryServer.Handler {
+    // A run of ADD commands is imported at once when it has at least one book per IMPORT_SHARE in the library.
+    private static final int IMPORT_SHARE = 16;
+
+    private final LoanService loans;
+
+    LibraryCommands(LoanService loans) {
+        this.loans = loans;
+    }
+
+    /**
+     * Runs one command and writes its reply.
+     * @param line The command line.
+     * @param out Where the reply lines are written.
+     * @return false if the client asked to quit, true otherwise.
+     */
+    @Override
+    public boolean execute(String line, Appendable out) throws IOException {
+        line = line.trim();
+        if (line.isEmpty())
+            return true;
+
+        int space = line.indexOf(' ');
+        String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+        String rest = space < 0 ? "" : line.substring(space + 1).trim();
+
+        try {
+            switch (command) {
+                case "ADD": {
+                    String[] args = splitNumber(rest);
+                    int quantity = Integer.parseInt(args[0]);
+                    if (loans.addTitle(args[1], quantity))
+                        reply(out, "OK Book '" + args[1] + "' added.");
+                    else
+                        reply(out, "ERR This book already exists.");
+                    break;
+                }
+                case "DELETE":
+                    if (loans.deleteTitle(requireBook(rest)))
+                        reply(out, "OK Book '" + rest + "' deleted.");
+                    else
+                        reply(out, "ERR Book not found.");
+                    break;
+                case "UPDATE": {
+                    String[] args = splitNumber(rest);
+                    int quantity = Integer.parseInt(args[0]);
+                    if (loans.addCopies(args[1], quantity, loans.now()))
+                        reply(out, "OK Quantity updated.");
+                    else
+                        reply(out, "ERR Book not found.");
+                    break;
+                }
+                case "LIST":
+                    list(out);
+                    break;
+                case "ISSUE": {
+                    String[] args = splitNumber(rest);
+                    LoanService.IssueResult result =
+                            loans.issue(Integer.parseInt(args[0]), args[1], loans.now());
+                    reply(out, (result == LoanService.IssueResult.ISSUED ? "OK " : "ERR ") + result.message);
+                    break;
+                }
+                case "RETURN": {
+                    String[] args = splitNumber(rest);
+                    LoanService.ReturnResult result =
+                            loans.returnBook(Integer.parseInt(args[0]), args[1], loans.now());
+                    reply(out, (result == LoanService.ReturnResult.RETURNED ? "OK " : "ERR ") + result.message);
+                    break;
+                }
+                case "RESERVE": {
+                    String[] args = splitNumber(rest);
+                    LoanService.ReserveResult result =
+                            loans.reserve(Integer.parseInt(args[0]), args[1], loans.now());
+                    reply(out, (result == LoanService.ReserveResult.RESERVED ? "OK " : "ERR ") + result.message);
+                    break;
+                }
+                case "CANCEL": {
+                    String[] args = splitNumber(rest);
+                    if (loans.cancelReservation(Integer.parseInt(args[0]), args[1], loans.now()))
+                        reply(out, "OK Reservation cancelled.");
+                    else
+                        reply(out, "ERR You have not reserved this book.");
+                    break;
+                }
+                case "BOOK": {
+                    PersistentCatalog.Book book = loans.catalog().get(requireBook(rest));
+                    if (book != null)
+                        reply(out, "OK " + book.total + " " + book.available);
+                    else
+                        reply(out, "ERR Book not found.");
+                    break;
+                }
+                case "WAITING":
+                    reply(out, "OK " + loans.waitingFor(requireBook(rest)));
+                    break;
+                case "LOANS":
+                    for (Loan loan : loans.loansOf(Integer.parseInt(rest)))
+                        out.append(loan.title).append('\t').append(Integer.toString(loan.copy)).append('\t')
+                                .append(Long.toString(loan.dueEpoch)).append('\n');
+                    reply(out, "END");
+                    break;
+                case "HOLDER": {
+                    String[] args = splitNumber(rest);
+                    Loan loan = loans.holderOf(args[1], Integer.parseInt(args[0]));
+                    if (loan != null)
+                        reply(out, "OK " + loan.studentId + " " + loan.dueEpoch);
+                    else
+                        reply(out, "ERR This copy is not issued.");
+                    break;
+                }
+                case "PREFIX": {
+                    String[] args = splitNumber(rest);
+                    lines(out, loans.searchPrefix(args[1], Integer.parseInt(args[0])));
+                    break;
+                }
+                case "SEARCH": {
+                    String[] args = splitNumber(rest);
+                    lines(out, loans.searchText(args[1], Integer.parseInt(args[0])));
+                    break;
+                }
+                case "PAGE": {
+                    String[] args = rest.split("\\s+");
+                    if (args.length != 2)
+                        throw new IllegalArgumentException("Expected an offset and a limit.");
+                    lines(out, loans.titlePage(Integer.parseInt(args[0]), Integer.parseInt(args[1])));
+                    break;
+                }
+                case "AFTER": {
+                    String[] args = splitNumber(rest);
+                    lines(out, loans.titlesAfter(args[1], Integer.parseInt(args[0])));
+                    break;
+                }
+                case "RANGE": {
+                    String[] args = splitNumber(rest);
+                    int tab = args[1].indexOf('\t');
+                    if (tab < 0)
+                        throw new IllegalArgumentException("Expected two book names separated by a tab.");
+                    lines(out, loans.titlesBetween(args[1].substring(0, tab).trim(),
+                            args[1].substring(tab + 1).trim(), Integer.parseInt(args[0])));
+                    break;
+                }
+                case "RANK":
+                    reply(out, "OK " + loans.titleRank(requireBook(rest)));
+                    break;
+                case "OVERDUE":
+                    loans(out, loans.loansDueBefore(loans.now(), Integer.parseInt(rest)));
+                    break;
+                case "DUE": {
+                    String[] args = rest.split("\\s+");
+                    if (args.length != 2)
+                        throw new IllegalArgumentException("Expected hours and a limit.");
+                    long now = loans.now();
+                    loans(out, loans.loansDueBetween(now, now + Long.parseLong(args[0]) * 3600000L,
+                            Integer.parseInt(args[1])));
+                    break;
+                }
+                case "METRICS":
+                    LibraryMetrics.write(out, loans);
+                    reply(out, "END");
+                    break;
+                case "REPORT":
+                    loans.report(rest.isEmpty() ? 10 : Integer.parseInt(rest)).write(out);
+                    reply(out, "END");
+                    break;
+                case "STUDENTS":
+                    for (Student s : loans.students().sortedById())
+                        out.append(Integer.toString(s.id_no)).append('\t').append(s.name).append('\t')
+                                .append(s.Stream).append('\n');
+                    reply(out, "END");
+                    break;
+                case "QUIT":
+                    reply(out, "OK Goodbye!");
+                    return false;
+                default:
+                    reply(out, "ERR Unknown command: " + command);
+            }
+        } catch (IllegalArgumentException e) {
+            // Also catches NumberFormatException from a bad quantity or student ID.
+            reply(out, "ERR " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Runs a batch of commands in order and writes their replies, like calling execute()
+     * on each line (see LibraryBatch). A long run of ADD commands next to each other is added
+     * in one bulk import, which rebuilds the book tree once instead of inserting book by book.
+     * An import costs O(n) in the size of the library, so shorter runs (less than one book
+     * in IMPORT_SHARE of the library) are added one at a time like any other command.
+     * A run of DELETE commands is deleted with one LoanService.deleteTitles() call.
+     * The replies to ADD are worked out before the import, so this is only for a library
+     * where no one else is adding the same books at the same time.
+     * @param lines The commands.
+     * @param count How many entries of 'lines' to run.
+     * @param out Where the reply lines are written.
+     * @return The number of commands run; less than 'count' if one of them was QUIT.
+     */
+    int executeBatch(String[] lines, int count, Appendable out) throws IOException {
+        int i = 0;
+        while (i < count) {
+            int end = i;
+            while (end < count && isAdd(lines[end]))
+                end++;
+            if (end - i > 1 && (end - i) * IMPORT_SHARE >= loans.inventory().size()) {
+                addAll(lines, i, end, out);
+                i = end;
+                continue;
+            }
+            end = i;
+            while (end < count && isDelete(lines[end]))
+                end++;
+            if (end - i > 1) {
+                deleteAll(lines, i, end, out);
+                i = end;
+            } else if (!execute(lines[i++], out)) {
+                return i;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isAdd(String line) {
+        line = line.trim();
+        return line.regionMatches(true, 0, "ADD ", 0, 4);
+    }
+
+    private static boolean isDelete(String line) {
+        line = line.trim();
+        return line.regionMatches(true, 0, "DELETE ", 0, 7);
+    }
+
+    /**
+     * Deletes the books of a run of DELETE commands with one LoanService.deleteTitles() call,
+     * replying to each like execute() does.
+     */
+    private void deleteAll(String[] lines, int from, int to, Appendable out) throws IOException {
+        List<String> titles = new ArrayList<>();
+        for (int i = from; i < to; i++)
+            titles.add(lines[i].trim().substring(7).trim());
+        boolean[] deleted = loans.deleteTitles(titles);
+        for (int i = 0; i < deleted.length; i++)
+            reply(out, deleted[i] ? "OK Book '" + titles.get(i) + "' deleted." : "ERR Book not found.");
+    }
+
+    /**
+     * Adds the books of a run of ADD commands with LoanService.importCatalog(). As there,
+     * a book already in the library, or repeated in the run, is added only once.
+     */
+    private void addAll(String[] lines, int from, int to, Appendable out) throws IOException {
+        BulkCatalog.Rows rows = new BulkCatalog.Rows();
+        String[] replies = new String[to - from];
+        Set<TitleKey> seen = new HashSet<>();
+        for (int i = from; i < to; i++) {
+            try {
+                String[] args = splitNumber(lines[i].trim().substring(4).trim());
+                int quantity = Integer.parseInt(args[0]);
+                TitleKey key = TitleKey.of(args[1]);
+                if (quantity < 0) {
+                    replies[i - from] = "ERR Quantity cannot be negative.";
+                } else if (loans.tree().containsNode(key) || !seen.add(key)) {
+                    replies[i - from] = "ERR This book already exists.";
+                } else {
+                    rows.add(args[1], quantity, quantity);
+                    replies[i - from] = "OK Book '" + args[1] + "' added.";
+                }
+            } catch (IllegalArgumentException e) {
+                replies[i - from] = "ERR " + e.getMessage();
+            }
+        }
+        if (rows.count > 0)
+            loans.importCatalog(rows);
+        for (String line : replies)
+            reply(out, line);
+    }
+
+    /**
+     * Writes the inventory in alphabetical order, one book per line, followed by END.
+     * It comes from a catalog snapshot, so it needs no lock and shows one consistent moment.
+     */
+    private void list(Appendable out) throws IOException {
+        for (PersistentCatalog.Book book : loans.catalog())
+            out.append(book.title).append('\t')
+                    .append(Integer.toString(book.total)).append('\t')
+                    .append(Integer.toString(book.available)).append('\n');
+        reply(out, "END");
+    }
+
+    /**
+     * Writes book names, one per line, followed by END.
+     */
+    private static void lines(Appendable out, List<String> names) throws IOException {
+        for (String name : names)
+            out.append(name).append('\n');
+        reply(out, "END");
+    }
+
+    /**
+     * Writes loans, one per line, followed by END.
+     */
+    private static void loans(Appendable out, List<Loan> list) throws IOException {
+        for (Loan loan : list)
+            out.append(Integer.toString(loan.studentId)).append('\t').append(loan.title).append('\t')
+                    .append(Long.toString(loan.dueEpoch)).append('\n');
+        reply(out, "END");
+    }
+
+    /**
+     * Splits "<number> <book name>" into its two parts.
+     */
+    private static String[] splitNumber(String rest) {
+        int space = rest.indexOf(' ');
+        if (space < 0)
+            throw new IllegalArgumentException("Expected a number followed by a book name.");
+        return new String[] { rest.substring(0, space), requireBook(rest.substring(space + 1).trim()) };
+    }
+
+    private static String requireBook(String book) {
+        if (book.isEmpty())
+            throw new IllegalArgumentException("Missing book name.");
+        return book;
+    }
+
+    private static void reply(Appendable out, String line) throws IOException {
+        out.append(line).append('\n');
+    }
+}
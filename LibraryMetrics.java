@@ -0,0 +1,167 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The LibraryMetrics class counts the library's operations and measures how long they take:
+ * how many issues, returns, adds, deletes and updates ran, how each one ended (for example
+ * how often "Book mapping error." or "currently unavailable" was the answer), latency
+ * percentiles for each kind of operation, and gauges for the tree height, catalog size,
+ * number of open loans, number of reservations waiting and the title cache (see TitleCache).
+ *
+ * Metrics are off unless the program is started with -Dlibrary.metrics=true. The switch is a
+ * static final constant, so when it is off the JIT removes the measuring code entirely.
+ *
+ * The numbers are written in the Prometheus text format, through the METRICS server command
+ * and, if -Dlibrary.metrics.dumpSeconds is set, to the file metrics.prom every few seconds.
+ */
+class LibraryMetrics {
+    static final boolean ENABLED = Boolean.getBoolean("library.metrics");
+
+    /**
+     * The operations that are measured.
+     */
+    enum Op {
+        ISSUE, RETURN, ADD, DELETE, UPDATE, SEARCH
+    }
+
+    private static final LatencyHistogram[] LATENCY = new LatencyHistogram[Op.values().length];
+    private static final LongAdder[] ISSUE_RESULTS = new LongAdder[LoanService.IssueResult.values().length];
+    private static final LongAdder[] RETURN_RESULTS = new LongAdder[LoanService.ReturnResult.values().length];
+    private static final LongAdder[] CATALOG_REJECTED = new LongAdder[Op.values().length];
+
+    static {
+        for (int i = 0; i < LATENCY.length; i++) {
+            LATENCY[i] = new LatencyHistogram();
+            CATALOG_REJECTED[i] = new LongAdder();
+        }
+        for (int i = 0; i < ISSUE_RESULTS.length; i++)
+            ISSUE_RESULTS[i] = new LongAdder();
+        for (int i = 0; i < RETURN_RESULTS.length; i++)
+            RETURN_RESULTS[i] = new LongAdder();
+    }
+
+    private LibraryMetrics() {
+    }
+
+    /**
+     * @return The start time of an operation, to pass to a record method later (0 when disabled).
+     */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static void recordIssue(long start, LoanService.IssueResult result) {
+        if (ENABLED) {
+            LATENCY[Op.ISSUE.ordinal()].record(System.nanoTime() - start);
+            ISSUE_RESULTS[result.ordinal()].increment();
+        }
+    }
+
+    static void recordReturn(long start, LoanService.ReturnResult result) {
+        if (ENABLED) {
+            LATENCY[Op.RETURN.ordinal()].record(System.nanoTime() - start);
+            RETURN_RESULTS[result.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Records an add, delete, update or search.
+     * @param ok false if the operation was turned down (for example the book already exists).
+     */
+    static void record(Op op, long start, boolean ok) {
+        if (ENABLED) {
+            LATENCY[op.ordinal()].record(System.nanoTime() - start);
+            if (!ok)
+                CATALOG_REJECTED[op.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     * @param loans The loan service the gauges are read from.
+     */
+    static void write(Appendable out, LoanService loans) throws IOException {
+        out.append("# library metrics ").append(ENABLED ? "enabled" : "disabled (start with -Dlibrary.metrics=true)")
+                .append('\n');
+        gauge(out, "library_tree_height", loans.treeHeight());
+        gauge(out, "library_catalog_size", loans.inventory().size());
+        gauge(out, "library_open_loans", loans.openLoans());
+        gauge(out, "library_reservations_waiting", loans.reservationsWaiting());
+        // The title cache counts its lookups itself, so these are there even with metrics off.
+        TitleCache cache = loans.titleCache();
+        gauge(out, "library_title_cache_size", cache.size());
+        gauge(out, "library_title_cache_hits_total", cache.hits());
+        gauge(out, "library_title_cache_misses_total", cache.misses());
+        gauge(out, "library_title_cache_evictions_total", cache.evictions());
+        gauge(out, "library_title_cache_rejections_total", cache.rejections());
+        out.append("library_title_cache_hit_ratio ").append(Double.toString(cache.hitRate())).append('\n');
+
+        for (Op op : Op.values()) {
+            String name = op.name().toLowerCase();
+            LatencyHistogram h = LATENCY[op.ordinal()];
+            out.append("library_ops_total{op=\"").append(name).append("\"} ")
+                    .append(Long.toString(h.count())).append('\n');
+            if (op != Op.ISSUE && op != Op.RETURN && op != Op.SEARCH)
+                out.append("library_ops_rejected_total{op=\"").append(name).append("\"} ")
+                        .append(Long.toString(CATALOG_REJECTED[op.ordinal()].sum())).append('\n');
+            for (double q : new double[] {0.5, 0.9, 0.99, 0.999})
+                out.append("library_latency_seconds{op=\"").append(name).append("\",quantile=\"")
+                        .append(Double.toString(q)).append("\"} ").append(seconds(h.percentile(q))).append('\n');
+            out.append("library_latency_seconds_max{op=\"").append(name).append("\"} ")
+                    .append(seconds(h.max())).append('\n');
+        }
+        for (LoanService.IssueResult r : LoanService.IssueResult.values())
+            out.append("library_issue_result_total{result=\"").append(r.name()).append("\"} ")
+                    .append(Long.toString(ISSUE_RESULTS[r.ordinal()].sum())).append('\n');
+        for (LoanService.ReturnResult r : LoanService.ReturnResult.values())
+            out.append("library_return_result_total{result=\"").append(r.name()).append("\"} ")
+                    .append(Long.toString(RETURN_RESULTS[r.ordinal()].sum())).append('\n');
+    }
+
+    /**
+     * Writes the metrics to a file every few seconds, if -Dlibrary.metrics.dumpSeconds is set.
+     * The file is replaced in one step, so a reader never sees half of it.
+     * @return The background dumper, or null if dumping is off.
+     */
+    static ScheduledExecutorService startDumper(LoanService loans, File file) {
+        long seconds = Long.getLong("library.metrics.dumpSeconds", 0);
+        if (!ENABLED || seconds <= 0)
+            return null;
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dumper");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (Writer w = new FileWriter(tmp)) {
+                write(w, loans);
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ignored) {
+                // Try again next time.
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+        return dumper;
+    }
+
+    private static void gauge(Appendable out, String name, long value) throws IOException {
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The LibraryServer class serves the librarian and user menu operations over TCP,
+ * so many kiosks can use the library at the same time. Each connection sends one
+ * command per line (see LibraryCommands) and reads one reply per command.
+ *
+ * Like the console menu, the librarian commands (ADD, DELETE, UPDATE and ADDSHARD) need
+ * the librarian's login first. Each connection logs in on its own:
+ *   LOGIN <id> <password>   Log in as the librarian for the rest of this connection.
+ *   LOGOUT                  Go back to the user commands only.
+ * Every other command works without logging in, as in the user menu.
+ *
+ * Every connection gets its own thread. On Java 21 and later these are virtual
+ * threads, which makes tens of thousands of mostly idle kiosk connections cheap;
+ * on older Java versions a (cached) platform thread per connection is used instead.
+ *
+ * Usage: java LibraryServer [port]   (default port 7070)
+ */
+class LibraryServer {
+    static final int DEFAULT_PORT = 7070;
+
+    /**
+     * Runs one command line and writes its reply: LibraryCommands for one library, or
+     * ShardedLibrary for a library split over several shards.
+     */
+    interface Handler {
+        /**
+         * @return false if the client asked to quit, true otherwise.
+         */
+        boolean execute(String line, Appendable out) throws IOException;
+    }
+
+    // The commands that need the librarian's login.
+    static final Set<String> LIBRARIAN_COMMANDS = Set.of("ADD", "DELETE", "UPDATE", "ADDSHARD");
+
+    /**
+     * One client connection: answers LOGIN and LOGOUT, refuses the librarian commands until
+     * the client has logged in, and passes everything else to the library.
+     */
+    private static final class Session implements Handler {
+        private final Handler library;
+        private boolean librarian; // Set by a successful LOGIN.
+
+        Session(Handler library) {
+            this.library = library;
+        }
+
+        @Override
+        public boolean execute(String line, Appendable out) throws IOException {
+            String trimmed = line.trim();
+            int space = trimmed.indexOf(' ');
+            String command = (space < 0 ? trimmed : trimmed.substring(0, space)).toUpperCase();
+            if (command.equals("LOGIN")) {
+                String[] login = space < 0 ? new String[0] : trimmed.substring(space + 1).trim().split("\\s+");
+                librarian = login.length == 2 && login[0].equals(library_management.LIBRARIAN_ID)
+                        && login[1].equals(library_management.LIBRARIAN_PASSWORD);
+                out.append(librarian ? "OK Login successful." : "ERR Invalid Userid or Password.").append('\n');
+                return true;
+            }
+            if (command.equals("LOGOUT")) {
+                librarian = false;
+                out.append("OK Logged out.").append('\n');
+                return true;
+            }
+            if (!librarian && LIBRARIAN_COMMANDS.contains(command)) {
+                out.append("ERR Log in as the librarian first (LOGIN <id> <password>).").append('\n');
+                return true;
+            }
+            return library.execute(line, out);
+        }
+    }
+
+    private final Handler commands;
+
+    LibraryServer(LoanService loans) {
+        this(new LibraryCommands(loans));
+    }
+
+    LibraryServer(Handler commands) {
+        this.commands = commands;
+    }
+
+    /**
+     * Accepts connections until the server socket is closed.
+     */
+    void serve(ServerSocket server) throws IOException {
+        ExecutorService connections = newThreadPerTaskExecutor();
+        try {
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                connections.execute(() -> handle(socket));
+            }
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    /**
+     * Runs the commands of one connection. Replies are flushed once the client has no
+     * more commands waiting, so a client that sends several commands at once (pipelining)
+     * gets all the replies in one write.
+     */
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            s.setTcpNoDelay(true);
+            Handler session = new Session(commands);
+            String line;
+            while ((line = in.readLine()) != null) {
+                boolean more = session.execute(line, out);
+                if (!more || !in.ready())
+                    out.flush();
+                if (!more)
+                    break;
+            }
+        } catch (IOException e) {
+            // The client went away; nothing else to clean up.
+        }
+    }
+
+    /**
+     * @return An executor that starts a new virtual thread per task when the JVM supports
+     * them (Java 21+), or a new platform thread per task otherwise.
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        LoanService loans = LoanService.open(new File("."), library_management.loadStudents(),
+                library_management.LOAN_PERIOD_MILLIS);
+        // With -Dlibrary.metrics=true, metrics are served by the METRICS command and,
+        // with -Dlibrary.metrics.dumpSeconds, also written to metrics.prom.
+        LibraryMetrics.startDumper(loans, new File("metrics.prom"));
+        loans.addReservationListener((studentId, title, dueEpoch) ->
+                System.out.println("Reserved book '" + title + "' issued to student " + studentId + "."));
+
+        // Save a snapshot and flush the log when the server is stopped (Ctrl+C).
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                loans.close();
+            } catch (IOException e) {
+                System.out.println("Could not save a snapshot: " + e.getMessage());
+            }
+        }));
+
+        try (ServerSocket server = new ServerSocket(port, 4096)) {
+            System.out.println("Library server listening on port " + port + ".");
+            new LibraryServer(loans).serve(server);
+        }
+    }
+}
@@ -0,0 +1,413 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The LibrarySnapshot class saves and restores the full library state: every book's
+ * slot, name and quantities, every open loan (which copy of which book each student has
+ * and when it is due), and who is waiting for which book.
+ *
+ * A snapshot records the transaction log sequence number it was taken at. On startup the
+ * newest snapshot is loaded and only the log records written after it are replayed, so
+ * recovery time depends on the time since the last snapshot, not on the age of the library.
+ *
+ * Snapshots are written to a temporary file, fsynced and then renamed into place,
+ * so a crash while saving never leaves a half-written snapshot behind.
+ *
+ * Books added and deleted after the snapshot are in the log too (ADD_TITLE and DELETE_TITLE
+ * records), with the slot each one had, so replay puts every book back in the same slot.
+ *
+ * The books are also kept in the memory-mapped CatalogFile, which is synced whenever a
+ * snapshot is saved. When that file is at least as new as the snapshot, the books come from
+ * it instead, so the books section (the last one) is not read at all.
+ * The file only holds the books as they are now, so it is not used when books were added or
+ * deleted after the snapshot (see changesBooks()): the log's older records would then meet
+ * a slot that already holds a later book.
+ */
+class LibrarySnapshot {
+    static final int MAGIC = 0x4C494253; // "LIBS"
+    static final int VERSION = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * Writes a snapshot of the current state.
+     * The transaction log must be synced first, so that every record below 'logSeq' is on disk.
+     * @param dir The directory for snapshot files.
+     * @param logSeq The log sequence number the snapshot covers (records below it are included).
+     * @param inventory The inventory store.
+     * @param students The registered students.
+     * @param loans The books that are out.
+     * @param reservations The students waiting for each book.
+     * @return The snapshot file.
+     */
+    static File write(File dir, long logSeq, InventoryStore inventory, StudentRegistry students, LoanTable loans,
+                      ReservationQueue reservations) throws IOException {
+        File target = new File(dir, PREFIX + logSeq + SUFFIX);
+        File tmp = new File(dir, PREFIX + logSeq + SUFFIX + ".tmp");
+
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(logSeq);
+
+            // Loans: student, slot, copy number, due date and name of every book that is out.
+            out.writeInt(loans.size());
+            IOException[] failed = new IOException[1];
+            loans.forEach((loan, studentId, slot, copy, title, dueEpoch) -> {
+                try {
+                    out.writeInt(studentId);
+                    out.writeInt(slot);
+                    out.writeInt(copy);
+                    out.writeLong(dueEpoch);
+                    out.writeUTF(title);
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            });
+            if (failed[0] != null)
+                throw failed[0];
+
+            // Reservations: slot and student of every hold, in queue order.
+            out.writeInt(reservations.size());
+            reservations.forEach((slot, studentId) -> {
+                try {
+                    out.writeInt(slot);
+                    out.writeInt(studentId);
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            });
+            if (failed[0] != null)
+                throw failed[0];
+
+            // Books: slot, name, total quantity, available quantity.
+            out.writeInt(inventory.size());
+            for (int slot = 0; slot < inventory.slotLimit(); slot++) {
+                String title = inventory.title(slot);
+                if (title == null)
+                    continue;
+                out.writeInt(slot);
+                out.writeUTF(title);
+                out.writeInt(inventory.total(slot));
+                out.writeInt(inventory.available(slot));
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        deleteOlderThan(dir, logSeq);
+        return target;
+    }
+
+    /**
+     * @return The log sequence number of the newest snapshot in a directory, or -1 if there is none.
+     */
+    static long newestSeq(File dir) {
+        long newestSeq = -1;
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                newestSeq = Math.max(newestSeq, seqOf(f));
+        return newestSeq;
+    }
+
+    /**
+     * Restores the newest snapshot in a directory, if there is one.
+     * The inventory store, tree and loan table should be empty.
+     * @param catalog The catalog file to take the books from, or null to take them from the
+     *                snapshot. It must have been synced at or after the newest snapshot.
+     * @param logEnd The number of records in the transaction log.
+     * @return The log sequence number to replay from, or -1 if no snapshot was found.
+     */
+    static long load(File dir, library_management tree, InventoryStore inventory, StudentRegistry students,
+                     LoanTable loans, ReservationQueue reservations, CatalogFile catalog, long logEnd)
+            throws IOException {
+        long newestSeq = newestSeq(dir);
+        if (newestSeq < 0)
+            return -1;
+        File newest = new File(dir, PREFIX + newestSeq + SUFFIX);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(newest), 1 << 16))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a library snapshot: " + newest);
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ": " + newest);
+            long logSeq = in.readLong();
+
+            boolean ahead = false;
+            if (catalog != null) {
+                catalog.restore(inventory);
+                for (int slot = 0; slot < inventory.slotLimit() && !ahead; slot++)
+                    ahead = catalog.seq(slot) >= logEnd;
+            }
+            readLoans(in, students, loans);
+
+            int holds = in.readInt();
+            for (int i = 0; i < holds; i++) {
+                int slot = in.readInt();
+                int id = in.readInt();
+                Student s = students.get(id);
+                if (s != null && reservations.add(slot, id))
+                    s.holds++;
+            }
+
+            if (catalog == null || ahead)
+                readBooks(in, inventory, catalog, logSeq, logEnd);
+            buildTree(tree, inventory);
+            return logSeq;
+        }
+    }
+
+    /**
+     * Reads the books section. Without a catalog file the books go into the inventory store.
+     * With one, the store already holds the file's books; only books whose counts in the file
+     * are ahead of the log (changed by records the log lost in a crash) are set back to the
+     * snapshot's counts, and the log is replayed into them from there.
+     */
+    private static void readBooks(DataInputStream in, InventoryStore inventory, CatalogFile catalog,
+                                      long logSeq, long logEnd) throws IOException {
+        int books = in.readInt();
+        for (int i = 0; i < books; i++) {
+            int slot = in.readInt();
+            String title = in.readUTF();
+            int total = in.readInt();
+            int available = in.readInt();
+            if (catalog == null) {
+                inventory.restore(slot, title, total, available);
+            } else if (catalog.seq(slot) >= logEnd && title.equals(inventory.title(slot))) {
+                inventory.setQuantities(slot, total, available);
+                catalog.setCounts(slot, total, available, logSeq - 1);
+            }
+        }
+        if (catalog == null)
+            inventory.rebuildFreeSlots();
+    }
+
+    private static void readLoans(DataInputStream in, StudentRegistry students, LoanTable loans)
+            throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            int slot = in.readInt();
+            int copy = in.readInt();
+            long dueEpoch = in.readLong();
+            String title = in.readUTF();
+            Student s = students.get(id);
+            if (s != null) {
+                loans.add(id, slot, copy, 0, TitleKey.of(title), dueEpoch);
+                s.book_no++;
+            }
+        }
+    }
+
+    /**
+     * @return true if books were added or deleted in the log from a record on, in which case
+     *         the books must come from the snapshot rather than the catalog file.
+     */
+    static boolean changesBooks(File log, long fromSeq) throws IOException {
+        if (!log.exists())
+            return false;
+        boolean[] changes = new boolean[1];
+        TransactionLog.scan(log, fromSeq, new TransactionLog.RecordVisitor() {
+            @Override
+            public void visit(long seq, byte op, int studentId, int slot, int amount, long issueEpoch,
+                              long dueEpoch) {
+                changes[0] |= op == TransactionLog.DELETE_TITLE;
+            }
+
+            @Override
+            public void visitTitle(long seq, int slot, String title, int total, int available, long epoch) {
+                changes[0] = true;
+            }
+        });
+        return changes[0];
+    }
+
+    /**
+     * Re-applies the log records written after a snapshot.
+     * @param log The transaction log file (may not exist yet).
+     * @param fromSeq The first record to apply.
+     * @param tree The book tree, which books added and deleted in the log go into and out of.
+     * @param catalog The catalog file the books came from, or null. Its counts are kept up to
+     *                date, and records a slot has already seen change only the students.
+     *                There must be no added or deleted books in the log (see changesBooks()).
+     * @return The number of records applied.
+     */
+    static long replay(File log, long fromSeq, library_management tree, InventoryStore inventory,
+                       StudentRegistry students, LoanTable loans, ReservationQueue reservations,
+                       CatalogFile catalog) throws IOException {
+        if (!log.exists())
+            return 0;
+        long end = TransactionLog.scan(log, fromSeq, new TransactionLog.RecordVisitor() {
+            @Override
+            public void visit(long seq, byte op, int studentId, int slot, int amount, long issueEpoch,
+                              long dueEpoch) {
+                if (op == TransactionLog.RETURN_DELETED) {
+                    endLoan(loans, students.get(studentId), studentId, amount, dueEpoch);
+                    return;
+                }
+                String title = inventory.title(slot);
+                if (title == null)
+                    return; // The book was deleted after this record was written.
+                if (op == TransactionLog.DELETE_TITLE) {
+                    deleteBook(slot, tree, inventory, students, loans, reservations);
+                    return;
+                }
+
+                // With a catalog file, the slot's counts may already include this record.
+                boolean counts = catalog == null || seq > catalog.seq(slot);
+                if (op == TransactionLog.ADD_COPIES) {
+                    if (counts)
+                        inventory.addCopies(slot, amount);
+                } else {
+                    replayStudent(op, slot, title, students.get(studentId), studentId, amount, dueEpoch, inventory,
+                            loans, reservations, counts);
+                }
+                if (counts && catalog != null)
+                    catalog.setCounts(slot, inventory.total(slot), inventory.available(slot), seq);
+            }
+
+            @Override
+            public void visitTitle(long seq, int slot, String title, int total, int available, long epoch) {
+                if (inventory.title(slot) != null || inventory.slotOf(title) != InventoryStore.NOT_FOUND)
+                    return; // Already in the snapshot.
+                inventory.restore(slot, title, total, available);
+                tree.insert(inventory.key(slot));
+            }
+        });
+        inventory.rebuildFreeSlots();
+        return end - Math.max(0, fromSeq);
+    }
+
+    /**
+     * Applies a RETURN_DELETED record: the student's loan of a copy of a deleted book ends.
+     * The loan was detached when the book was deleted, so it is found by its copy and due date.
+     */
+    private static void endLoan(LoanTable loans, Student s, int studentId, int copy, long dueEpoch) {
+        int loan = loans.findDetached(studentId, copy, dueEpoch);
+        if (s != null && loan != LoanTable.NONE) {
+            loans.remove(loan);
+            s.book_no--;
+        }
+    }
+
+    /**
+     * Applies a DELETE_TITLE record: the book leaves the tree and the store, every student
+     * waiting for it loses the reservation and its loans are detached, as
+     * LoanService.deleteTitle() does.
+     */
+    private static void deleteBook(int slot, library_management tree, InventoryStore inventory,
+                                   StudentRegistry students, LoanTable loans, ReservationQueue reservations) {
+        TitleKey key = inventory.key(slot);
+        for (int id : reservations.clear(slot)) {
+            Student s = students.get(id);
+            if (s != null)
+                s.holds--;
+        }
+        loans.detachBook(slot, inventory.total(slot));
+        tree.deleteKey(key);
+        inventory.remove(key);
+    }
+
+    /**
+     * Applies an issue, return or reservation record.
+     * @param counts Whether the book's counts should change too.
+     */
+    private static void replayStudent(byte op, int slot, String title, Student s, int studentId, int amount,
+                                      long dueEpoch, InventoryStore inventory, LoanTable loans,
+                                      ReservationQueue reservations, boolean counts) {
+        if (op == TransactionLog.RESERVE) {
+            if (s != null && reservations.add(slot, studentId))
+                s.holds++;
+        } else if (op == TransactionLog.CANCEL_RESERVATION) {
+            if (s != null && reservations.remove(slot, studentId))
+                s.holds--;
+        } else if (op == TransactionLog.ISSUE) {
+            if (counts)
+                inventory.tryIssue(slot);
+            // A copy handed to the next student in the queue ends that student's reservation.
+            if (s != null && reservations.remove(slot, studentId))
+                s.holds--;
+            if (s != null) {
+                // 'amount' is the copy that was issued.
+                loans.add(studentId, slot, amount, inventory.total(slot), inventory.key(slot), dueEpoch);
+                s.book_no++;
+            }
+        } else if (op == TransactionLog.RETURN) {
+            if (counts)
+                inventory.release(slot);
+            if (s != null) {
+                // The loan is found by its copy. (A loan of a deleted book was detached
+                // from the slot and ends with a RETURN_DELETED record instead.)
+                int loan = loans.ofCopy(slot, amount);
+                if (loan != LoanTable.NONE && loans.student(loan) == studentId) {
+                    loans.remove(loan);
+                    s.book_no--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the book tree from the restored books, sharing the inventory store's keys,
+     * in one step if they are distinct.
+     */
+    private static void buildTree(library_management tree, InventoryStore inventory) {
+        TitleKey[] keys = new TitleKey[inventory.size()];
+        int count = 0;
+        for (int slot = 0; slot < inventory.slotLimit(); slot++)
+            if (inventory.key(slot) != null)
+                keys[count++] = inventory.key(slot);
+        Arrays.sort(keys, 0, count);
+        boolean distinct = true;
+        for (int i = 1; i < count && distinct; i++)
+            distinct = keys[i].compareTo(keys[i - 1]) != 0;
+
+        if (distinct && tree.root == null) {
+            tree.buildFromSorted(keys, count);
+        } else {
+            for (int i = 0; i < count; i++)
+                tree.insert(keys[i]);
+        }
+    }
+
+    /**
+     * @return The log sequence number in a snapshot file's name, or -1 if it is not a snapshot.
+     */
+    private static long seqOf(File f) {
+        String name = f.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Deletes snapshots older than the given one. The newest snapshot is always kept.
+     */
+    private static void deleteOlderThan(File dir, long logSeq) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            long seq = seqOf(f);
+            if (seq >= 0 && seq < logSeq)
+                f.delete();
+        }
+    }
+}
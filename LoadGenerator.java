@@ -0,0 +1,197 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The LoadGenerator class measures the throughput and latency of a running LibraryServer.
+ * It opens many kiosk connections at once; each one repeatedly issues a book and
+ * returns it again, timing every request. At the end it prints requests per second
+ * and the latency percentiles (p50, p99, p99.9, max).
+ *
+ * Requests the library refuses (ERR, for example because the student reached the
+ * borrowing limit or no copy is left) are counted on their own and left out of the
+ * throughput and the percentiles, since a refusal is much cheaper than an issue.
+ * To keep refusals rare, the load is spread over many students and books: the first
+ * 'students' registered students (STUDENTS) and the first 'books' books in alphabetical
+ * order (PAGE) are fetched before the run. Connection 'c' uses student c % students,
+ * and its round 'r' uses book (c + r) % books.
+ *
+ * Usage: java LoadGenerator [host] [port] [connections] [rounds] [books] [students]
+ * Defaults: localhost 7070 1000 100 1000 1000
+ */
+class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : LibraryServer.DEFAULT_PORT;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int bookCount = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+        int studentCount = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+
+        List<String> books = fetch(host, port, "PAGE 0 " + bookCount);
+        List<String> students = new ArrayList<>();
+        for (String student : fetch(host, port, "STUDENTS")) {
+            if (students.size() == studentCount)
+                break;
+            students.add(student.substring(0, student.indexOf('\t')));
+        }
+        if (books.isEmpty() || students.isEmpty()) {
+            System.out.println("The library has no books or no students to borrow them.");
+            return;
+        }
+
+        // Each round is two requests (ISSUE and RETURN); every latency is kept for exact percentiles.
+        long[][] latencies = new long[connections][];
+        AtomicLong errors = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        CountDownLatch connected = new CountDownLatch(connections);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(connections);
+
+        ExecutorService clients = LibraryServer.newThreadPerTaskExecutor();
+        for (int c = 0; c < connections; c++) {
+            final int conn = c;
+            clients.execute(() -> {
+                try {
+                    latencies[conn] = runClient(host, port, rounds, conn, students, books,
+                            rejected, connected, start);
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        // Start all clients together once every connection is open.
+        connected.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        clients.shutdown();
+        clients.awaitTermination(10, TimeUnit.SECONDS);
+
+        int total = 0;
+        for (long[] l : latencies)
+            if (l != null)
+                total += l.length;
+        long[] all = new long[total];
+        int k = 0;
+        for (long[] l : latencies) {
+            if (l != null) {
+                System.arraycopy(l, 0, all, k, l.length);
+                k += l.length;
+            }
+        }
+        Arrays.sort(all);
+
+        System.out.println("Connections : " + connections + " (" + errors.get() + " failed)");
+        System.out.println("Load        : " + students.size() + " students, " + books.size() + " books");
+        System.out.println("Requests    : " + total);
+        System.out.println("Refused     : " + rejected.get() + " (ERR replies, not counted below)");
+        System.out.printf("Throughput  : %.0f requests/s%n", total / (elapsed / 1e9));
+        if (total > 0) {
+            System.out.printf("Latency p50 : %.3f ms%n", percentile(all, 0.50) / 1e6);
+            System.out.printf("Latency p99 : %.3f ms%n", percentile(all, 0.99) / 1e6);
+            System.out.printf("Latency p999: %.3f ms%n", percentile(all, 0.999) / 1e6);
+            System.out.printf("Latency max : %.3f ms%n", all[all.length - 1] / 1e6);
+        }
+    }
+
+    /**
+     * Runs one kiosk connection.
+     * @param conn The number of the connection, which picks its student and books.
+     * @param rejected Counts the requests the library refused.
+     * @param connected Counted down once, when the connection is open or could not be opened.
+     * @return The latency of every request that succeeded, in nanoseconds.
+     */
+    private static long[] runClient(String host, int port, int rounds, int conn, List<String> students,
+                                    List<String> books, AtomicLong rejected,
+                                    CountDownLatch connected, CountDownLatch start)
+            throws IOException, InterruptedException {
+        long[] lat = new long[rounds * 2];
+        int n = 0;
+        Socket socket;
+        try {
+            socket = new Socket(host, port);
+        } finally {
+            connected.countDown();
+        }
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            s.setTcpNoDelay(true);
+            start.await();
+
+            String student = students.get(conn % students.size());
+            for (int r = 0; r < rounds; r++) {
+                String book = books.get((conn + r) % books.size());
+                for (String command : new String[] {"ISSUE ", "RETURN "}) {
+                    long t = request(in, out, command + student + " " + book);
+                    if (t < 0)
+                        rejected.incrementAndGet();
+                    else
+                        lat[n++] = t;
+                }
+            }
+            out.write("QUIT\n");
+            out.flush();
+        }
+        return Arrays.copyOf(lat, n);
+    }
+
+    /**
+     * Sends one command and waits for its reply.
+     * @return The round-trip time in nanoseconds, or -1 if the reply was ERR.
+     */
+    private static long request(BufferedReader in, BufferedWriter out, String command) throws IOException {
+        long t0 = System.nanoTime();
+        out.write(command);
+        out.write('\n');
+        out.flush();
+        String reply = in.readLine();
+        if (reply == null)
+            throw new IOException("Server closed the connection.");
+        long t = System.nanoTime() - t0;
+        return reply.startsWith("ERR") ? -1 : t;
+    }
+
+    /**
+     * Runs one listing command (a reply of several lines ending with END) on a connection of its own.
+     * @return The lines before END.
+     */
+    private static List<String> fetch(String host, int port, String command) throws IOException {
+        try (Socket s = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            out.write(command + "\nQUIT\n");
+            out.flush();
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("END")) {
+                if (line.startsWith("ERR"))
+                    throw new IOException(command + ": " + line);
+                lines.add(line);
+            }
+            return lines;
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+}
@@ -0,0 +1,17 @@
+/**
+ * The Loan class describes one book a student has borrowed: who has it,
+ * which book and which copy of it it is, and when it has to be back.
+ */
+class Loan {
+    final int studentId;
+    final String title;
+    final int copy; // The copy number (see LoanTable).
+    final long dueEpoch; // Due date in epoch milliseconds.
+
+    Loan(int studentId, String title, int copy, long dueEpoch) {
+        this.studentId = studentId;
+        this.title = title;
+        this.copy = copy;
+        this.dueEpoch = dueEpoch;
+    }
+}
@@ -0,0 +1,1225 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The LoanService class is the thread-safe entry point for issuing and returning books
+ * and for changing the catalog. It holds the same logic as the user and librarian menus,
+ * but can be called by many threads (many desks or kiosks) at the same time.
+ *
+ * Locking is split so that unrelated work never waits on the same lock:
+ *   - Catalog locks protect the tree and the slot table. Issues and returns only need
+ *     to read them, so each thread takes the read lock of its own stripe. Adding or
+ *     deleting a book (rare) takes the write lock of every stripe.
+ *   - Title locks protect a book's quantities. Books hash to one of many stripes, so
+ *     issues of different books almost never share a lock.
+ *   - A student's own monitor makes the borrowing limit check and the update of the
+ *     student's loans one atomic step, even if the same student uses two desks at once.
+ * Locks are always taken in that order (catalog, student, title), so they cannot deadlock.
+ *
+ * Every book that is out is a loan of one numbered copy in the LoanTable, so a student may
+ * have as many books as the limit of their stream allows (see BorrowingLimits). The copy is
+ * picked under the book's title lock, so two desks never hand out the same copy.
+ *
+ * A student can reserve a book that has no copy left. When a copy comes back it is not put
+ * back on the shelf: under the book's title lock it is taken straight off the return and
+ * issued to the first student in the book's ReservationQueue, so nobody can take it in
+ * between and the student does not have to keep asking.
+ *
+ * Listings and reports do not need any of these locks: every change to a book is also
+ * published to a PersistentCatalog, and catalog() hands out a snapshot of it that stays
+ * consistent however long it is read.
+ */
+class LoanService {
+    // Returned by returnBookDue() when the student did not have the book.
+    static final long NOT_ISSUED = Long.MIN_VALUE;
+
+    // Returned by slotFor() when the book is not in the book tree.
+    private static final int NOT_IN_TREE = -2;
+
+    /**
+     * Outcome of an issue request. Each value carries the message the user menu prints.
+     */
+    enum IssueResult {
+        ISSUED("Book issued successfully."),
+        STUDENT_NOT_FOUND("Invalid Student ID."),
+        LIMIT_REACHED("You have reached your borrowing limit."),
+        NOT_IN_LIBRARY("This book is not in our library."),
+        MAPPING_ERROR("Book mapping error."),
+        UNAVAILABLE("Book is currently unavailable. Try again later.");
+
+        final String message;
+
+        IssueResult(String message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * Outcome of a reservation request.
+     */
+    enum ReserveResult {
+        RESERVED("Book reserved. It will be issued to you as soon as a copy is returned."),
+        STUDENT_NOT_FOUND("Invalid Student ID."),
+        LIMIT_REACHED("Your issued and reserved books have reached your borrowing limit."),
+        NOT_IN_LIBRARY("This book is not in our library."),
+        MAPPING_ERROR("Book mapping error."),
+        ALREADY_ISSUED("You already have this book."),
+        ALREADY_RESERVED("You have already reserved this book."),
+        AVAILABLE("A copy is available now, so the book can be issued right away.");
+
+        final String message;
+
+        ReserveResult(String message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * Outcome of a return request.
+     */
+    enum ReturnResult {
+        RETURNED("Book returned successfully."),
+        NOT_ISSUED("Invalid ID or you have not issued this book.");
+
+        final String message;
+
+        ReturnResult(String message) {
+            this.message = message;
+        }
+    }
+
+    private final library_management tree;
+    private final InventoryStore inventory;
+    private final CatalogFile catalogFile;
+    private final TitleIndex titles;
+    private final TitleCache titleCache;
+    private final PersistentCatalog catalog = new PersistentCatalog();
+    private final CatalogWriter catalogWriter;
+    private final StudentRegistry students;
+    private final LoanTable loanTable;
+    private final OverdueIndex overdue;
+    private final ReservationQueue reservations;
+    private final BorrowingLimits limits;
+    private final TransactionLog log;
+    private final long loanPeriodMillis;
+    private final LibraryClock clock;
+
+    private final ReentrantReadWriteLock[] catalogLocks;
+    private final Object[] titleLocks;
+
+    // Reservation listeners, and the notices waiting to be delivered to them once the
+    // thread that made a change has released its locks.
+    private final List<ReservationListener> listeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Runnable> notices = new ConcurrentLinkedQueue<>();
+
+    // Snapshot policy: where to save them and how many log records may pass between them.
+    private final File snapshotDir;
+    private final long snapshotEvery;
+    private volatile long lastSnapshot;
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+
+    /**
+     * Creates a loan service over already loaded library state.
+     * @param tree The book tree.
+     * @param inventory The inventory store.
+     * @param catalogFile The memory-mapped copy of the inventory store on disk.
+     * @param titles The text search index over the inventory's book names.
+     * @param students The registered students.
+     * @param loanTable The books that are out, by student and by copy.
+     * @param overdue The open loans ordered by due date.
+     * @param reservations The students waiting for each book.
+     * @param limits How many books a student of each stream may have.
+     * @param log The transaction log that records every change.
+     * @param loanPeriodMillis How long a book may be kept, in milliseconds.
+     * @param snapshotDir Where snapshots are saved.
+     * @param snapshotEvery How many log records may be written between two snapshots.
+     * @param clock Where the current time comes from.
+     */
+    LoanService(library_management tree, InventoryStore inventory, CatalogFile catalogFile, TitleIndex titles,
+                StudentRegistry students, LoanTable loanTable, OverdueIndex overdue, ReservationQueue reservations,
+                BorrowingLimits limits, TransactionLog log, long loanPeriodMillis, File snapshotDir,
+                long snapshotEvery, LibraryClock clock) {
+        this.tree = tree;
+        this.inventory = inventory;
+        this.catalogFile = catalogFile;
+        this.titles = titles;
+        this.students = students;
+        this.loanTable = loanTable;
+        this.overdue = overdue;
+        this.reservations = reservations;
+        this.limits = limits;
+        // Look every student's limit up once, so issues and reservations only read an int.
+        students.forEach(s -> {
+            if (s.limit < 0)
+                s.limit = limits.limitFor(s.Stream);
+        });
+        this.log = log;
+        this.loanPeriodMillis = loanPeriodMillis;
+        this.snapshotDir = snapshotDir;
+        this.snapshotEvery = snapshotEvery;
+        this.clock = clock;
+        this.lastSnapshot = log.size();
+        this.titleCache = new TitleCache(Integer.getInteger("library.titleCache.size", 1024));
+        // Keeps x.txt, y.txt and z.txt in step with the catalog, in batches.
+        this.catalogWriter = new CatalogWriter(snapshotDir, catalog::snapshot,
+                Integer.getInteger("library.catalog.batchSize", 256),
+                Long.getLong("library.catalog.flushMillis", 1000),
+                Integer.getInteger("library.catalog.queueSize", 4096));
+
+        // Enough stripes that busy threads rarely land on the same one.
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+        catalogLocks = new ReentrantReadWriteLock[stripes];
+        for (int i = 0; i < stripes; i++)
+            catalogLocks[i] = new ReentrantReadWriteLock();
+        titleLocks = new Object[stripes * 16];
+        for (int i = 0; i < titleLocks.length; i++)
+            titleLocks[i] = new Object();
+
+        List<TitleKey> sorted = tree.keysInOrder();
+        catalog.reset(sorted.toArray(new TitleKey[0]), sorted.size(), inventory);
+    }
+
+    /**
+     * Restores the library found in a directory and opens it for business.
+     * The newest snapshot is loaded and only the log records written after it are replayed.
+     * The books are mapped from catalog.bin (see CatalogFile) when it is at least as new as
+     * the snapshot; otherwise they come from the snapshot and catalog.bin is written afresh.
+     * On the first run there is no snapshot, so the catalog files (x.txt, y.txt, z.txt) are
+     * loaded instead and the whole log is replayed. Borrowing limits are read from limits.txt
+     * (see BorrowingLimits). How long the start took is printed to standard error.
+     *
+     * Settings (system properties):
+     *   library.log.windowMillis     durability window of the transaction log (default 10)
+     *   library.log.groupSize        records per group commit (default 256)
+     *   library.snapshot.every       log records between snapshots (default 10000)
+     *   library.catalog.batchSize    books per write to x.txt, y.txt, z.txt (default 256)
+     *   library.catalog.flushMillis  longest wait before a book change is written there (default 1000)
+     *   library.catalog.queueSize    book changes waiting before callers wait too (default 4096)
+     *   library.titleCache.size      popular books whose slot is cached (default 1024)
+     *
+     * @param dir The directory holding the library's files.
+     * @param students The registered students.
+     * @param loanPeriodMillis How long a book may be kept, in milliseconds.
+     * @return The ready loan service, using the computer's clock.
+     */
+    static LoanService open(File dir, StudentRegistry students, long loanPeriodMillis) throws IOException {
+        return open(dir, students, loanPeriodMillis, LibraryClock.SYSTEM);
+    }
+
+    /**
+     * Like open(dir, students, loanPeriodMillis), with a chosen clock (for example a FakeClock).
+     */
+    static LoanService open(File dir, StudentRegistry students, long loanPeriodMillis, LibraryClock clock)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        library_management tree = new library_management();
+        // The inventory store maps a book's name to a slot number and keeps the
+        // total and available quantities of every slot in primitive arrays.
+        InventoryStore inventory = new InventoryStore(1024);
+        LoanTable loanTable = new LoanTable(1024);
+        ReservationQueue reservations = new ReservationQueue(1024);
+
+        File logFile = new File(dir, "transactions.log");
+        File catalogPath = new File(dir, "catalog.bin");
+        long logEnd = TransactionLog.records(logFile);
+        // The catalog file is only used if it was synced when the newest snapshot was saved
+        // (or later); an older one would be missing books added since. It is not used either
+        // when books were added or deleted after the snapshot (see LibrarySnapshot).
+        CatalogFile catalogFile = CatalogFile.open(catalogPath);
+        long snapshotSeq = LibrarySnapshot.newestSeq(dir);
+        if (catalogFile != null && (snapshotSeq < 0 || catalogFile.syncedSeq() < snapshotSeq
+                || LibrarySnapshot.changesBooks(logFile, snapshotSeq))) {
+            catalogFile.close();
+            catalogFile = null;
+        }
+        boolean mapped = catalogFile != null;
+
+        long replayFrom = LibrarySnapshot.load(dir, tree, inventory, students, loanTable, reservations,
+                catalogFile, logEnd);
+        boolean fromSnapshot = replayFrom >= 0;
+        if (!fromSnapshot) {
+            CatalogLoader.load(new File(dir, "x.txt"), new File(dir, "y.txt"), new File(dir, "z.txt"),
+                    tree, inventory);
+            replayFrom = 0;
+        }
+        long replayed = LibrarySnapshot.replay(logFile, replayFrom, tree, inventory, students, loanTable,
+                reservations, catalogFile);
+        if (!mapped)
+            catalogFile = CatalogFile.create(catalogPath, inventory, logEnd);
+        TitleIndex titles = TitleIndex.build(inventory);
+        OverdueIndex overdue = new OverdueIndex(Math.max(1024, loanTable.size()));
+        loanTable.forEach((loan, studentId, slot, copy, title, dueEpoch) -> overdue.add(loan, dueEpoch));
+        BorrowingLimits limits = BorrowingLimits.load(new File(dir, "limits.txt"));
+        // Startup diagnostics go to standard error, so standard output carries only what the
+        // caller prints (LibraryBatch writes one reply per command there).
+        System.err.println("Library ready: " + inventory.size() + " books loaded from "
+                + (mapped ? "catalog.bin" : fromSnapshot ? "snapshot" : "catalog files") + ", " + replayed + " log records replayed in "
+                + ((System.nanoTime() - startNanos) / 1000000) + " ms.");
+        System.err.println("Search index: " + titles.gramCount() + " grams, "
+                + (titles.memoryBytes() + 1023) / 1024 + " KB.");
+
+        // Records are fsynced in groups; the durability window is how many milliseconds
+        // a record may wait before it is forced to disk (0 = wait for every record).
+        TransactionLog log = new TransactionLog(logFile,
+                Long.getLong("library.log.windowMillis", 10), Integer.getInteger("library.log.groupSize", 256));
+        LoanService service = new LoanService(tree, inventory, catalogFile, titles, students, loanTable, overdue,
+                reservations, limits, log, loanPeriodMillis, dir, Long.getLong("library.snapshot.every", 10000), clock);
+        // The catalog files are rewritten behind (see CatalogWriter), in an order of their own,
+        // so once they are loaded the library always restarts from a snapshot instead.
+        if (!fromSnapshot)
+            service.snapshot();
+        return service;
+    }
+
+    /**
+     * Issues a book to a student.
+     * @param studentId The student's ID.
+     * @param title The name of the book.
+     * @param now The current time in epoch milliseconds.
+     * @return What happened.
+     */
+    IssueResult issue(int studentId, String title, long now) throws IOException {
+        long start = LibraryMetrics.start();
+        IssueResult result;
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            result = issueLocked(studentId, title, now);
+        } finally {
+            read.unlock();
+        }
+        if (result == IssueResult.ISSUED)
+            maybeSnapshot();
+        LibraryMetrics.recordIssue(start, result);
+        return result;
+    }
+
+    private IssueResult issueLocked(int studentId, String title, long now) throws IOException {
+        Student s = find(studentId);
+        if (s == null)
+            return IssueResult.STUDENT_NOT_FOUND;
+
+        synchronized (s) {
+            // Check if the student already has as many books as their stream allows.
+            // Reserved books count too, so a copy handed over later always fits.
+            if (s.book_no + s.holds >= limitOf(s))
+                return IssueResult.LIMIT_REACHED;
+            int slot = slotFor(title);
+            if (slot == NOT_IN_TREE)
+                return IssueResult.NOT_IN_LIBRARY;
+            if (slot == InventoryStore.NOT_FOUND)
+                return IssueResult.MAPPING_ERROR;
+
+            long dueEpoch = now + loanPeriodMillis;
+            // The log record is written under the title lock, so the log lists the
+            // changes to each book's quantity in the order they really happened.
+            synchronized (titleLock(slot)) {
+                if (!inventory.tryIssue(slot))
+                    return IssueResult.UNAVAILABLE;
+                publish(slot, openLoan(studentId, slot, 0, now, dueEpoch));
+            }
+            s.book_no++;
+            return IssueResult.ISSUED;
+        }
+    }
+
+    /**
+     * Records a new loan of one copy of a book in the loan table, the overdue index and the
+     * transaction log. Must be called while holding the book's title lock, so two desks never
+     * pick the same copy. The caller updates the student's book count.
+     * @param copy The copy number, or 0 to pick one that is not out.
+     * @return The log sequence number of the issue record.
+     */
+    private long openLoan(int studentId, int slot, int copy, long now, long dueEpoch) throws IOException {
+        int loan = loanTable.add(studentId, slot, copy, inventory.total(slot), inventory.key(slot), dueEpoch);
+        overdue.add(loan, dueEpoch);
+        return log.appendLoan(TransactionLog.ISSUE, studentId, slot, loanTable.copy(loan), now, dueEpoch);
+    }
+
+    /**
+     * Takes a book back from a student.
+     * @param studentId The student's ID.
+     * @param title The name of the book.
+     * @param now The current time in epoch milliseconds.
+     * @return What happened.
+     */
+    ReturnResult returnBook(int studentId, String title, long now) throws IOException {
+        return returnBookDue(studentId, title, now) != NOT_ISSUED ? ReturnResult.RETURNED : ReturnResult.NOT_ISSUED;
+    }
+
+    /**
+     * Takes a book back from a student and tells when it was due, so a late fee can be charged.
+     * The due date comes back as a plain long rather than a Loan. The loan bookkeeping
+     * itself allocates nothing, but publishing the new counts to the PersistentCatalog
+     * copies a trie path: an issue plus a return allocates about 670 B at 1,000 books.
+     * @param studentId The student's ID.
+     * @param title The name of the book.
+     * @param now The current time in epoch milliseconds.
+     * @return The book's due date in epoch milliseconds, or NOT_ISSUED if the student did not have it.
+     */
+    long returnBookDue(int studentId, String title, long now) throws IOException {
+        long start = LibraryMetrics.start();
+        long dueEpoch;
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            dueEpoch = returnLocked(studentId, title, now);
+        } finally {
+            read.unlock();
+        }
+        deliverNotices();
+        if (dueEpoch != NOT_ISSUED)
+            maybeSnapshot();
+        LibraryMetrics.recordReturn(start, dueEpoch != NOT_ISSUED ? ReturnResult.RETURNED : ReturnResult.NOT_ISSUED);
+        return dueEpoch;
+    }
+
+    private long returnLocked(int studentId, String title, long now) throws IOException {
+        Student s = find(studentId);
+        if (s == null)
+            return NOT_ISSUED;
+
+        long dueEpoch;
+        int waiter = ReservationQueue.NONE;
+        int slot;
+        synchronized (s) {
+            // Find the loan by the book's name (the user may have typed it in a different
+            // case). A loan of a book that was deleted while the copy was out has slot NONE,
+            // even if a book of the same name was added since (see LoanTable.detachBook()).
+            slot = inventory.slotOf(title);
+            int loan = loanTable.find(studentId, slot, title);
+            if (loan == LoanTable.NONE)
+                return NOT_ISSUED;
+            int loanSlot = loanTable.slot(loan);
+            int copy = loanTable.copy(loan);
+            dueEpoch = loanTable.due(loan);
+            loanTable.remove(loan);
+            overdue.remove(loan);
+            s.book_no--;
+
+            if (slot != InventoryStore.NOT_FOUND && loanSlot == slot) {
+                synchronized (titleLock(slot)) {
+                    long seq = log.appendLoan(TransactionLog.RETURN, studentId, slot, copy, now, dueEpoch);
+                    waiter = reservations.poll(slot);
+                    if (waiter == ReservationQueue.NONE) {
+                        inventory.release(slot);
+                        publish(slot, seq);
+                    } else {
+                        // The copy goes straight to the next student in the queue. It is never
+                        // put back on the shelf, so no one else can take it in between.
+                        seq = openLoan(waiter, slot, copy, now, now + loanPeriodMillis);
+                        persist(slot, seq);
+                    }
+                }
+            } else {
+                // The book was deleted while this copy was out; only the loan ends, and no
+                // book (not even a new one with the same name) gets the copy.
+                log.appendLoan(TransactionLog.RETURN_DELETED, studentId, loanSlot, copy, now, dueEpoch);
+            }
+        }
+        // The waiting student's record is updated after the returning student's monitor
+        // is released, so two students' monitors are never held at once.
+        if (waiter != ReservationQueue.NONE)
+            handOver(waiter, inventory.title(slot), now + loanPeriodMillis);
+        return dueEpoch;
+    }
+
+    /**
+     * Completes the issue of a copy that was kept back for a waiting student (the loan is
+     * already open, see openLoan) and queues a notice for the listeners. The student's
+     * reservation already counted towards the borrowing limit, so the book always fits.
+     * Called with the catalog read lock held.
+     */
+    private void handOver(int studentId, String title, long dueEpoch) {
+        Student s = find(studentId);
+        synchronized (s) {
+            s.holds--;
+            s.book_no++;
+        }
+        notices.add(() -> {
+            for (ReservationListener l : listeners)
+                l.bookReady(studentId, title, dueEpoch);
+        });
+    }
+
+    /**
+     * Adds a new book to the library. The book is written to the log with the slot it
+     * gets (an ADD_TITLE record), so replaying the log puts it back in the same slot and
+     * no snapshot is needed until maybeSnapshot() decides one is due.
+     * @return true if the book was added, false if it already exists.
+     * @throws IllegalArgumentException if the quantity is negative.
+     */
+    boolean addTitle(String title, int quantity) throws IOException {
+        if (quantity < 0)
+            throw new IllegalArgumentException("Quantity cannot be negative.");
+        long start = LibraryMetrics.start();
+        boolean added = addTitleLocked(title, quantity);
+        if (added)
+            maybeSnapshot();
+        LibraryMetrics.record(LibraryMetrics.Op.ADD, start, added);
+        return added;
+    }
+
+    private boolean addTitleLocked(String title, int quantity) throws IOException {
+        lockAll();
+        try {
+            // One key for the tree, the inventory store and the catalog.
+            TitleKey key = TitleKey.of(title);
+            if (tree.containsNode(key))
+                return false;
+            tree.insert(key);
+            int slot = inventory.add(key, quantity, quantity);
+            long seq = log.appendTitle(slot, title, quantity, quantity, clock.millis());
+            titles.add(slot, title);
+            catalog.add(key, slot, quantity, quantity);
+            catalogFile.add(slot, title, quantity, quantity, seq);
+            catalogWriter.added(title, quantity, quantity);
+            return true;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Adds more copies of an existing book.
+     * @return true if the book was found, false otherwise.
+     * @throws IllegalArgumentException if the quantity is not positive.
+     */
+    boolean addCopies(String title, int quantity, long now) throws IOException {
+        if (quantity <= 0)
+            throw new IllegalArgumentException("Quantity to add must be at least 1.");
+        long start = LibraryMetrics.start();
+        boolean updated = addCopiesLocked(title, quantity, now);
+        deliverNotices();
+        LibraryMetrics.record(LibraryMetrics.Op.UPDATE, start, updated);
+        return updated;
+    }
+
+    private boolean addCopiesLocked(String title, int quantity, long now) throws IOException {
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            int slot = slotFor(title);
+            if (slot < 0)
+                return false;
+            int[] waiters;
+            int handed = 0;
+            int total, available;
+            long dueEpoch = now + loanPeriodMillis;
+            synchronized (titleLock(slot)) {
+                inventory.addCopies(slot, quantity);
+                long seq = log.appendCopies(slot, quantity, now);
+                // The new copies go to the students waiting for the book first.
+                waiters = new int[Math.max(0, Math.min(inventory.available(slot), reservations.waiting(slot)))];
+                while (handed < waiters.length) {
+                    waiters[handed] = reservations.poll(slot);
+                    inventory.tryIssue(slot);
+                    seq = openLoan(waiters[handed], slot, 0, now, dueEpoch);
+                    handed++;
+                }
+                publish(slot, seq);
+                total = inventory.total(slot);
+                available = inventory.available(slot);
+            }
+            catalogWriter.updated(inventory.title(slot), total, available);
+            for (int i = 0; i < handed; i++)
+                handOver(waiters[i], inventory.title(slot), dueEpoch);
+            return true;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Removes a book from the library and writes its slot to the log (a DELETE_TITLE
+     * record, see addTitle).
+     * @return true if the book was found and deleted, false otherwise.
+     */
+    boolean deleteTitle(String title) throws IOException {
+        long start = LibraryMetrics.start();
+        boolean deleted = deleteTitleLocked(title);
+        deliverNotices();
+        if (deleted)
+            maybeSnapshot();
+        LibraryMetrics.record(LibraryMetrics.Op.DELETE, start, deleted);
+        return deleted;
+    }
+
+    /**
+     * Removes several books, taking every catalog write lock once for all of them instead
+     * of once per book (see deleteTitle). ShardedLibrary moves books with it.
+     * @return For each name, whether the book was found and deleted.
+     */
+    boolean[] deleteTitles(List<String> titles) throws IOException {
+        long start = LibraryMetrics.start();
+        boolean[] deleted = new boolean[titles.size()];
+        boolean any = false;
+        lockAll();
+        try {
+            for (int i = 0; i < deleted.length; i++)
+                any |= deleted[i] = deleteLocked(titles.get(i));
+        } finally {
+            unlockAll();
+        }
+        deliverNotices();
+        if (any)
+            maybeSnapshot();
+        LibraryMetrics.record(LibraryMetrics.Op.DELETE, start, any);
+        return deleted;
+    }
+
+    private boolean deleteTitleLocked(String title) throws IOException {
+        lockAll();
+        try {
+            return deleteLocked(title);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Deletes a book. Called with every catalog write lock held.
+     */
+    private boolean deleteLocked(String title) throws IOException {
+        TitleKey key = TitleKey.of(title);
+        if (!tree.containsNode(key))
+            return false;
+        tree.deleteKey(key);
+        titleCache.remove(key);
+        int slot = inventory.slotOf(key);
+        if (slot != InventoryStore.NOT_FOUND) {
+            log.appendDelete(slot, clock.millis());
+            // The name may have been typed in another case than it was stored in.
+            titles.remove(slot, inventory.title(slot));
+            cancelReservations(slot);
+            loanTable.detachBook(slot, inventory.total(slot));
+            catalogFile.remove(slot);
+        }
+        // Frees the book's slot so the next added book can reuse it.
+        inventory.remove(key);
+        catalog.remove(key);
+        catalogWriter.deleted(title);
+        return true;
+    }
+
+    /**
+     * Ends every reservation of a book that is being deleted and queues a notice for each.
+     * Every catalog write lock is held, so no other operation is using these students.
+     * Replaying the DELETE_TITLE record empties the queue again after a restart.
+     */
+    private void cancelReservations(int slot) {
+        String title = inventory.title(slot);
+        for (int id : reservations.clear(slot)) {
+            Student s = find(id);
+            if (s != null)
+                s.holds--;
+            notices.add(() -> {
+                for (ReservationListener l : listeners)
+                    l.reservationCancelled(id, title);
+            });
+        }
+    }
+
+    /**
+     * Puts a student in the queue for a book that has no copy left. The next copy returned
+     * (or added) is then issued to the first student in the queue automatically.
+     * Reservations count towards the borrowing limit.
+     * @param studentId The student's ID.
+     * @param title The name of the book.
+     * @param now The current time in epoch milliseconds.
+     * @return What happened.
+     */
+    ReserveResult reserve(int studentId, String title, long now) throws IOException {
+        ReserveResult result;
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            result = reserveLocked(studentId, title, now);
+        } finally {
+            read.unlock();
+        }
+        if (result == ReserveResult.RESERVED)
+            maybeSnapshot();
+        return result;
+    }
+
+    private ReserveResult reserveLocked(int studentId, String title, long now) throws IOException {
+        Student s = find(studentId);
+        if (s == null)
+            return ReserveResult.STUDENT_NOT_FOUND;
+
+        synchronized (s) {
+            int slot = slotFor(title);
+            if (slot == NOT_IN_TREE)
+                return ReserveResult.NOT_IN_LIBRARY;
+            if (slot == InventoryStore.NOT_FOUND)
+                return ReserveResult.MAPPING_ERROR;
+            if (loanTable.find(studentId, slot, title) != LoanTable.NONE)
+                return ReserveResult.ALREADY_ISSUED;
+            if (reservations.contains(slot, studentId))
+                return ReserveResult.ALREADY_RESERVED;
+            if (s.book_no + s.holds >= limitOf(s))
+                return ReserveResult.LIMIT_REACHED;
+
+            synchronized (titleLock(slot)) {
+                // Returns check the queue under this same lock, so a copy is either still
+                // on the shelf now or will be handed to this student: it cannot slip past.
+                if (inventory.available(slot) > 0)
+                    return ReserveResult.AVAILABLE;
+                reservations.add(slot, studentId);
+                log.append(TransactionLog.RESERVE, studentId, slot, now, 0);
+            }
+            s.holds++;
+            return ReserveResult.RESERVED;
+        }
+    }
+
+    /**
+     * Takes a student out of the queue for a book.
+     * @return true if the student was waiting for the book.
+     */
+    boolean cancelReservation(int studentId, String title, long now) throws IOException {
+        boolean cancelled;
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            cancelled = cancelLocked(studentId, title, now);
+        } finally {
+            read.unlock();
+        }
+        if (cancelled)
+            maybeSnapshot();
+        return cancelled;
+    }
+
+    private boolean cancelLocked(int studentId, String title, long now) throws IOException {
+        Student s = find(studentId);
+        if (s == null)
+            return false;
+        synchronized (s) {
+            int slot = inventory.slotOf(title);
+            if (slot == InventoryStore.NOT_FOUND)
+                return false;
+            synchronized (titleLock(slot)) {
+                if (!reservations.remove(slot, studentId))
+                    return false;
+                log.append(TransactionLog.CANCEL_RESERVATION, studentId, slot, now, 0);
+            }
+            s.holds--;
+            return true;
+        }
+    }
+
+    /**
+     * @return How many students are waiting for a book (0 if the book does not exist).
+     */
+    int waitingFor(String title) {
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            int slot = inventory.slotOf(title);
+            return slot == InventoryStore.NOT_FOUND ? 0 : reservations.waiting(slot);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * @return A student's place in the queue for a book (1 = next in line), or 0 if not waiting.
+     */
+    int queuePosition(int studentId, String title) {
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            int slot = inventory.slotOf(title);
+            return slot == InventoryStore.NOT_FOUND ? 0 : reservations.position(slot, studentId);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * @return The number of reservations waiting, over all books.
+     */
+    int reservationsWaiting() {
+        return reservations.size();
+    }
+
+    /**
+     * Registers a listener that is told when a reserved book is issued or a reservation ends.
+     */
+    void addReservationListener(ReservationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Runs the notices queued by hand-overs and cancellations. Called once the thread has
+     * released all of its locks, so a listener can never deadlock with a desk.
+     */
+    private void deliverNotices() {
+        Runnable notice;
+        while ((notice = notices.poll()) != null)
+            notice.run();
+    }
+
+    /**
+     * Builds the librarian's reports (see ReportEngine) from the catalog as it is now and
+     * every log record written so far. No lock is held while the report is built.
+     * @param top How many books to list per ranking (0 or less for all of them).
+     */
+    ReportEngine.Report report(int top) throws IOException {
+        log.sync();
+        long records = log.size();
+        return ReportEngine.run(new File(snapshotDir, "transactions.log"), records, catalog.snapshot(), students, top);
+    }
+
+    /**
+     * Lists the open loans due before a time, earliest first.
+     * Cost is O(log n + k) per OverdueIndex stripe for k loans listed, however many loans are open.
+     * @param until Loans due before this time (epoch milliseconds) are listed.
+     *              Pass the current time to list the overdue loans.
+     * @param limit The most loans to list.
+     * @return The loans.
+     */
+    List<Loan> loansDueBefore(long until, int limit) {
+        return loansDueBetween(Long.MIN_VALUE, until, limit);
+    }
+
+    /**
+     * Lists the open loans due in a time range, earliest first. The limit counts only loans
+     * in the range, so "due within the next hours" is not crowded out by overdue loans.
+     * @param from Loans due at or after this time (epoch milliseconds) are listed.
+     *             Pass the current time to leave out the overdue loans.
+     * @param until Loans due before this time are listed.
+     * @param limit The most loans to list.
+     * @return The loans.
+     */
+    List<Loan> loansDueBetween(long from, long until, int limit) {
+        long[][] found = overdue.dueBetween(from, until, limit);
+        List<Loan> loans = new ArrayList<>(found[0].length);
+        for (int i = 0; i < found[0].length; i++) {
+            // The loan may be returned right now, and its number even used for a new loan;
+            // then it is gone or has another due date.
+            Loan loan = loanTable.describe((int) found[0][i]);
+            if (loan != null && loan.dueEpoch == found[1][i])
+                loans.add(loan);
+        }
+        return loans;
+    }
+
+    /**
+     * Lists the books a student has. Takes O(k) for a student with k books.
+     * @return The loans, most recent first (none if the student does not exist).
+     */
+    List<Loan> loansOf(int studentId) {
+        int[] found = loanTable.ofStudent(studentId);
+        List<Loan> loans = new ArrayList<>(found.length);
+        for (int l : found) {
+            // As in loansDueBefore(), the loan may have been returned in the meantime.
+            Loan loan = loanTable.describe(l);
+            if (loan != null && loan.studentId == studentId)
+                loans.add(loan);
+        }
+        return loans;
+    }
+
+    /**
+     * Finds who has one copy of a book, in O(1).
+     * @param title The name of the book.
+     * @param copy The copy number (see LoanTable).
+     * @return The loan, or null if the copy is not out or the book does not exist.
+     */
+    Loan holderOf(String title, int copy) {
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            int slot = inventory.slotOf(title);
+            if (slot == InventoryStore.NOT_FOUND)
+                return null;
+            Loan loan = loanTable.describe(loanTable.ofCopy(slot, copy));
+            // The copy may be out under a deleted book that had the same slot before.
+            return loan != null && loan.title.equalsIgnoreCase(title) ? loan : null;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * @return How many books a student may have issued and reserved at once. The limit of
+     *         a student's stream is looked up once, when the library opens (or on first use
+     *         for a student registered later), and kept in the Student. Shards in one JVM
+     *         share their students, so a student keeps the limit of the first shard opened.
+     */
+    int limitOf(Student s) {
+        int limit = s.limit;
+        if (limit < 0)
+            s.limit = limit = limits.limitFor(s.Stream);
+        return limit;
+    }
+
+    /**
+     * @return The height of the book tree (0 when it is empty).
+     */
+    int treeHeight() {
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            return tree.height(tree.root);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * @return The number of books currently issued.
+     */
+    int openLoans() {
+        return loanTable.size();
+    }
+
+    /**
+     * Autocomplete: finds the books whose name starts with some text, ignoring case.
+     * @param prefix The start of the book name.
+     * @param limit The most names to return.
+     * @return The matching names, in alphabetical order.
+     */
+    List<String> searchPrefix(String prefix, int limit) {
+        long start = LibraryMetrics.start();
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            return tree.startingWith(prefix, limit);
+        } finally {
+            read.unlock();
+            LibraryMetrics.record(LibraryMetrics.Op.SEARCH, start, true);
+        }
+    }
+
+    /**
+     * Finds the books whose name contains some text anywhere, ignoring case.
+     * @param text The text to look for.
+     * @param limit The most names to return.
+     * @return The matching names, in alphabetical order.
+     */
+    List<String> searchText(String text, int limit) {
+        long start = LibraryMetrics.start();
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            return titles.containing(text, limit, inventory, tree);
+        } finally {
+            read.unlock();
+            LibraryMetrics.record(LibraryMetrics.Op.SEARCH, start, true);
+        }
+    }
+
+    /**
+     * Lists the books whose name lies between two names (both included, ignoring case).
+     * @param limit The most names to return.
+     * @return The names, in alphabetical order.
+     */
+    List<String> titlesBetween(String from, String to, int limit) {
+        long start = LibraryMetrics.start();
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            return tree.between(from, to, limit);
+        } finally {
+            read.unlock();
+            LibraryMetrics.record(LibraryMetrics.Op.SEARCH, start, true);
+        }
+    }
+
+    /**
+     * Pages through the catalog in alphabetical order: lists the books that come after
+     * a name (usually the last name of the previous page).
+     * @param limit The most names to return.
+     * @return The names, in alphabetical order.
+     */
+    List<String> titlesAfter(String cursor, int limit) {
+        long start = LibraryMetrics.start();
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            return tree.after(cursor, limit);
+        } finally {
+            read.unlock();
+            LibraryMetrics.record(LibraryMetrics.Op.SEARCH, start, true);
+        }
+    }
+
+    /**
+     * Pages through the catalog in alphabetical order by position.
+     * @param offset The position of the first book, starting at 0.
+     * @param limit The most names to return.
+     * @return The names, in alphabetical order.
+     */
+    List<String> titlePage(int offset, int limit) {
+        long start = LibraryMetrics.start();
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            return tree.page(offset, limit);
+        } finally {
+            read.unlock();
+            LibraryMetrics.record(LibraryMetrics.Op.SEARCH, start, true);
+        }
+    }
+
+    /**
+     * @return The number of books whose name comes before a name in alphabetical order
+     *         (the position of the book, if it exists).
+     */
+    int titleRank(String title) {
+        ReentrantReadWriteLock.ReadLock read = readLock();
+        read.lock();
+        try {
+            return tree.rank(title);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Adds every new book from a catalog file in one bulk pass.
+     * Books already in the library, or repeated in the file, are skipped (names are
+     * compared ignoring case, like containsNode()). Instead of inserting the books into
+     * the tree one at a time, the new names are sorted, merged with the tree's names and
+     * the tree is rebuilt once with buildFromSorted(), which takes O(n + m).
+     * Each new book is written to the log like addTitle() does, so an import costs no
+     * snapshot of its own and many small imports (LibraryBatch) stay cheap.
+     * Rows with negative counts, or more copies available than in total, are dropped
+     * and counted in rows.skipped.
+     * @param rows The rows read by BulkCatalog.read().
+     * @return How many books were added.
+     */
+    int importCatalog(BulkCatalog.Rows rows) throws IOException {
+        rows.dropInvalid();
+        int added = importLocked(rows);
+        if (added > 0)
+            maybeSnapshot();
+        return added;
+    }
+
+    private int importLocked(BulkCatalog.Rows rows) throws IOException {
+        int[] order = BulkCatalog.sortedOrder(rows.titles, rows.count);
+        lockAll();
+        try {
+            List<TitleKey> existing = tree.keysInOrder();
+            TitleKey[] merged = new TitleKey[existing.size() + rows.count];
+            inventory.ensureCapacity(inventory.size() + rows.count);
+            int m = 0, e = 0, added = 0;
+            long now = clock.millis();
+            TitleKey last = null;
+            for (int r : order) {
+                String title = rows.titles[r];
+                TitleKey key = TitleKey.of(title);
+                if (last != null && last.compareTo(key) == 0)
+                    continue; // Repeated in the file; the first row wins.
+                last = key;
+                // Copy the existing names that come first; skip the row if it is one of them.
+                while (e < existing.size() && existing.get(e).compareTo(key) < 0)
+                    merged[m++] = existing.get(e++);
+                if (e < existing.size() && existing.get(e).compareTo(key) == 0)
+                    continue;
+                merged[m++] = key;
+                int slot = inventory.add(key, rows.totals[r], rows.available[r]);
+                long seq = log.appendTitle(slot, title, rows.totals[r], rows.available[r], now);
+                titles.add(slot, title);
+                catalogFile.add(slot, title, rows.totals[r], rows.available[r], seq);
+                added++;
+            }
+            while (e < existing.size())
+                merged[m++] = existing.get(e++);
+
+            if (added > 0) {
+                tree.buildFromSorted(merged, m);
+                catalog.reset(merged, m, inventory);
+                catalogWriter.rewrite();
+            }
+            return added;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Writes every book to a catalog file in alphabetical order (see BulkCatalog).
+     * The books come from a catalog snapshot, so the export takes no lock and issues and
+     * returns carry on while it runs; the file still shows the catalog at one moment.
+     * @return How many books were written.
+     */
+    int exportCatalog(File file) throws IOException {
+        try (Writer out = BulkCatalog.create(file)) {
+            int written = 0;
+            for (PersistentCatalog.Book book : catalog()) {
+                BulkCatalog.writeRow(out, file, book.title, book.total, book.available);
+                written++;
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Saves a snapshot of the whole library while no other operation is running,
+     * so the snapshot matches the log position exactly.
+     * @return The log sequence number the snapshot covers.
+     */
+    long snapshot() throws IOException {
+        lockAll();
+        try {
+            log.sync();
+            long seq = log.size();
+            // The catalog file is synced first, so it is never older than the newest snapshot.
+            catalogFile.sync(seq);
+            LibrarySnapshot.write(snapshotDir, seq, inventory, students, loanTable, reservations);
+            lastSnapshot = seq;
+            return seq;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Saves a snapshot if enough log records were written since the last one.
+     * Only one thread does this at a time; the others carry on.
+     */
+    private void maybeSnapshot() throws IOException {
+        if (log.size() - lastSnapshot < snapshotEvery || !snapshotRunning.compareAndSet(false, true))
+            return;
+        try {
+            if (log.size() - lastSnapshot >= snapshotEvery)
+                snapshot();
+        } finally {
+            snapshotRunning.set(false);
+        }
+    }
+
+    /**
+     * Saves a final snapshot, writes the last catalog changes to the catalog files and
+     * closes the transaction log and the catalog file.
+     */
+    void close() throws IOException {
+        try {
+            snapshot();
+            catalogWriter.close();
+        } finally {
+            try {
+                log.close();
+            } finally {
+                catalogFile.close();
+            }
+        }
+    }
+
+    /**
+     * @return The current time of the service's clock, in epoch milliseconds.
+     *         Callers pass it to issue(), returnBook() and the other methods that take 'now'.
+     */
+    long now() {
+        return clock.millis();
+    }
+
+    /**
+     * @return The whole catalog at this moment, for listings and reports. Taking and reading
+     *         it needs no lock, and later changes do not show up in it.
+     */
+    PersistentCatalog.Snapshot catalog() {
+        return catalog.snapshot();
+    }
+
+    StudentRegistry students() {
+        return students;
+    }
+
+    library_management tree() {
+        return tree;
+    }
+
+    InventoryStore inventory() {
+        return inventory;
+    }
+
+    TitleCache titleCache() {
+        return titleCache;
+    }
+
+    /**
+     * Finds a registered student. The menus use this to check the ID before asking for a book.
+     * @return The student, or null if no student has this ID.
+     */
+    Student student(int id) {
+        return find(id);
+    }
+
+    /**
+     * Finds the slot of a book to issue, reserve or add copies of. Popular books come
+     * straight from the title cache, without making a key for the name; others are looked
+     * up in the book tree and the inventory store and then cached under the stored key. Must be called with a catalog read lock held,
+     * so the book cannot be deleted in between.
+     * @return The slot, NOT_IN_TREE if the book is not in the library, or
+     *         InventoryStore.NOT_FOUND if the tree and the inventory store disagree.
+     */
+    private int slotFor(String title) {
+        int slot = titleCache.get(title);
+        if (slot != TitleCache.MISS)
+            return slot;
+        TitleKey key = TitleKey.of(title);
+        if (!tree.containsNode(key))
+            return NOT_IN_TREE;
+        slot = inventory.slotOf(key);
+        if (slot != InventoryStore.NOT_FOUND)
+            titleCache.put(inventory.key(slot), slot);
+        return slot;
+    }
+
+    /**
+     * @return The catalog read lock of the calling thread's stripe.
+     */
+    private ReentrantReadWriteLock.ReadLock readLock() {
+        int stripe = (int) Thread.currentThread().getId() & (catalogLocks.length - 1);
+        return catalogLocks[stripe].readLock();
+    }
+
+    private void lockAll() {
+        for (ReentrantReadWriteLock l : catalogLocks)
+            l.writeLock().lock();
+    }
+
+    private void unlockAll() {
+        for (int i = catalogLocks.length - 1; i >= 0; i--)
+            catalogLocks[i].writeLock().unlock();
+    }
+
+    /**
+     * Publishes a book's current quantities to the catalog snapshots and the catalog file.
+     * Must be called while holding the book's title lock (or every catalog write lock).
+     * @param seq The sequence number of the last log record that changed them.
+     */
+    private void publish(int slot, long seq) {
+        catalog.setCounts(slot, inventory.total(slot), inventory.available(slot));
+        persist(slot, seq);
+    }
+
+    /**
+     * Writes a book's current quantities to the catalog file (see publish()).
+     */
+    private void persist(int slot, long seq) {
+        catalogFile.setCounts(slot, inventory.total(slot), inventory.available(slot), seq);
+    }
+
+    private Object titleLock(int slot) {
+        return titleLocks[(slot * 0x9E3779B9 >>> 16) & (titleLocks.length - 1)];
+    }
+
+    private Student find(int id) {
+        return students.get(id);
+    }
+}
@@ -0,0 +1,417 @@
+import java.util.Arrays;
+
+/**
+ * The LoanTable class records every book that is out: which student has it, which copy
+ * of which book it is, and when it is due. It replaces the two book1/book2 fields a
+ * student used to have, so a student can borrow as many books as their limit allows
+ * (see BorrowingLimits), including several copies of the same book.
+ *
+ * Every copy of a book has a number (1, 2, 3, ...), so a loan is named by the book's slot
+ * (see InventoryStore) and the copy number. Loans are kept in a pool of parallel arrays
+ * and found in O(1) two ways:
+ *   - by copy: a hash table from (slot, copy) to loan answers "who has copy 3 of this book";
+ *   - by student: a hash table from student ID to the student's first loan, with the
+ *     student's loans linked to each other, answers "what does this student have".
+ * A loan number stays the same for as long as the book is out; OverdueIndex uses it.
+ * When a book is deleted while copies are out, its loans are detached (see detachBook()):
+ * they get slot NONE and keep their copy number, so the slot can go to a new book without
+ * the old copies being taken for the new book's. Loans with slot NONE are only found by student.
+ *
+ * The table is split into STRIPES stripes, each with its own pool, hash tables and lock,
+ * so issues and returns of different books do not wait for each other. A loan lives in
+ * the stripe picked by the low bits of its book's slot (a loan with slot NONE in a stripe
+ * picked by its student), and the low STRIPE_BITS bits of its number say which stripe. Only the questions
+ * about one student ("what does this student have") look at every stripe.
+ *
+ * The methods of a stripe are synchronized on it. They are short and never take another
+ * lock, so the table can be used while LoanService holds its student and title locks.
+ */
+class LoanTable {
+    static final int NONE = -1;
+    static final int STRIPE_BITS = 6;
+    static final int STRIPES = 1 << STRIPE_BITS; // OverdueIndex has a tree for each stripe.
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    LoanTable(int expectedLoans) {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(expectedLoans / STRIPES);
+    }
+
+    /**
+     * Records a new loan.
+     * @param studentId The student who borrows the book.
+     * @param bookSlot The book's slot, or NONE if the book is no longer in the catalog.
+     * @param copyNo The copy number, or 0 to pick a copy that is not out.
+     * @param total How many copies the book has (copies are picked from 1 to 'total').
+     * @param bookKey The name of the book (the key the inventory store keeps for it).
+     * @param dueEpoch When the book has to be returned (epoch milliseconds).
+     * @return The loan number.
+     */
+    int add(int studentId, int bookSlot, int copyNo, int total, TitleKey bookKey, long dueEpoch) {
+        int s = bookSlot == NONE ? (studentId * 0x9E3779B9 >>> 16) & (STRIPES - 1) : stripeOfSlot(bookSlot);
+        return stripes[s].add(studentId, bookSlot, copyNo, total, bookKey, dueEpoch) << STRIPE_BITS | s;
+    }
+
+    /**
+     * Detaches the loans of a book that is being deleted: they stay with their students,
+     * but no longer belong to the slot (see the class comment).
+     * @param total How many copies the book has (its copies are numbered 1 to 'total').
+     */
+    void detachBook(int bookSlot, int total) {
+        stripes[stripeOfSlot(bookSlot)].detachBook(bookSlot, total);
+    }
+
+    /**
+     * Finds a detached loan (see detachBook()) by its copy number and due date, as the
+     * RETURN_DELETED log record names it.
+     * @return The loan number, or NONE if the student has no such loan.
+     */
+    int findDetached(int studentId, int copyNo, long dueEpoch) {
+        for (int s = 0; s < STRIPES; s++) {
+            int l = stripes[s].findDetached(studentId, copyNo, dueEpoch);
+            if (l != NONE)
+                return l << STRIPE_BITS | s;
+        }
+        return NONE;
+    }
+
+    /**
+     * Removes a loan (the book came back).
+     */
+    void remove(int loan) {
+        stripeOf(loan).remove(loan >>> STRIPE_BITS);
+    }
+
+    /**
+     * Finds the loan of a book by its name (ignoring case, compared with the loans' keys
+     * like TitleKey.matches() does, so no key is made for it). If the student has several
+     * copies of it, the one due first is chosen. The book's own stripe is searched first;
+     * only if the loan is not there (the book was deleted since it was issued, or is not
+     * out at all) are the other stripes searched.
+     * @param bookSlot The book's slot now, or a negative number if it is not in the catalog.
+     * @return The loan number, or NONE if the student does not have the book.
+     */
+    int find(int studentId, int bookSlot, String bookTitle) {
+        int home = bookSlot < 0 ? NONE : stripeOfSlot(bookSlot);
+        if (home != NONE) {
+            int l = stripes[home].find(studentId, bookTitle);
+            if (l != NONE)
+                return l << STRIPE_BITS | home;
+        }
+        int best = NONE;
+        long bestDue = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            if (s == home)
+                continue;
+            Stripe stripe = stripes[s];
+            synchronized (stripe) {
+                int l = stripe.find(studentId, bookTitle);
+                if (l != NONE && (best == NONE || stripe.due[l] < bestDue)) {
+                    best = l << STRIPE_BITS | s;
+                    bestDue = stripe.due[l];
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The loan of one copy of a book, or NONE if that copy is not out.
+     */
+    int ofCopy(int bookSlot, int copyNo) {
+        int s = stripeOfSlot(bookSlot);
+        int l = stripes[s].ofCopy(bookSlot, copyNo);
+        return l == NONE ? NONE : l << STRIPE_BITS | s;
+    }
+
+    /**
+     * @return The student's loans, the latest due first (for loans of the same length,
+     *         that is the most recent first).
+     */
+    int[] ofStudent(int studentId) {
+        int[] loans = new int[4];
+        long[] dues = new long[4];
+        int n = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes[s];
+            synchronized (stripe) {
+                for (int l = stripe.byStudent.get(studentId); l != NONE; l = stripe.nextOfStudent[l]) {
+                    if (n == loans.length) {
+                        loans = Arrays.copyOf(loans, n * 2);
+                        dues = Arrays.copyOf(dues, n * 2);
+                    }
+                    // Insertion sort: a student has only a few loans.
+                    int i = n++;
+                    for (; i > 0 && dues[i - 1] < stripe.due[l]; i--) {
+                        loans[i] = loans[i - 1];
+                        dues[i] = dues[i - 1];
+                    }
+                    loans[i] = l << STRIPE_BITS | s;
+                    dues[i] = stripe.due[l];
+                }
+            }
+        }
+        return Arrays.copyOf(loans, n);
+    }
+
+    int student(int loan) {
+        return stripeOf(loan).student(loan >>> STRIPE_BITS);
+    }
+
+    int slot(int loan) {
+        return stripeOf(loan).slot(loan >>> STRIPE_BITS);
+    }
+
+    int copy(int loan) {
+        return stripeOf(loan).copy(loan >>> STRIPE_BITS);
+    }
+
+    String title(int loan) {
+        return stripeOf(loan).title(loan >>> STRIPE_BITS);
+    }
+
+    long due(int loan) {
+        return stripeOf(loan).due(loan >>> STRIPE_BITS);
+    }
+
+    /**
+     * @return A Loan describing a loan number, or null if it is not in use.
+     */
+    Loan describe(int loan) {
+        return loan < 0 ? null : stripeOf(loan).describe(loan >>> STRIPE_BITS);
+    }
+
+    /**
+     * @return The number of books out.
+     */
+    int size() {
+        int size = 0;
+        for (Stripe s : stripes)
+            size += s.size();
+        return size;
+    }
+
+    /**
+     * Calls a visitor for every loan, stripe by stripe and in loan order within a stripe.
+     */
+    void forEach(LoanVisitor visitor) {
+        for (int s = 0; s < STRIPES; s++)
+            stripes[s].forEach(s, visitor);
+    }
+
+    /**
+     * Receives the loans from forEach().
+     */
+    interface LoanVisitor {
+        void visit(int loan, int studentId, int slot, int copy, String title, long dueEpoch);
+    }
+
+    private Stripe stripeOf(int loan) {
+        return stripes[loan & (STRIPES - 1)];
+    }
+
+    /**
+     * @return The stripe of a book. Slots are handed out in order, so their low bits
+     *         spread the books evenly, and the rest of the slot numbers a stripe's books densely.
+     */
+    private static int stripeOfSlot(int bookSlot) {
+        return bookSlot & (STRIPES - 1);
+    }
+
+    /**
+     * One stripe of the table: the loans of the books whose slots end in its number. Its own loan
+     * numbers start at 0; LoanTable adds the stripe number in the low bits.
+     */
+    private static final class Stripe {
+        // The loan pool. Free loans are chained through nextOfStudent[].
+        private int[] student;
+        private int[] slot;
+        private int[] copy;
+        private TitleKey[] key; // The name the book had when it was issued (it may be deleted since).
+        private long[] due;
+        private int[] nextOfStudent;
+        private int[] prevOfStudent;
+        private int free = NONE;
+        private int used; // Loans handed out so far; those from 'used' on were never used.
+        private int size;
+
+        private final LongIntMap byCopy; // (slot, copy) to loan.
+        private final LongIntMap byStudent; // Student ID to the student's most recent loan.
+        // (A key missing from either table gives LongIntMap.MISSING, which is NONE.)
+
+        // Per slot of this stripe (slot >>> STRIPE_BITS): the copy number to try first for
+        // the next loan (see pickCopy()).
+        private int[] nextCopy = new int[0];
+
+        Stripe(int expectedLoans) {
+            int n = Math.max(16, expectedLoans);
+            student = new int[n];
+            slot = new int[n];
+            copy = new int[n];
+            key = new TitleKey[n];
+            due = new long[n];
+            nextOfStudent = new int[n];
+            prevOfStudent = new int[n];
+            byCopy = new LongIntMap(n);
+            byStudent = new LongIntMap(n);
+        }
+
+        synchronized int add(int studentId, int bookSlot, int copyNo, int total, TitleKey bookKey, long dueEpoch) {
+            if (bookSlot == NONE)
+                copyNo = Math.max(0, copyNo); // A detached loan keeps its copy number.
+            else if (copyNo <= 0)
+                copyNo = pickCopy(bookSlot, total);
+            int loan = newLoan();
+            student[loan] = studentId;
+            slot[loan] = bookSlot;
+            copy[loan] = copyNo;
+            key[loan] = bookKey;
+            due[loan] = dueEpoch;
+
+            // The new loan goes to the front of the student's list.
+            int head = byStudent.get(studentId);
+            prevOfStudent[loan] = NONE;
+            nextOfStudent[loan] = head;
+            if (head != NONE)
+                prevOfStudent[head] = loan;
+            byStudent.put(studentId, loan);
+            if (bookSlot != NONE)
+                byCopy.put(copyKey(bookSlot, copyNo), loan);
+            size++;
+            return loan;
+        }
+
+        synchronized void remove(int loan) {
+            int next = nextOfStudent[loan];
+            int prev = prevOfStudent[loan];
+            if (prev != NONE)
+                nextOfStudent[prev] = next;
+            else if (next != NONE)
+                byStudent.put(student[loan], next);
+            else
+                byStudent.remove(student[loan]);
+            if (next != NONE)
+                prevOfStudent[next] = prev;
+
+            if (slot[loan] != NONE)
+                byCopy.remove(copyKey(slot[loan], copy[loan]));
+            size--;
+            key[loan] = null;
+            nextOfStudent[loan] = free;
+            free = loan;
+        }
+
+        synchronized int find(int studentId, String bookTitle) {
+            int best = NONE;
+            for (int l = byStudent.get(studentId); l != NONE; l = nextOfStudent[l])
+                if (key[l].matches(bookTitle) && (best == NONE || due[l] < due[best]))
+                    best = l;
+            return best;
+        }
+
+        synchronized void detachBook(int bookSlot, int total) {
+            for (int c = 1; c <= total; c++) {
+                int l = byCopy.get(copyKey(bookSlot, c));
+                if (l != NONE) {
+                    byCopy.remove(copyKey(bookSlot, c));
+                    slot[l] = NONE;
+                }
+            }
+        }
+
+        synchronized int findDetached(int studentId, int copyNo, long dueEpoch) {
+            for (int l = byStudent.get(studentId); l != NONE; l = nextOfStudent[l])
+                if (slot[l] == NONE && copy[l] == copyNo && due[l] == dueEpoch)
+                    return l;
+            return NONE;
+        }
+
+        synchronized int ofCopy(int bookSlot, int copyNo) {
+            return byCopy.get(copyKey(bookSlot, copyNo));
+        }
+
+        synchronized int student(int loan) {
+            return student[loan];
+        }
+
+        synchronized int slot(int loan) {
+            return slot[loan];
+        }
+
+        synchronized int copy(int loan) {
+            return copy[loan];
+        }
+
+        synchronized String title(int loan) {
+            return key[loan].title;
+        }
+
+        synchronized long due(int loan) {
+            return due[loan];
+        }
+
+        synchronized Loan describe(int loan) {
+            if (loan >= used || key[loan] == null)
+                return null;
+            return new Loan(student[loan], key[loan].title, copy[loan], due[loan]);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void forEach(int stripe, LoanVisitor visitor) {
+            for (int l = 0; l < used; l++)
+                if (key[l] != null)
+                    visitor.visit(l << STRIPE_BITS | stripe, student[l], slot[l], copy[l], key[l].title, due[l]);
+        }
+
+        /**
+         * Picks a copy number of a book that is not out, trying the numbers from 1 to 'total'
+         * round-robin from where the last search stopped. Usually the first number tried is free.
+         */
+        private int pickCopy(int bookSlot, int total) {
+            int i = bookSlot >>> STRIPE_BITS;
+            if (i >= nextCopy.length)
+                nextCopy = Arrays.copyOf(nextCopy, Math.max(i + 1, nextCopy.length * 2));
+            int c = nextCopy[i];
+            total = Math.max(1, total);
+            for (int tries = 0; ; tries++) {
+                // After one round every copy is taken (only if the counts are off), so go on
+                // above 'total'.
+                if (tries < total)
+                    c = c % total + 1;
+                else
+                    c++;
+                if (byCopy.get(copyKey(bookSlot, c)) == NONE)
+                    break;
+            }
+            nextCopy[i] = c;
+            return c;
+        }
+
+        private int newLoan() {
+            if (free != NONE) {
+                int l = free;
+                free = nextOfStudent[l];
+                return l;
+            }
+            if (used == student.length) {
+                int n = used * 2;
+                student = Arrays.copyOf(student, n);
+                slot = Arrays.copyOf(slot, n);
+                copy = Arrays.copyOf(copy, n);
+                key = Arrays.copyOf(key, n);
+                due = Arrays.copyOf(due, n);
+                nextOfStudent = Arrays.copyOf(nextOfStudent, n);
+                prevOfStudent = Arrays.copyOf(prevOfStudent, n);
+            }
+            return used++;
+        }
+    }
+
+    private static long copyKey(int bookSlot, int copyNo) {
+        return (long) bookSlot << 32 | (copyNo & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.Arrays;
+
+/**
+ * The LongIntMap class is a hash table from long keys to int values, used where the
+ * library needs such a table on a hot path (LoanTable, OverdueIndex, ReservationQueue):
+ * it keeps keys and values in two plain arrays, so it stores no objects and its lookups
+ * and updates never allocate.
+ *
+ * It uses linear probing and is kept at most half full. Long.MIN_VALUE marks an empty
+ * bucket, so it cannot be used as a key. It is not thread-safe; its users call it with
+ * their own lock held.
+ */
+class LongIntMap {
+    static final int MISSING = -1;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * Creates an empty table.
+     * @param expected The number of keys it should hold without growing.
+     */
+    LongIntMap(int expected) {
+        keys = newTable(Hashing.tableSizeFor(expected));
+        values = new int[keys.length];
+    }
+
+    /**
+     * @return The value of a key, or MISSING if the key is not in the table.
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = Hashing.hash(key) & mask; keys[i] != EMPTY; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return values[i];
+        return MISSING;
+    }
+
+    /**
+     * Sets the value of a key, adding the key if it is not in the table.
+     */
+    void put(long key, int value) {
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = Hashing.hash(key) & mask;
+        while (keys[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & mask;
+        if (keys[i] == EMPTY)
+            size++;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * Deletes a key, if it is in the table (see Hashing.fillsGap()).
+     */
+    void remove(long key) {
+        int mask = keys.length - 1;
+        int i = Hashing.hash(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY)
+                return;
+            i = (i + 1) & mask;
+        }
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            if (Hashing.fillsGap(Hashing.hash(keys[j]) & mask, gap, j, mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+    }
+
+    /**
+     * @return The number of keys in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    private void rehash(int newSize) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = newTable(newSize);
+        values = new int[newSize];
+        int mask = newSize - 1;
+        for (int b = 0; b < oldKeys.length; b++) {
+            if (oldKeys[b] == EMPTY)
+                continue;
+            int i = Hashing.hash(oldKeys[b]) & mask;
+            while (keys[i] != EMPTY)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[b];
+            values[i] = oldValues[b];
+        }
+    }
+
+    private static long[] newTable(int size) {
+        long[] t = new long[size];
+        Arrays.fill(t, EMPTY);
+        return t;
+    }
+}
@@ -0,0 +1,298 @@
+import java.util.Arrays;
+
+/**
+ * The OverdueIndex class keeps every open loan ordered by its due date, so the
+ * librarian can list overdue loans (or loans due soon) without looking at every student.
+ *
+ * The loans are kept in a treap: a binary search tree ordered by due date (and loan
+ * number, for equal dates) whose nodes also carry a random priority, kept in heap order by
+ * rotations, so the tree stays about 2 ln n levels deep whatever order loans arrive in. Its
+ * nodes are stored in parallel arrays, so adding and removing a loan never allocates. A
+ * loan is named by its loan number in LoanTable, and a small hash table remembers which
+ * node holds each loan, so a returned loan is removed in O(log n) instead of being searched for.
+ *
+ * Listing the loans due in a time range walks down to the first loan due at or after the
+ * start of the range and then goes on in order, so it costs O(log n + k) for k loans
+ * listed, however many loans are due before the range.
+ *
+ * There is one tree for each stripe of the LoanTable (the low bits of a loan number say
+ * which), each with its own lock, so issues and returns of different books do not wait
+ * for each other. The methods of a tree are synchronized on it. They are short, and a tree
+ * is never locked while another lock is taken, so it cannot deadlock with LoanService's locks.
+ */
+class OverdueIndex {
+    private static final int NIL = -1;
+
+    private final Tree[] stripes = new Tree[LoanTable.STRIPES];
+
+    OverdueIndex(int expectedLoans) {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Tree(expectedLoans / stripes.length, i);
+    }
+
+    /**
+     * Adds an open loan. A loan that is already in the index just gets the new due date.
+     */
+    void add(int loan, long dueEpoch) {
+        stripeOf(loan).add(loan, dueEpoch);
+    }
+
+    /**
+     * Removes a loan that was returned.
+     * @return true if the loan was in the index.
+     */
+    boolean remove(int loan) {
+        return stripeOf(loan).remove(loan);
+    }
+
+    /**
+     * Finds the earliest loans due before a time, earliest first.
+     * @param until Loans due strictly before this time (epoch milliseconds) are returned.
+     * @param limit The most loans to return.
+     * @return The loan numbers in [0] and due dates in [1] of the loans found.
+     */
+    long[][] dueBefore(long until, int limit) {
+        return dueBetween(Long.MIN_VALUE, until, limit);
+    }
+
+    /**
+     * Finds the earliest loans due in a time range, earliest first. Each stripe lists its own
+     * earliest 'limit' loans in the range, and the lists are merged, so the cost is
+     * O(s (log n + k)) for s stripes and k loans listed. Loans due before 'from' are never
+     * looked at.
+     * @param from Loans due at or after this time (epoch milliseconds) are returned.
+     * @param until Loans due strictly before this time are returned.
+     * @param limit The most loans to return.
+     * @return The loan numbers in [0] and due dates in [1] of the loans found.
+     */
+    long[][] dueBetween(long from, long until, int limit) {
+        long[][][] lists = new long[stripes.length][][];
+        int available = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            lists[s] = stripes[s].dueBetween(from, until, limit);
+            available += lists[s][0].length;
+        }
+        int n = Math.max(0, Math.min(limit, available));
+        long[] foundKeys = new long[n];
+        long[] foundDue = new long[n];
+        int[] next = new int[stripes.length];
+        for (int found = 0; found < n; found++) {
+            int best = -1;
+            for (int s = 0; s < lists.length; s++)
+                if (next[s] < lists[s][1].length
+                        && (best < 0 || lists[s][1][next[s]] < lists[best][1][next[best]]))
+                    best = s;
+            foundKeys[found] = lists[best][0][next[best]];
+            foundDue[found] = lists[best][1][next[best]++];
+        }
+        return new long[][] { foundKeys, foundDue };
+    }
+
+    /**
+     * @return The number of open loans.
+     */
+    int size() {
+        int size = 0;
+        for (Tree t : stripes)
+            size += t.size();
+        return size;
+    }
+
+    private Tree stripeOf(int loan) {
+        return stripes[loan & (stripes.length - 1)];
+    }
+
+    /**
+     * The loans of one LoanTable stripe: a treap with its node table.
+     */
+    private static final class Tree {
+        // Node pool: node i holds loan keys[i], due at due[i]. Free nodes are chained through left[].
+        private long[] due;
+        private long[] keys;
+        private int[] left;
+        private int[] right;
+        private int[] priority;
+        private int root = NIL;
+        private int free = NIL;
+        private int used; // Nodes handed out so far; those from 'used' on were never used.
+        private int size;
+        private int seed; // For the priorities (xorshift).
+
+        private final LongIntMap nodeOf; // Loan number to node.
+
+        Tree(int expectedLoans, int stripe) {
+            int n = Math.max(16, expectedLoans);
+            due = new long[n];
+            keys = new long[n];
+            left = new int[n];
+            right = new int[n];
+            priority = new int[n];
+            seed = 0x9E3779B9 * (stripe + 1);
+            nodeOf = new LongIntMap(n);
+        }
+
+        synchronized void add(int loan, long dueEpoch) {
+            int node = nodeOf.get(loan);
+            if (node != LongIntMap.MISSING) {
+                // Taken out and put back in its new place.
+                root = delete(root, node);
+            } else {
+                node = newNode();
+                keys[node] = loan;
+                priority[node] = nextPriority();
+                nodeOf.put(loan, node);
+                size++;
+            }
+            due[node] = dueEpoch;
+            left[node] = NIL;
+            right[node] = NIL;
+            root = insert(root, node);
+        }
+
+        synchronized boolean remove(int loan) {
+            int node = nodeOf.get(loan);
+            if (node == LongIntMap.MISSING)
+                return false;
+            root = delete(root, node);
+            nodeOf.remove(loan);
+            left[node] = free;
+            free = node;
+            size--;
+            return true;
+        }
+
+        /**
+         * Finds the earliest loans of this tree due in a time range, earliest first.
+         */
+        synchronized long[][] dueBetween(long from, long until, int limit) {
+            int n = Math.max(0, Math.min(limit, size));
+            long[] foundKeys = new long[n];
+            long[] foundDue = new long[n];
+            int found = 0;
+
+            // The path to the first loan due at or after 'from': every node on it that is in
+            // the range waits on the stack until the loans to its left are listed.
+            int[] stack = new int[64];
+            int depth = 0;
+            for (int t = root; t != NIL; ) {
+                if (due[t] >= from) {
+                    if (depth == stack.length)
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    stack[depth++] = t;
+                    t = left[t];
+                } else {
+                    t = right[t];
+                }
+            }
+            while (depth > 0 && found < n) {
+                int t = stack[--depth];
+                if (due[t] >= until)
+                    break;
+                foundKeys[found] = keys[t];
+                foundDue[found] = due[t];
+                found++;
+                // Next come the loans in t's right subtree, leftmost first.
+                for (t = right[t]; t != NIL; t = left[t]) {
+                    if (depth == stack.length)
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    stack[depth++] = t;
+                }
+            }
+            return new long[][] { Arrays.copyOf(foundKeys, found), Arrays.copyOf(foundDue, found) };
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        // ---- The treap ----
+
+        /**
+         * @return true if node a comes before node b (earlier due date, then lower loan number).
+         */
+        private boolean before(int a, int b) {
+            return due[a] < due[b] || (due[a] == due[b] && keys[a] < keys[b]);
+        }
+
+        /**
+         * Inserts a node into the subtree rooted at t, rotating it up while its priority is higher.
+         * @return The new root of the subtree.
+         */
+        private int insert(int t, int node) {
+            if (t == NIL)
+                return node;
+            if (before(node, t)) {
+                left[t] = insert(left[t], node);
+                if (priority[left[t]] > priority[t]) {
+                    int l = left[t];
+                    left[t] = right[l];
+                    right[l] = t;
+                    return l;
+                }
+            } else {
+                right[t] = insert(right[t], node);
+                if (priority[right[t]] > priority[t]) {
+                    int r = right[t];
+                    right[t] = left[r];
+                    left[r] = t;
+                    return r;
+                }
+            }
+            return t;
+        }
+
+        /**
+         * Deletes a node from the subtree rooted at t by joining its two subtrees in its place.
+         * @return The new root of the subtree.
+         */
+        private int delete(int t, int node) {
+            if (t == node)
+                return join(left[t], right[t]);
+            if (before(node, t))
+                left[t] = delete(left[t], node);
+            else
+                right[t] = delete(right[t], node);
+            return t;
+        }
+
+        /**
+         * Joins two subtrees where every node of 'a' comes before every node of 'b'.
+         */
+        private int join(int a, int b) {
+            if (a == NIL)
+                return b;
+            if (b == NIL)
+                return a;
+            if (priority[a] > priority[b]) {
+                right[a] = join(right[a], b);
+                return a;
+            }
+            left[b] = join(a, left[b]);
+            return b;
+        }
+
+        private int newNode() {
+            if (free != NIL) {
+                int node = free;
+                free = left[node];
+                return node;
+            }
+            if (used == due.length) {
+                int n = used * 2;
+                due = Arrays.copyOf(due, n);
+                keys = Arrays.copyOf(keys, n);
+                left = Arrays.copyOf(left, n);
+                right = Arrays.copyOf(right, n);
+                priority = Arrays.copyOf(priority, n);
+            }
+            return used++;
+        }
+
+        private int nextPriority() {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            return seed;
+        }
+    }
+}
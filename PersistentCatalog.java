@@ -0,0 +1,452 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The PersistentCatalog class keeps a read-only copy of the catalog (every book with its
+ * total and available quantity) that can be read without any lock while books are being
+ * issued and returned.
+ *
+ * It is made of two persistent structures whose nodes never change once built:
+ *   - a book tree (AVL, ordered by name ignoring case) that maps each name to its slot, and
+ *   - counts tries that hold the two quantities of every slot. There is one trie per
+ *     stripe (the low STRIPE_BITS bits of the slot pick it), and each level of a trie uses
+ *     five more bits of the slot number, so a million slots need only three levels.
+ * A change copies only the nodes on the path to what changed and shares everything else
+ * with the previous version. An issue or return touches just one counts trie (a few small
+ * arrays and no name comparisons) and publishes its new root with compareAndSet(); adding
+ * or deleting a book also copies a path of the book tree and publishes its new root.
+ *
+ * A reader takes a Snapshot (the book tree's root and every stripe's counts root) and keeps
+ * it as long as it likes: no later change can reach it, so a listing or report never sees
+ * torn counts and never makes the desks wait. The stripes' roots are read one after another,
+ * so two books in different stripes may be seen a moment apart; a book's two quantities are
+ * always from the same moment.
+ *
+ * Writers that change books of the same stripe at the same time each build their version
+ * from the same old root; compareAndSet() lets only one of them win and the other simply
+ * redoes its change on top of the winner's version. Books of different stripes never meet.
+ * LoanService publishes while it still holds the book's title lock, so the changes to one
+ * book are published in the order they happened.
+ */
+class PersistentCatalog {
+    private static final int BITS = 5;
+    private static final int FANOUT = 1 << BITS; // Children of an inner trie node, and slots per leaf.
+    private static final int MASK = FANOUT - 1;
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    /**
+     * One book in the book tree. All fields are final, so a node can be shared between
+     * any number of snapshots and threads.
+     */
+    static final class Node {
+        final TitleKey key;
+        final int slot;
+        final Node left, right;
+        final int height; // Height of the subtree rooted here (a leaf has height 1).
+        final int size; // Number of books in the subtree rooted here.
+
+        Node(TitleKey key, int slot, Node left, Node right) {
+            this.key = key;
+            this.slot = slot;
+            this.left = left;
+            this.right = right;
+            this.height = 1 + Math.max(height(left), height(right));
+            this.size = 1 + size(left) + size(right);
+        }
+    }
+
+    /**
+     * A book as seen in one snapshot.
+     */
+    static final class Book {
+        final String title;
+        final int slot; // The book's slot in the InventoryStore, as in the transaction log.
+        final int total, available;
+
+        Book(String title, int slot, int total, int available) {
+            this.title = title;
+            this.slot = slot;
+            this.total = total;
+            this.available = available;
+        }
+    }
+
+    /**
+     * The counts trie of one stripe: its root and how many inner levels it has.
+     */
+    private static final class Counts {
+        final Object root;
+        final int levels;
+
+        Counts(Object root, int levels) {
+            this.root = root;
+            this.levels = levels;
+        }
+    }
+
+    /**
+     * The book tree together with the stripes' counts roots. A new Tables is only made
+     * when the catalog is reset; adding and deleting books just replace 'books'.
+     */
+    private static final class Tables {
+        final Node books;
+        final AtomicReferenceArray<Counts> counts;
+
+        Tables(Node books, AtomicReferenceArray<Counts> counts) {
+            this.books = books;
+            this.counts = counts;
+        }
+    }
+
+    private final AtomicReference<Tables> current = new AtomicReference<>(new Tables(null, emptyCounts()));
+
+    /**
+     * @return The catalog as it is now. It never changes, however long it is kept.
+     */
+    Snapshot snapshot() {
+        // The book tree is read first: a book is only added to it once its counts are
+        // published, so every book in the tree has its counts in the roots read after it.
+        Tables t = current.get();
+        Counts[] counts = new Counts[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            counts[i] = t.counts.get(i);
+        return new Snapshot(t.books, counts);
+    }
+
+    /**
+     * Publishes new quantities for a book that is already in the catalog.
+     */
+    void setCounts(int slot, int total, int available) {
+        AtomicReferenceArray<Counts> counts = current.get().counts;
+        int stripe = slot & (STRIPES - 1);
+        Counts old, updated;
+        do {
+            old = counts.get(stripe);
+            updated = withCounts(old, slot >>> STRIPE_BITS, total, available);
+        } while (!counts.compareAndSet(stripe, old, updated));
+    }
+
+    /**
+     * Adds a book with its quantities. Names are compared ignoring case, like in the book tree.
+     */
+    void add(TitleKey key, int slot, int total, int available) {
+        setCounts(slot, total, available);
+        Tables old, updated;
+        do {
+            old = current.get();
+            updated = new Tables(put(old.books, key, slot), old.counts);
+        } while (!current.compareAndSet(old, updated));
+    }
+
+    /**
+     * Removes a book. Nothing changes if it is not in the catalog. Its slot's quantities
+     * stay in the counts trie until the slot is reused, but no name leads to them any more.
+     */
+    void remove(TitleKey key) {
+        Tables old, updated;
+        do {
+            old = current.get();
+            Node books = remove(old.books, key);
+            if (books == old.books)
+                return;
+            updated = new Tables(books, old.counts);
+        } while (!current.compareAndSet(old, updated));
+    }
+
+    /**
+     * Replaces the whole catalog, building the book tree in O(n) from sorted names.
+     * Used when the library is opened and after a bulk import, while no other change runs.
+     * @param titles Book keys in strictly increasing order.
+     * @param count How many entries of 'titles' to use.
+     * @param inventory Where the slots and quantities are read from.
+     */
+    void reset(TitleKey[] titles, int count, InventoryStore inventory) {
+        int levels = levelsFor(Math.max(0, inventory.slotLimit() - 1) >>> STRIPE_BITS);
+        Object[] roots = new Object[STRIPES];
+        // Nothing can see the new tries before they are published, so they are filled in place.
+        for (int i = 0; i < count; i++) {
+            int slot = inventory.slotOf(titles[i]);
+            int stripe = slot & (STRIPES - 1);
+            roots[stripe] = fill(roots[stripe], levels, slot >>> STRIPE_BITS, inventory.total(slot), inventory.available(slot));
+        }
+        AtomicReferenceArray<Counts> counts = new AtomicReferenceArray<>(STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            counts.set(i, new Counts(roots[i], levels));
+        current.set(new Tables(build(titles, 0, count - 1, inventory), counts));
+    }
+
+    private static AtomicReferenceArray<Counts> emptyCounts() {
+        AtomicReferenceArray<Counts> counts = new AtomicReferenceArray<>(STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            counts.set(i, new Counts(null, 0));
+        return counts;
+    }
+
+    private static Node build(TitleKey[] titles, int lo, int hi, InventoryStore inventory) {
+        if (lo > hi)
+            return null;
+        int mid = (lo + hi) >>> 1;
+        Node left = build(titles, lo, mid - 1, inventory);
+        Node right = build(titles, mid + 1, hi, inventory);
+        return new Node(titles[mid], inventory.slotOf(titles[mid]), left, right);
+    }
+
+    // ---- Book tree path copying ----
+
+    private static Node put(Node n, TitleKey key, int slot) {
+        if (n == null)
+            return new Node(key, slot, null, null);
+        int cmp = key.compareTo(n.key);
+        if (cmp < 0)
+            return balance(n, put(n.left, key, slot), n.right);
+        if (cmp > 0)
+            return balance(n, n.left, put(n.right, key, slot));
+        return new Node(key, slot, n.left, n.right);
+    }
+
+    private static Node remove(Node n, TitleKey key) {
+        if (n == null)
+            return null;
+        int cmp = key.compareTo(n.key);
+        if (cmp < 0) {
+            Node left = remove(n.left, key);
+            return left == n.left ? n : balance(n, left, n.right);
+        }
+        if (cmp > 0) {
+            Node right = remove(n.right, key);
+            return right == n.right ? n : balance(n, n.left, right);
+        }
+        if (n.left == null)
+            return n.right;
+        if (n.right == null)
+            return n.left;
+        // Two children: the smallest book on the right takes this node's place.
+        Node min = n.right;
+        while (min.left != null)
+            min = min.left;
+        return balance(min, n.left, removeMin(n.right));
+    }
+
+    private static Node removeMin(Node n) {
+        if (n.left == null)
+            return n.right;
+        return balance(n, removeMin(n.left), n.right);
+    }
+
+    /**
+     * Makes a new node holding the book of 'book' with the given children, rotating
+     * (by building new nodes, never by changing old ones) if the sides differ in height
+     * by more than one.
+     */
+    private static Node balance(Node book, Node left, Node right) {
+        int hl = height(left), hr = height(right);
+        if (hl > hr + 1) {
+            if (height(left.left) >= height(left.right))
+                return copy(left, left.left, copy(book, left.right, right));
+            Node lr = left.right;
+            return copy(lr, copy(left, left.left, lr.left), copy(book, lr.right, right));
+        }
+        if (hr > hl + 1) {
+            if (height(right.right) >= height(right.left))
+                return copy(right, copy(book, left, right.left), right.right);
+            Node rl = right.left;
+            return copy(rl, copy(book, left, rl.left), copy(right, rl.right, right.right));
+        }
+        return copy(book, left, right);
+    }
+
+    private static Node copy(Node book, Node left, Node right) {
+        return new Node(book.key, book.slot, left, right);
+    }
+
+    private static int height(Node n) {
+        return n == null ? 0 : n.height;
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    // ---- Counts tries ----
+    // A trie is indexed by the slot without its stripe bits ('index' below).
+    // A leaf is an int[] holding total and available of FANOUT slots side by side.
+    // An inner node is an Object[] of FANOUT children; 'level' counts the inner levels
+    // left above the leaves, and level L picks a child with bits 5L..5L+4 of the index.
+
+    /**
+     * @return The number of inner levels a trie needs to hold 'index'.
+     */
+    private static int levelsFor(int index) {
+        int levels = 0;
+        while ((index >>> (BITS * (levels + 1))) != 0)
+            levels++;
+        return levels;
+    }
+
+    /**
+     * @return A trie with the new quantities at 'index', grown by a level on top first if
+     *         'index' does not fit yet; the old trie is untouched.
+     */
+    private static Counts withCounts(Counts old, int index, int total, int available) {
+        Object root = old.root;
+        int levels = old.levels;
+        for (; levels < levelsFor(index); levels++) {
+            // The old trie becomes the first child of a new, wider root.
+            Object[] top = new Object[FANOUT];
+            top[0] = root;
+            root = top;
+        }
+        return new Counts(copyPath(root, levels, index, total, available), levels);
+    }
+
+    /**
+     * @return A copy of the path to 'index' with the new quantities; the old trie is untouched.
+     */
+    private static Object copyPath(Object node, int level, int index, int total, int available) {
+        if (level == 0) {
+            int[] leaf = node == null ? new int[FANOUT * 2] : ((int[]) node).clone();
+            int i = (index & MASK) * 2;
+            leaf[i] = total;
+            leaf[i + 1] = available;
+            return leaf;
+        }
+        Object[] inner = node == null ? new Object[FANOUT] : ((Object[]) node).clone();
+        int i = (index >>> (BITS * level)) & MASK;
+        inner[i] = copyPath(inner[i], level - 1, index, total, available);
+        return inner;
+    }
+
+    /**
+     * Like copyPath(), but changes the nodes in place. Only for a trie nobody can see yet.
+     */
+    private static Object fill(Object node, int level, int index, int total, int available) {
+        if (level == 0) {
+            int[] leaf = node == null ? new int[FANOUT * 2] : (int[]) node;
+            int i = (index & MASK) * 2;
+            leaf[i] = total;
+            leaf[i + 1] = available;
+            return leaf;
+        }
+        Object[] inner = node == null ? new Object[FANOUT] : (Object[]) node;
+        int i = (index >>> (BITS * level)) & MASK;
+        inner[i] = fill(inner[i], level - 1, index, total, available);
+        return inner;
+    }
+
+    /**
+     * The catalog at one moment. Iterating gives the books in alphabetical order.
+     */
+    static final class Snapshot implements Iterable<Book> {
+        private final Node books;
+        private final Counts[] counts; // The counts trie of each stripe.
+
+        private Snapshot(Node books, Counts[] counts) {
+            this.books = books;
+            this.counts = counts;
+        }
+
+        private int count(int slot, int which) {
+            Counts c = counts[slot & (STRIPES - 1)];
+            int index = slot >>> STRIPE_BITS;
+            Object node = c.root;
+            for (int level = c.levels; level > 0 && node != null; level--)
+                node = ((Object[]) node)[(index >>> (BITS * level)) & MASK];
+            return node == null ? 0 : ((int[]) node)[(index & MASK) * 2 + which];
+        }
+
+        private Book book(Node n) {
+            return new Book(n.key.title, n.slot, count(n.slot, 0), count(n.slot, 1));
+        }
+
+        /**
+         * @return The number of books.
+         */
+        int size() {
+            return PersistentCatalog.size(books);
+        }
+
+        /**
+         * Finds a book, ignoring case.
+         * @return The book, or null if it is not in the catalog.
+         */
+        Book get(String title) {
+            TitleKey key = TitleKey.of(title);
+            Node n = books;
+            while (n != null) {
+                int cmp = key.compareTo(n.key);
+                if (cmp == 0)
+                    return book(n);
+                n = cmp < 0 ? n.left : n.right;
+            }
+            return null;
+        }
+
+        /**
+         * Lists the books from a position in alphabetical order onwards, in O(log n + limit).
+         * @param offset The position of the first book, starting at 0.
+         * @param limit The most books to return.
+         */
+        List<Book> page(int offset, int limit) {
+            List<Book> result = new ArrayList<>();
+            Iterator<Book> it = new InOrder(this, offset);
+            while (it.hasNext() && result.size() < limit)
+                result.add(it.next());
+            return result;
+        }
+
+        @Override
+        public Iterator<Book> iterator() {
+            return new InOrder(this, 0);
+        }
+    }
+
+    /**
+     * Walks the book tree in alphabetical order with an explicit stack, like
+     * library_management.printInorder(), starting at a position found with the subtree sizes.
+     */
+    private static final class InOrder implements Iterator<Book> {
+        private final Snapshot snapshot;
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+
+        InOrder(Snapshot snapshot, int offset) {
+            this.snapshot = snapshot;
+            if (offset < 0 || offset >= snapshot.size())
+                return;
+            Node current = snapshot.books;
+            while (true) {
+                int leftSize = size(current.left);
+                if (offset < leftSize) {
+                    stack.push(current);
+                    current = current.left;
+                } else if (offset == leftSize) {
+                    stack.push(current);
+                    return;
+                } else {
+                    offset -= leftSize + 1;
+                    current = current.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public Book next() {
+            if (stack.isEmpty())
+                throw new NoSuchElementException();
+            Node current = stack.pop();
+            for (Node n = current.right; n != null; n = n.left)
+                stack.push(n);
+            return snapshot.book(current);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * The ReportEngine class builds the librarian's reports on the inventory and on circulation:
+ *   - utilization per title (copies on loan against the total),
+ *   - the most borrowed titles,
+ *   - loans per student stream, and
+ *   - the late fees charged on returns.
+ *
+ * The inventory part is read from a PersistentCatalog snapshot and the circulation part from
+ * the transaction log file, so a report takes no lock and never holds up the desks while it
+ * runs. The log is cut into ranges of records that fork/join tasks scan in parallel, each
+ * into its own counters, and the counters are added up as the tasks join, so millions of
+ * records are counted in a few seconds. The rankings are then sorted with parallel streams.
+ *
+ * A finished Report is written line by line to any Appendable (the console or a network
+ * connection), without building the whole text in memory first.
+ */
+class ReportEngine {
+    // Late fee in rupees for every second a book is returned after its due date.
+    static final int FEE_PER_SECOND = 5;
+
+    private static final int MIN_CHUNK = 1 << 16; // Fewest log records scanned by one task.
+    private static final int BUFFER_RECORDS = 4096; // Log records read at a time.
+
+    /**
+     * Works out the late fee of one return.
+     * @param dueEpoch When the book was due, in epoch milliseconds.
+     * @param returnedEpoch When it came back, in epoch milliseconds.
+     * @return The fee in rupees (0 if the book was not late).
+     */
+    static long lateFee(long dueEpoch, long returnedEpoch) {
+        if (returnedEpoch <= dueEpoch)
+            return 0;
+        return (returnedEpoch - dueEpoch) / 1000 * FEE_PER_SECOND;
+    }
+
+    /**
+     * The counters of one range of log records. Streams are numbered as in the Report;
+     * the last number is for students that are not registered (any more).
+     */
+    private static final class Totals {
+        final int[] issuesBySlot;
+        final long[] issuesByStream, lateByStream, feesByStream;
+        long issues, returns, lateReturns, fees;
+
+        Totals(int slots, int streams) {
+            issuesBySlot = new int[slots];
+            issuesByStream = new long[streams];
+            lateByStream = new long[streams];
+            feesByStream = new long[streams];
+        }
+
+        void add(Totals other) {
+            for (int i = 0; i < issuesBySlot.length; i++)
+                issuesBySlot[i] += other.issuesBySlot[i];
+            for (int i = 0; i < issuesByStream.length; i++) {
+                issuesByStream[i] += other.issuesByStream[i];
+                lateByStream[i] += other.lateByStream[i];
+                feesByStream[i] += other.feesByStream[i];
+            }
+            issues += other.issues;
+            returns += other.returns;
+            lateReturns += other.lateReturns;
+            fees += other.fees;
+        }
+    }
+
+    /**
+     * Counts the records from 'from' (included) to 'to' (excluded), splitting the range
+     * in two until it is at most 'chunk' records long.
+     */
+    private static final class ScanTask extends RecursiveTask<Totals> {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long from, to, chunk;
+        private final int slots;
+        private final int[] studentIds, streamOf; // Student IDs in increasing order, and their stream.
+        private final int streams;
+
+        ScanTask(FileChannel channel, long from, long to, long chunk, int slots, int[] studentIds,
+                 int[] streamOf, int streams) {
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.slots = slots;
+            this.studentIds = studentIds;
+            this.streamOf = streamOf;
+            this.streams = streams;
+        }
+
+        @Override
+        protected Totals compute() {
+            if (to - from > chunk) {
+                long mid = (from + to) >>> 1;
+                ScanTask right = new ScanTask(channel, mid, to, chunk, slots, studentIds, streamOf, streams);
+                right.fork();
+                Totals left = new ScanTask(channel, from, mid, chunk, slots, studentIds, streamOf, streams).compute();
+                left.add(right.join());
+                return left;
+            }
+            try {
+                return scan();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Totals scan() throws IOException {
+            Totals t = new Totals(slots, streams + 1);
+            ByteBuffer buf = ByteBuffer.allocate(TransactionLog.RECORD_SIZE * BUFFER_RECORDS);
+            long seq = from;
+            while (seq < to) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), (to - seq) * TransactionLog.RECORD_SIZE));
+                long pos = TransactionLog.HEADER_SIZE + seq * TransactionLog.RECORD_SIZE;
+                while (buf.hasRemaining()) {
+                    // Reads at a position of their own, so the tasks can share the channel.
+                    int n = channel.read(buf, pos);
+                    if (n <= 0)
+                        throw new IOException("Transaction log ended early.");
+                    pos += n;
+                }
+                // Same record layout as TransactionLog.scan(), read in place.
+                for (int at = 0; at < buf.limit(); at += TransactionLog.RECORD_SIZE) {
+                    byte op = buf.get(at);
+                    if (op != TransactionLog.ISSUE && op != TransactionLog.RETURN && op != TransactionLog.RETURN_DELETED)
+                        continue;
+                    int stream = streamOf(buf.getInt(at + 4));
+                    if (op == TransactionLog.ISSUE) {
+                        int slot = buf.getInt(at + 8);
+                        if (slot >= 0 && slot < slots)
+                            t.issuesBySlot[slot]++;
+                        t.issuesByStream[stream]++;
+                        t.issues++;
+                    } else {
+                        t.returns++;
+                        long returned = buf.getLong(at + 16);
+                        long due = buf.getLong(at + 24);
+                        if (returned > due) {
+                            long fee = lateFee(due, returned);
+                            t.lateReturns++;
+                            t.lateByStream[stream]++;
+                            t.fees += fee;
+                            t.feesByStream[stream] += fee;
+                        }
+                    }
+                }
+                seq += buf.limit() / TransactionLog.RECORD_SIZE;
+            }
+            return t;
+        }
+
+        private int streamOf(int studentId) {
+            int i = Arrays.binarySearch(studentIds, studentId);
+            return i >= 0 ? streamOf[i] : streams;
+        }
+    }
+
+    /**
+     * Builds a report.
+     * @param log The transaction log file.
+     * @param records How many records of the log to count (the rest may still be written).
+     * @param catalog The catalog at the moment of the report.
+     * @param students The registered students, for their streams.
+     * @param top How many titles to rank in each list (0 or less for all of them).
+     * @return The finished report.
+     */
+    static Report run(File log, long records, PersistentCatalog.Snapshot catalog, StudentRegistry students,
+                      int top) throws IOException {
+        long start = System.nanoTime();
+
+        // The books, with the highest slot, from the snapshot.
+        PersistentCatalog.Book[] books = new PersistentCatalog.Book[catalog.size()];
+        int n = 0, slots = 0;
+        for (PersistentCatalog.Book b : catalog) {
+            books[n++] = b;
+            slots = Math.max(slots, b.slot + 1);
+        }
+        String[] titleOf = new String[slots];
+        for (PersistentCatalog.Book b : books)
+            titleOf[b.slot] = b.title;
+
+        // Number the streams (ignoring case, like BorrowingLimits) and give every student theirs.
+        Student[] sorted = students.sortedById();
+        Map<String, Integer> streamNumbers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        int[] studentIds = new int[sorted.length];
+        int[] streamOf = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            String stream = sorted[i].Stream == null ? "" : sorted[i].Stream.trim();
+            Integer number = streamNumbers.get(stream);
+            if (number == null) {
+                number = streamNumbers.size();
+                streamNumbers.put(stream, number);
+            }
+            studentIds[i] = sorted[i].id_no;
+            streamOf[i] = number;
+        }
+        String[] streams = new String[streamNumbers.size() + 1];
+        for (Map.Entry<String, Integer> e : streamNumbers.entrySet())
+            streams[e.getValue()] = e.getKey();
+        streams[streams.length - 1] = "(not registered)";
+
+        // Count the log in parallel.
+        Totals totals = new Totals(slots, streams.length);
+        records = Math.min(records, TransactionLog.records(log));
+        if (records > 0) {
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+                TransactionLog.checkHeader(channel);
+                int parallelism = ForkJoinPool.commonPool().getParallelism();
+                long chunk = Math.max(MIN_CHUNK, (records + parallelism * 4 - 1) / (parallelism * 4));
+                totals = ForkJoinPool.commonPool().invoke(new ScanTask(channel, 0, records, chunk, slots,
+                        studentIds, streamOf, streams.length - 1));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        // Rank the titles.
+        int limit = top > 0 ? top : Integer.MAX_VALUE;
+        PersistentCatalog.Book[] byUtilization = Arrays.stream(books).parallel()
+                .sorted(Comparator.comparingDouble(ReportEngine::utilization).reversed())
+                .limit(limit)
+                .toArray(PersistentCatalog.Book[]::new);
+        int[] issuesBySlot = totals.issuesBySlot;
+        int[] mostBorrowed = IntStream.range(0, slots).parallel()
+                .filter(s -> issuesBySlot[s] > 0 && titleOf[s] != null)
+                .boxed()
+                .sorted((a, b) -> Integer.compare(issuesBySlot[b], issuesBySlot[a]))
+                .limit(limit)
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        Report report = new Report();
+        report.records = records;
+        report.titles = books.length;
+        report.copies = Arrays.stream(books).parallel().mapToLong(b -> b.total).sum();
+        report.onLoan = Arrays.stream(books).parallel().mapToLong(b -> b.total - b.available).sum();
+        report.byUtilization = byUtilization;
+        report.mostBorrowed = new String[mostBorrowed.length];
+        report.mostBorrowedIssues = new int[mostBorrowed.length];
+        for (int i = 0; i < mostBorrowed.length; i++) {
+            report.mostBorrowed[i] = titleOf[mostBorrowed[i]];
+            report.mostBorrowedIssues[i] = issuesBySlot[mostBorrowed[i]];
+        }
+        report.streams = streams;
+        report.issuesByStream = totals.issuesByStream;
+        report.lateByStream = totals.lateByStream;
+        report.feesByStream = totals.feesByStream;
+        report.issues = totals.issues;
+        report.returns = totals.returns;
+        report.lateReturns = totals.lateReturns;
+        report.fees = totals.fees;
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * @return The share of a book's copies that are on loan, from 0 to 1.
+     */
+    static double utilization(PersistentCatalog.Book b) {
+        return b.total <= 0 ? 0 : (double) (b.total - b.available) / b.total;
+    }
+
+    /**
+     * The results of one run. Issues are counted by slot under the book's current name, so
+     * a deleted book's issues count for the book that reused its slot.
+     */
+    static final class Report {
+        long records; // Log records counted.
+        long elapsedNanos; // How long building the report took.
+        int titles;
+        long copies, onLoan;
+        PersistentCatalog.Book[] byUtilization; // Most used first.
+        String[] mostBorrowed; // Most issued first.
+        int[] mostBorrowedIssues;
+        String[] streams; // The last one is for students that are not registered.
+        long[] issuesByStream, lateByStream, feesByStream;
+        long issues, returns, lateReturns, fees;
+
+        /**
+         * Writes the report as text, one line at a time.
+         */
+        void write(Appendable out) throws IOException {
+            out.append("Library report: ").append(Long.toString(records)).append(" log records, built in ")
+                    .append(Long.toString(elapsedNanos / 1000000)).append(" ms.\n");
+            out.append("Titles: ").append(Integer.toString(titles)).append(", copies: ")
+                    .append(Long.toString(copies)).append(", on loan: ").append(Long.toString(onLoan))
+                    .append(" (").append(percent(copies == 0 ? 0 : (double) onLoan / copies)).append(")\n");
+
+            out.append("\nUtilization per title (book, total, available, share on loan):\n");
+            for (PersistentCatalog.Book b : byUtilization)
+                out.append(b.title).append('\t').append(Integer.toString(b.total)).append('\t')
+                        .append(Integer.toString(b.available)).append('\t').append(percent(utilization(b)))
+                        .append('\n');
+
+            out.append("\nMost borrowed titles (book, times issued):\n");
+            for (int i = 0; i < mostBorrowed.length; i++)
+                out.append(mostBorrowed[i]).append('\t').append(Integer.toString(mostBorrowedIssues[i])).append('\n');
+
+            out.append("\nLoans per stream (stream, times issued, late returns, late fees in Rs.):\n");
+            for (int i = 0; i < streams.length; i++) {
+                if (issuesByStream[i] == 0 && lateByStream[i] == 0)
+                    continue;
+                out.append(streams[i]).append('\t').append(Long.toString(issuesByStream[i])).append('\t')
+                        .append(Long.toString(lateByStream[i])).append('\t').append(Long.toString(feesByStream[i]))
+                        .append('\n');
+            }
+
+            out.append("\nIssues: ").append(Long.toString(issues)).append(", returns: ").append(Long.toString(returns))
+                    .append(", late returns: ").append(Long.toString(lateReturns)).append('\n');
+            out.append("Total late fees: ").append(Long.toString(fees)).append(" Rs.\n");
+        }
+
+        private static String percent(double share) {
+            return String.format("%.1f%%", share * 100);
+        }
+    }
+}
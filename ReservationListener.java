@@ -0,0 +1,24 @@
+/**
+ * The ReservationListener interface is told what happens to reservations, so a desk,
+ * kiosk or message service can let the student know (see LoanService.addReservationListener).
+ *
+ * Listeners are called after the change is complete and all of the LoanService's locks are
+ * released, on the thread that made the change (for example the one returning the book).
+ * They may call back into the LoanService, but should return quickly.
+ */
+interface ReservationListener {
+
+    /**
+     * A copy came back (or was added) and was issued straight to the student who reserved it.
+     * @param studentId The student the book was issued to.
+     * @param title The name of the book.
+     * @param dueEpoch When the book has to be returned (epoch milliseconds).
+     */
+    void bookReady(int studentId, String title, long dueEpoch);
+
+    /**
+     * A reservation ended without the book being issued, because the book was deleted.
+     */
+    default void reservationCancelled(int studentId, String title) {
+    }
+}
@@ -0,0 +1,290 @@
+import java.util.Arrays;
+
+/**
+ * The ReservationQueue class keeps, for every book, the students waiting for a copy,
+ * in the order they asked (first come, first served).
+ *
+ * Holds are kept in a pool of entries stored in parallel int arrays, so hundreds of
+ * thousands of them cost a few dozen bytes each and no objects. The entries of one book
+ * form a doubly linked list through the pool, with its head and tail kept per slot (see
+ * InventoryStore), so joining the queue and taking the next student are O(1). A small hash
+ * table from (student, slot) to entry makes cancelling a hold O(1) too, and stops a
+ * student from queueing twice for the same book.
+ *
+ * The queues are split into STRIPES stripes by the low bits of the slot, each with its own
+ * pool, hash table and lock, so returns and reservations of different books do not wait
+ * for each other. The methods of a stripe are synchronized on it. They are short and never
+ * take another lock, so the queue can be used while LoanService holds its title locks.
+ */
+class ReservationQueue {
+    static final int NONE = -1;
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    ReservationQueue(int expectedHolds) {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(expectedHolds / STRIPES);
+    }
+
+    /**
+     * Puts a student at the back of a book's queue.
+     * @return false if the student is already waiting for this book.
+     */
+    boolean add(int slot, int studentId) {
+        return stripeOf(slot).add(slot, studentId);
+    }
+
+    /**
+     * Takes the student at the front of a book's queue off the queue.
+     * @return The student's ID, or NONE if nobody is waiting.
+     */
+    int poll(int slot) {
+        return stripeOf(slot).poll(slot);
+    }
+
+    /**
+     * Takes a student off a book's queue, wherever they are in it.
+     * @return true if the student was waiting for the book.
+     */
+    boolean remove(int slot, int studentId) {
+        return stripeOf(slot).remove(slot, studentId);
+    }
+
+    /**
+     * Empties a book's queue, for example because the book was deleted.
+     * @return The IDs of the students who were waiting, in queue order.
+     */
+    int[] clear(int slot) {
+        return stripeOf(slot).clear(slot);
+    }
+
+    /**
+     * @return How many students are waiting for a book.
+     */
+    int waiting(int slot) {
+        return stripeOf(slot).waiting(slot);
+    }
+
+    /**
+     * @return true if a student is waiting for a book. Takes one hash lookup, unlike
+     *         position(), which walks the queue.
+     */
+    boolean contains(int slot, int studentId) {
+        return stripeOf(slot).contains(slot, studentId);
+    }
+
+    /**
+     * @return A student's place in a book's queue (1 = next in line), or 0 if not waiting.
+     */
+    int position(int slot, int studentId) {
+        return stripeOf(slot).position(slot, studentId);
+    }
+
+    /**
+     * Calls a visitor for every hold, book by book (in slot order) and in queue order
+     * within a book. Used to save the queues in a snapshot.
+     */
+    void forEach(HoldVisitor visitor) {
+        int limit = 0;
+        for (int s = 0; s < STRIPES; s++)
+            limit = Math.max(limit, stripes[s].slotLimit(s));
+        for (int slot = 0; slot < limit; slot++)
+            stripeOf(slot).forEach(slot, visitor);
+    }
+
+    /**
+     * Receives the holds from forEach().
+     */
+    interface HoldVisitor {
+        void visit(int slot, int studentId);
+    }
+
+    /**
+     * @return The number of holds waiting, over all books.
+     */
+    int size() {
+        int size = 0;
+        for (Stripe s : stripes)
+            size += s.size();
+        return size;
+    }
+
+    private Stripe stripeOf(int slot) {
+        return stripes[slot & (STRIPES - 1)];
+    }
+
+    /**
+     * One stripe of the queues: those of the books whose slots end in its number.
+     */
+    private static final class Stripe {
+        // Per slot of the stripe (slot >>> STRIPE_BITS): the first and last entry of its queue
+        // (NONE if empty) and its length.
+        private int[] head = new int[0];
+        private int[] tail = new int[0];
+        private int[] length = new int[0];
+
+        // The entry pool. Free entries are chained through next[].
+        private int[] student;
+        private int[] slotOf;
+        private int[] next;
+        private int[] prev;
+        private int free = NONE;
+        private int used; // Entries handed out so far; those from 'used' on were never used.
+        private int size; // Holds currently waiting.
+
+        private final LongIntMap entryOf; // key(student, slot) to entry.
+
+        Stripe(int expectedHolds) {
+            int n = Math.max(16, expectedHolds);
+            student = new int[n];
+            slotOf = new int[n];
+            next = new int[n];
+            prev = new int[n];
+            entryOf = new LongIntMap(n);
+        }
+
+        synchronized boolean add(int slot, int studentId) {
+            long key = key(studentId, slot);
+            if (entryOf.get(key) != LongIntMap.MISSING)
+                return false;
+            int q = slot >>> STRIPE_BITS;
+            ensureQueue(q);
+
+            int e = newEntry();
+            student[e] = studentId;
+            slotOf[e] = slot;
+            next[e] = NONE;
+            prev[e] = tail[q];
+            if (tail[q] == NONE)
+                head[q] = e;
+            else
+                next[tail[q]] = e;
+            tail[q] = e;
+            length[q]++;
+            size++;
+            entryOf.put(key, e);
+            return true;
+        }
+
+        synchronized int poll(int slot) {
+            int q = slot >>> STRIPE_BITS;
+            if (q >= head.length || head[q] == NONE)
+                return NONE;
+            int e = head[q];
+            int studentId = student[e];
+            unlink(e);
+            return studentId;
+        }
+
+        synchronized boolean remove(int slot, int studentId) {
+            int e = entryOf.get(key(studentId, slot));
+            if (e == LongIntMap.MISSING)
+                return false;
+            unlink(e);
+            return true;
+        }
+
+        synchronized int[] clear(int slot) {
+            int[] waiting = new int[waiting(slot)];
+            for (int i = 0; i < waiting.length; i++)
+                waiting[i] = poll(slot);
+            return waiting;
+        }
+
+        synchronized int waiting(int slot) {
+            int q = slot >>> STRIPE_BITS;
+            return q < length.length ? length[q] : 0;
+        }
+
+        synchronized boolean contains(int slot, int studentId) {
+            return entryOf.get(key(studentId, slot)) != LongIntMap.MISSING;
+        }
+
+        synchronized int position(int slot, int studentId) {
+            int target = entryOf.get(key(studentId, slot));
+            if (target == LongIntMap.MISSING)
+                return 0;
+            int place = 1;
+            for (int e = head[slot >>> STRIPE_BITS]; e != target; e = next[e])
+                place++;
+            return place;
+        }
+
+        /**
+         * Calls a visitor for every hold of one book, in queue order.
+         */
+        synchronized void forEach(int slot, HoldVisitor visitor) {
+            int q = slot >>> STRIPE_BITS;
+            if (q < head.length)
+                for (int e = head[q]; e != NONE; e = next[e])
+                    visitor.visit(slot, student[e]);
+        }
+
+        /**
+         * @return One more than the highest slot this stripe has had a queue for.
+         */
+        synchronized int slotLimit(int stripe) {
+            return head.length == 0 ? 0 : ((head.length - 1) << STRIPE_BITS | stripe) + 1;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        // ---- Entry pool ----
+
+        private int newEntry() {
+            if (free != NONE) {
+                int e = free;
+                free = next[e];
+                return e;
+            }
+            if (used == student.length) {
+                int n = used * 2;
+                student = Arrays.copyOf(student, n);
+                slotOf = Arrays.copyOf(slotOf, n);
+                next = Arrays.copyOf(next, n);
+                prev = Arrays.copyOf(prev, n);
+            }
+            return used++;
+        }
+
+        private void unlink(int e) {
+            int slot = slotOf[e];
+            int q = slot >>> STRIPE_BITS;
+            if (prev[e] == NONE)
+                head[q] = next[e];
+            else
+                next[prev[e]] = next[e];
+            if (next[e] == NONE)
+                tail[q] = prev[e];
+            else
+                prev[next[e]] = prev[e];
+            length[q]--;
+            size--;
+            entryOf.remove(key(student[e], slot));
+            next[e] = free;
+            free = e;
+        }
+
+        private void ensureQueue(int q) {
+            if (q < head.length)
+                return;
+            int old = head.length;
+            int n = Math.max(q + 1, old * 2);
+            head = Arrays.copyOf(head, n);
+            tail = Arrays.copyOf(tail, n);
+            length = Arrays.copyOf(length, n);
+            Arrays.fill(head, old, n, NONE);
+            Arrays.fill(tail, old, n, NONE);
+        }
+
+        // ---- (student, slot) to entry table ----
+
+        private static long key(int studentId, int slot) {
+            return (long) studentId << 32 | (slot & 0xFFFFFFFFL);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.Arrays;
+
+/**
+ * The ShardRing class decides which shard (branch library) owns a book, with consistent
+ * hashing. Every shard is placed on a ring of 32-bit hash values at VIRTUAL_NODES points,
+ * and a book belongs to the first shard point at or after the hash of its TitleKey,
+ * wrapping around at the end.
+ *
+ * Adding a shard only takes over the parts of the ring just before its own points, so
+ * about 1/N of the books move to it and no book moves between the shards that were
+ * already there. The many points per shard keep the shares even.
+ *
+ * A ring never changes once built; withShard() returns a new one, so ShardedLibrary can
+ * switch to it in one step while lookups on the old ring go on.
+ */
+final class ShardRing {
+    // Points per shard on the ring.
+    static final int VIRTUAL_NODES = 128;
+
+    private final String[] names; // Shard names; the shard number is the position here.
+    private final int[] points; // Hash values of all points, in increasing order.
+    private final int[] owners; // owners[i] is the shard number of points[i].
+
+    /**
+     * Creates a ring of shards.
+     * @param names The shard names, which fix their points. Keep them the same between
+     *              runs (for example the shard's directory or address), or books move.
+     */
+    ShardRing(String... names) {
+        this.names = names.clone();
+        long[] sorted = new long[names.length * VIRTUAL_NODES];
+        for (int shard = 0; shard < names.length; shard++)
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                int point = mix((names[shard] + "#" + v).hashCode());
+                // Sort by point (as unsigned) with the shard number in the low bits.
+                sorted[shard * VIRTUAL_NODES + v] = (Integer.toUnsignedLong(point) << 16) | shard;
+            }
+        Arrays.sort(sorted);
+        points = new int[sorted.length];
+        owners = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            points[i] = (int) (sorted[i] >>> 16);
+            owners[i] = (int) (sorted[i] & 0xFFFF);
+        }
+    }
+
+    /**
+     * @return A new ring with one more shard, which gets the next shard number.
+     */
+    ShardRing withShard(String name) {
+        String[] more = Arrays.copyOf(names, names.length + 1);
+        more[names.length] = name;
+        return new ShardRing(more);
+    }
+
+    /**
+     * @return The number of the shard that owns a book.
+     */
+    int shardFor(TitleKey key) {
+        int h = mix(key.hashCode());
+        // First point at or after h, comparing as unsigned numbers.
+        int lo = 0, hi = points.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Integer.compareUnsigned(points[mid], h) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return owners[lo == points.length ? 0 : lo];
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String name(int shard) {
+        return names[shard];
+    }
+
+    /**
+     * Spreads the bits of a hash code over the whole ring (the MurmurHash3 finalizer).
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+}
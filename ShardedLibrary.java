@@ -0,0 +1,958 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The ShardedLibrary class splits the catalog over several shards (branch libraries), so
+ * the catalog can grow past what one heap holds and issues on different shards run on
+ * different machines. Each shard is a whole library of its own: either a LoanService in
+ * this JVM, with its own directory, or a LibraryServer in another JVM reached over a
+ * socket. Both are driven with the same one-line commands (see LibraryCommands), and
+ * this class answers those commands for the library as a whole.
+ *
+ * A ShardRing (consistent hashing) decides which shard owns a book:
+ *   - commands about one book (ADD, DELETE, UPDATE, ISSUE, RETURN, RESERVE, CANCEL,
+ *     WAITING, HOLDER, BOOK) go to its owner only;
+ *   - listings and searches (LIST, PAGE, AFTER, RANGE, PREFIX, SEARCH) are sent to every
+ *     shard at once ("scatter") and the sorted answers are merged in alphabetical order
+ *     ("gather"); RANK adds up the shards' ranks, and LOANS, OVERDUE and DUE merge the
+ *     shards' loans.
+ *
+ * Adding a shard (addShard(), or the ADDSHARD command) rebalances: the books the new ring
+ * gives to the new shard are "pinned" to their old shard, which keeps serving them, and
+ * are then moved once all their copies are on the shelf and no one is waiting for them.
+ * Books with copies out move when the last copy comes back. Pins are rebuilt from the
+ * shards' listings at startup, so an interrupted rebalance simply goes on.
+ *
+ * Books move in batches of up to MOVE_BATCH between the same two shards (see moveBatch()):
+ * commands about the books of the batch wait, their counts are checked and they are added
+ * to the new shard in one round trip, routing switches, and they are deleted from the old
+ * shard in one more round trip. The routing write lock is only held to mark the batch and
+ * to switch its routing, so commands about every other book go on during a move. Listings
+ * wait while a batch is copied, so they never show a book twice.
+ *
+ * PAGE does not ask every shard for its first offset+limit names. It looks for the first
+ * name of the page with RANK and one-name PAGE calls (see pageStart()), then asks each
+ * shard for 'limit' names from there, so a deep page costs O(log n + limit) per call.
+ *
+ * Shards in this JVM share one StudentRegistry, so a student's borrowing limit counts the
+ * loans on every shard. Shards in other JVMs have registries of their own, so there the
+ * limit applies per shard (per branch).
+ *
+ * Usage: java ShardedLibrary [-port N] shard...
+ *   where each shard is a directory (a shard in this JVM) or host:port (a LibraryServer).
+ */
+class ShardedLibrary implements LibraryServer.Handler, AutoCloseable {
+    // Commands whose reply is several lines ending with END.
+    private static final Set<String> MULTI_LINE = Set.of("LIST", "LOANS", "PREFIX", "SEARCH", "PAGE", "AFTER",
+            "RANGE", "OVERDUE", "DUE", "METRICS", "STUDENTS", "REPORT");
+
+    // The most books moved in one batch.
+    static final int MOVE_BATCH = 128;
+    // Pages starting before this position are merged from the start of every shard in one round trip.
+    private static final int PAGE_SCAN = 64;
+
+    /**
+     * One shard, driven with LibraryCommands lines.
+     */
+    interface Shard extends AutoCloseable {
+        /**
+         * Runs one command on the shard.
+         * @return The reply lines (without END).
+         */
+        List<String> call(String command) throws IOException;
+
+        /**
+         * Runs several commands in order, each answered with one line (like ADD, DELETE,
+         * BOOK or WAITING), in one round trip.
+         * @return The reply line of each command.
+         */
+        List<String> callAll(List<String> commands) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * A shard in this JVM.
+     */
+    static final class LocalShard implements Shard {
+        private final LoanService loans;
+        private final LibraryCommands commands;
+
+        LocalShard(LoanService loans) {
+            this.loans = loans;
+            this.commands = new LibraryCommands(loans);
+        }
+
+        @Override
+        public List<String> call(String command) throws IOException {
+            StringBuilder reply = new StringBuilder();
+            commands.execute(command, reply);
+            List<String> lines = new ArrayList<>(Arrays.asList(reply.toString().split("\n")));
+            if (!lines.isEmpty() && lines.get(lines.size() - 1).equals("END"))
+                lines.remove(lines.size() - 1);
+            return lines;
+        }
+
+        @Override
+        public List<String> callAll(List<String> lines) throws IOException {
+            StringBuilder reply = new StringBuilder();
+            commands.executeBatch(lines.toArray(new String[0]), lines.size(), reply);
+            return Arrays.asList(reply.toString().split("\n"));
+        }
+
+        @Override
+        public void close() throws IOException {
+            loans.close();
+        }
+    }
+
+    /**
+     * A shard served by a LibraryServer in another JVM. Connections are kept open and
+     * reused; several threads calling at once each get a connection of their own.
+     */
+    static final class RemoteShard implements Shard {
+        private final String host;
+        private final int port;
+        private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+
+        RemoteShard(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public List<String> call(String command) throws IOException {
+            Connection c = idle.poll();
+            if (c == null)
+                c = new Connection(host, port);
+            try {
+                List<String> lines = c.call(command);
+                idle.offer(c);
+                return lines;
+            } catch (IOException e) {
+                c.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public List<String> callAll(List<String> commands) throws IOException {
+            Connection c = idle.poll();
+            if (c == null)
+                c = new Connection(host, port);
+            try {
+                List<String> lines = c.callAll(commands);
+                idle.offer(c);
+                return lines;
+            } catch (IOException e) {
+                c.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            Connection c;
+            while ((c = idle.poll()) != null)
+                c.close();
+        }
+    }
+
+    private static final class Connection {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final BufferedWriter out;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            // The shard's LibraryServer only takes ADD, DELETE and UPDATE from the librarian.
+            List<String> login = call("LOGIN " + library_management.LIBRARIAN_ID + " "
+                    + library_management.LIBRARIAN_PASSWORD);
+            if (!login.get(0).startsWith("OK ")) {
+                close();
+                throw new IOException("Shard " + host + ":" + port + " refused the librarian login.");
+            }
+        }
+
+        List<String> call(String command) throws IOException {
+            out.write(command);
+            out.write('\n');
+            out.flush();
+            List<String> lines = new ArrayList<>();
+            String line = in.readLine();
+            // A multi-line command that fails answers with one ERR line and no END.
+            if (MULTI_LINE.contains(commandOf(command)) && line != null && !line.startsWith("ERR ")) {
+                while (line != null && !line.equals("END")) {
+                    lines.add(line);
+                    line = in.readLine();
+                }
+            } else if (line != null) {
+                lines.add(line);
+            }
+            if (line == null)
+                throw new IOException("Shard " + socket.getRemoteSocketAddress() + " closed the connection.");
+            return lines;
+        }
+
+        /**
+         * Sends all the commands at once and then reads one reply line for each. The server
+         * flushes once it has read them all (see LibraryServer).
+         */
+        List<String> callAll(List<String> commands) throws IOException {
+            for (String command : commands) {
+                out.write(command);
+                out.write('\n');
+            }
+            out.flush();
+            List<String> lines = new ArrayList<>(commands.size());
+            for (int i = 0; i < commands.size(); i++) {
+                String line = in.readLine();
+                if (line == null)
+                    throw new IOException("Shard " + socket.getRemoteSocketAddress() + " closed the connection.");
+                lines.add(line);
+            }
+            return lines;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+        }
+    }
+
+    /**
+     * A book waiting to move: the shard that still has it, and its name as that shard lists it.
+     */
+    private static final class Pin {
+        final int shard;
+        final String title;
+
+        Pin(int shard, String title) {
+            this.shard = shard;
+            this.title = title;
+        }
+    }
+
+    private final List<Shard> shards = new CopyOnWriteArrayList<>();
+    private volatile ShardRing ring;
+    private final Map<TitleKey, Pin> pinned = new ConcurrentHashMap<>();
+    // Pinned books in a batch being moved; commands about them wait on 'moveDone' until the
+    // batch has switched their routing.
+    private final Set<TitleKey> moving = ConcurrentHashMap.newKeySet();
+    private final Object moveDone = new Object();
+    // Routing takes the read lock; marking a batch, switching its routing and changing the
+    // ring take the write lock, so no command ever sees a book on both shards or on neither.
+    private final ReentrantReadWriteLock routing = new ReentrantReadWriteLock();
+    // Listings take the read lock; a batch holds the write lock while its books are on both
+    // shards. Taken before 'routing' when both are needed.
+    private final ReentrantReadWriteLock listing = new ReentrantReadWriteLock();
+    // ADD commands take the read lock; addShard() takes the write lock while it lists the
+    // shards, so a book added meanwhile cannot be left out of the new pins. Taken first.
+    private final ReentrantReadWriteLock adding = new ReentrantReadWriteLock();
+    private final Object shardChange = new Object(); // Lets one addShard() run at a time.
+    private final ExecutorService scatter = LibraryServer.newThreadPerTaskExecutor();
+    private final StudentRegistry students; // For shards added in this JVM.
+
+    /**
+     * Starts routing over a set of shards, and moves any book that is not on the shard
+     * the ring gives it (left over from an interrupted rebalance).
+     * @param names The shard names for the ring, in the same order as 'shards'.
+     * @param students The students of the shards in this JVM, also given to shards added later.
+     */
+    ShardedLibrary(List<String> names, List<Shard> shards, StudentRegistry students) throws IOException {
+        this.students = students;
+        this.shards.addAll(shards);
+        this.ring = new ShardRing(names.toArray(new String[0]));
+        pinned.putAll(misplaced(this.shards, ring));
+        rebalance();
+    }
+
+    /**
+     * Adds a shard and moves to it the books it now owns (see the class comment).
+     * Every shard, the new one included, is listed first, with only ADD commands and
+     * moves held off; routed commands go on. Then the new shard, the new ring and the
+     * pins of the books that must move are switched in together under a short routing
+     * write lock. If a shard cannot be listed, nothing changes and the new shard is closed.
+     * @return The number of books moved at once; the others move when their copies are back.
+     */
+    int addShard(String name, Shard shard) throws IOException {
+        synchronized (shardChange) {
+            adding.writeLock().lock();
+            listing.readLock().lock();
+            try {
+                ShardRing next;
+                Map<TitleKey, Pin> pins;
+                try {
+                    requireName(name);
+                    next = ring.withShard(name);
+                    List<Shard> all = new ArrayList<>(shards);
+                    all.add(shard);
+                    pins = misplaced(all, next);
+                } catch (IOException | RuntimeException e) {
+                    shard.close();
+                    throw e;
+                }
+                routing.writeLock().lock();
+                try {
+                    shards.add(shard);
+                    pinned.putAll(pins);
+                    ring = next;
+                } finally {
+                    routing.writeLock().unlock();
+                }
+            } finally {
+                listing.readLock().unlock();
+                adding.writeLock().unlock();
+            }
+        }
+        return rebalance();
+    }
+
+    /**
+     * Tries to move every pinned book to its shard on the ring.
+     * @return The number of books moved.
+     */
+    int rebalance() throws IOException {
+        return moveBooks(new ArrayList<>(pinned.keySet()));
+    }
+
+    /**
+     * @return The number of books still waiting to move.
+     */
+    int pinnedBooks() {
+        return pinned.size();
+    }
+
+    /**
+     * Lists some shards and finds the books that are not on the shard a ring gives them.
+     * Called with no move copying books (the listing read lock held, or before any move).
+     * @param targets The shards, numbered like the ring's.
+     * @return A pin for every such book, at the shard that has it.
+     */
+    private Map<TitleKey, Pin> misplaced(List<Shard> targets, ShardRing on) throws IOException {
+        String[] commands = new String[targets.size()];
+        Arrays.fill(commands, "LIST");
+        List<List<String>> lists = gather(targets, commands);
+        Map<TitleKey, Pin> pins = new HashMap<>();
+        for (int shard = 0; shard < lists.size(); shard++)
+            for (String line : lists.get(shard)) {
+                String title = line.substring(0, line.indexOf('\t'));
+                TitleKey key = TitleKey.of(title);
+                if (on.shardFor(key) != shard)
+                    pins.put(key, new Pin(shard, title));
+            }
+        return pins;
+    }
+
+    /**
+     * Moves pinned books to their shards on the ring, in batches of books that move between
+     * the same two shards.
+     * @return The number of books moved.
+     */
+    private int moveBooks(List<TitleKey> keys) throws IOException {
+        // Group the books by {from, to} shard numbers.
+        Map<Long, List<TitleKey>> groups = new HashMap<>();
+        for (TitleKey key : keys) {
+            Pin pin = pinned.get(key);
+            if (pin != null)
+                groups.computeIfAbsent((long) pin.shard << 32 | ring.shardFor(key), g -> new ArrayList<>()).add(key);
+        }
+        int moved = 0;
+        for (List<TitleKey> group : groups.values())
+            for (int i = 0; i < group.size(); i += MOVE_BATCH)
+                moved += moveBatch(group.subList(i, Math.min(group.size(), i + MOVE_BATCH)));
+        return moved;
+    }
+
+    /**
+     * Moves a batch of pinned books from their shard to their shard on the ring:
+     *   1. Under the routing write lock, the books are marked as moving, so commands about
+     *      them wait (commands already running on them finish first).
+     *   2. The old shard is asked for their counts and queues in one round trip. Only books
+     *      with all copies on the shelf and no one waiting go on; the others stay pinned and
+     *      move when their copies are back. A book deleted in the meantime is just unpinned.
+     *   3. With listings held off, the books are added to the new shard in one round trip.
+     *   4. Under the routing write lock, commands about them are sent to the new shard.
+     *   5. They are deleted from the old shard in one round trip, and listings go on.
+     * Only steps 1 and 4 hold the routing write lock, and neither waits for a shard.
+     * Books whose shards no longer match the first book of the batch (the ring changed
+     * in the meantime) are left for the next rebalance.
+     * @return The number of books moved.
+     */
+    private int moveBatch(List<TitleKey> keys) throws IOException {
+        List<TitleKey> batch = new ArrayList<>();
+        List<String> titles = new ArrayList<>(); // Moved under the name they have, not the one a command typed.
+        int from = -1, to = -1;
+        routing.writeLock().lock();
+        try {
+            for (TitleKey key : keys) {
+                Pin pin = pinned.get(key);
+                if (pin == null || moving.contains(key))
+                    continue;
+                int owner = ring.shardFor(key);
+                if (owner == pin.shard) {
+                    pinned.remove(key);
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    from = pin.shard;
+                    to = owner;
+                }
+                if (pin.shard == from && owner == to) {
+                    moving.add(key);
+                    batch.add(key);
+                    titles.add(pin.title);
+                }
+            }
+        } finally {
+            routing.writeLock().unlock();
+        }
+        if (batch.isEmpty())
+            return 0;
+
+        List<TitleKey> gone = new ArrayList<>();
+        int moved = 0;
+        try {
+            Shard source = shards.get(from), target = shards.get(to);
+            List<String> checks = new ArrayList<>();
+            for (String title : titles) {
+                checks.add("BOOK " + title);
+                checks.add("WAITING " + title);
+            }
+            List<String> states = source.callAll(checks);
+            List<Integer> ready = new ArrayList<>(); // Positions in 'batch' of the books that can move.
+            List<String> adds = new ArrayList<>();
+            List<TitleKey> staying = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                String book = states.get(2 * i);
+                if (book.startsWith("ERR")) {
+                    gone.add(batch.get(i));
+                    continue;
+                }
+                String[] counts = book.split(" ");
+                if (counts[1].equals(counts[2]) && states.get(2 * i + 1).equals("OK 0")) {
+                    ready.add(i);
+                    adds.add("ADD " + counts[1] + " " + titles.get(i));
+                } else {
+                    staying.add(batch.get(i));
+                }
+            }
+            // Commands about the books that stay need not wait for the others.
+            release(staying, gone);
+            if (ready.isEmpty())
+                return 0;
+
+            listing.writeLock().lock();
+            try {
+                List<String> added = target.callAll(adds);
+                // A book that is already there was left by a move that stopped before the
+                // delete; it only counts as moved if its counts match.
+                List<Integer> already = new ArrayList<>();
+                List<String> recheck = new ArrayList<>();
+                for (int j = 0; j < ready.size(); j++)
+                    if (!added.get(j).startsWith("OK")) {
+                        already.add(j);
+                        recheck.add("BOOK " + titles.get(ready.get(j)));
+                    }
+                boolean[] copied = new boolean[ready.size()];
+                Arrays.fill(copied, true);
+                if (!recheck.isEmpty()) {
+                    List<String> there = target.callAll(recheck);
+                    for (int k = 0; k < already.size(); k++) {
+                        int i = ready.get(already.get(k));
+                        copied[already.get(k)] = there.get(k).equals(states.get(2 * i));
+                    }
+                }
+
+                List<String> deletes = new ArrayList<>();
+                routing.writeLock().lock();
+                try {
+                    for (int j = 0; j < ready.size(); j++) {
+                        if (!copied[j])
+                            continue;
+                        int i = ready.get(j);
+                        TitleKey key = batch.get(i);
+                        // If the ring changed meanwhile, the book waits on its new shard for the next move.
+                        if (ring.shardFor(key) == to)
+                            pinned.remove(key);
+                        else
+                            pinned.put(key, new Pin(to, titles.get(i)));
+                        moving.remove(key);
+                        deletes.add("DELETE " + titles.get(i));
+                        moved++;
+                    }
+                } finally {
+                    routing.writeLock().unlock();
+                }
+                synchronized (moveDone) {
+                    moveDone.notifyAll();
+                }
+                // One run of DELETE lines, which the shard deletes under one lock (see LibraryCommands).
+                if (!deletes.isEmpty())
+                    source.callAll(deletes);
+            } finally {
+                listing.writeLock().unlock();
+            }
+            return moved;
+        } finally {
+            release(batch, gone);
+        }
+    }
+
+    /**
+     * Takes books out of a batch being moved and wakes the commands waiting for them.
+     * @param unpin Books that were deleted meanwhile, so there is nothing left to move.
+     */
+    private void release(List<TitleKey> keys, List<TitleKey> unpin) {
+        routing.writeLock().lock();
+        try {
+            for (TitleKey key : unpin)
+                pinned.remove(key);
+            moving.removeAll(keys);
+        } finally {
+            routing.writeLock().unlock();
+        }
+        synchronized (moveDone) {
+            moveDone.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until a book is no longer in a batch being moved.
+     */
+    private void awaitMove(TitleKey key) throws IOException {
+        synchronized (moveDone) {
+            try {
+                while (moving.contains(key))
+                    moveDone.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a book to move.");
+            }
+        }
+    }
+
+    /**
+     * Runs one command for the whole library and writes its reply.
+     * @return false if the client asked to quit, true otherwise.
+     */
+    @Override
+    public boolean execute(String line, Appendable out) throws IOException {
+        line = line.trim();
+        if (line.isEmpty())
+            return true;
+        String command = commandOf(line);
+        String rest = line.indexOf(' ') < 0 ? "" : line.substring(line.indexOf(' ') + 1).trim();
+
+        try {
+            switch (command) {
+                case "ADD":
+                case "UPDATE":
+                case "ISSUE":
+                case "RETURN":
+                case "RESERVE":
+                case "CANCEL":
+                case "HOLDER":
+                    routeBook(line, command, rest.indexOf(' ') < 0 ? "" : rest.substring(rest.indexOf(' ') + 1).trim(), out);
+                    break;
+                case "DELETE":
+                case "WAITING":
+                case "BOOK":
+                    routeBook(line, command, rest, out);
+                    break;
+                case "LIST":
+                    merge(gatherRouted("LIST"), Integer.MAX_VALUE, 0, out);
+                    reply(out, "END");
+                    break;
+                case "PREFIX":
+                case "SEARCH":
+                case "AFTER":
+                case "RANGE":
+                    merge(gatherRouted(line), Integer.parseInt(rest.split("\\s+")[0]), 0, out);
+                    reply(out, "END");
+                    break;
+                case "PAGE": {
+                    String[] args = rest.split("\\s+");
+                    if (args.length != 2)
+                        throw new IllegalArgumentException("Expected an offset and a limit.");
+                    page(Integer.parseInt(args[0]), Integer.parseInt(args[1]), out);
+                    reply(out, "END");
+                    break;
+                }
+                case "RANK": {
+                    long rank = 0;
+                    for (List<String> r : gatherRouted(line))
+                        rank += Long.parseLong(r.get(0).substring(3));
+                    reply(out, "OK " + rank);
+                    break;
+                }
+                case "LOANS":
+                    for (List<String> r : gatherRouted(line))
+                        for (String loan : r)
+                            reply(out, loan);
+                    reply(out, "END");
+                    break;
+                case "OVERDUE":
+                case "DUE": {
+                    String[] args = rest.split("\\s+");
+                    int limit = Integer.parseInt(args[args.length - 1]);
+                    // Each shard lists its loans earliest first; the earliest of all are kept.
+                    List<String> loans = new ArrayList<>();
+                    for (List<String> r : gatherRouted(line))
+                        loans.addAll(r);
+                    loans.sort(Comparator.comparingLong(l -> Long.parseLong(l.substring(l.lastIndexOf('\t') + 1))));
+                    for (String loan : loans.subList(0, Math.min(limit, loans.size())))
+                        reply(out, loan);
+                    reply(out, "END");
+                    break;
+                }
+                case "STUDENTS":
+                    for (String student : shards.get(0).call(line))
+                        reply(out, student);
+                    reply(out, "END");
+                    break;
+                case "METRICS":
+                case "REPORT": {
+                    List<List<String>> replies = gatherRouted(line);
+                    for (int shard = 0; shard < replies.size(); shard++) {
+                        reply(out, "# shard " + ring.name(shard));
+                        for (String r : replies.get(shard))
+                            reply(out, r);
+                    }
+                    reply(out, "END");
+                    break;
+                }
+                case "ADDSHARD": {
+                    String name = requireName(rest);
+                    int moved = addShard(name, open(name, students));
+                    reply(out, "OK Shard " + name + " added; " + moved + " books moved, " + pinned.size()
+                            + " waiting for their copies.");
+                    break;
+                }
+                case "QUIT":
+                    reply(out, "OK Goodbye!");
+                    return false;
+                default:
+                    reply(out, "ERR Unknown command: " + command);
+            }
+        } catch (IllegalArgumentException e) {
+            reply(out, "ERR " + e.getMessage());
+        } catch (IOException e) {
+            reply(out, "ERR A shard could not be reached: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Sends a command about one book to the shard that has the book.
+     */
+    private void routeBook(String line, String command, String book, Appendable out) throws IOException {
+        if (command.equals("ADD")) {
+            adding.readLock().lock();
+            try {
+                routeLocked(line, command, book, out);
+            } finally {
+                adding.readLock().unlock();
+            }
+        } else {
+            routeLocked(line, command, book, out);
+        }
+    }
+
+    private void routeLocked(String line, String command, String book, Appendable out) throws IOException {
+        TitleKey key = TitleKey.of(book);
+        String answer;
+        boolean pinnedBook;
+        while (true) {
+            routing.readLock().lock();
+            try {
+                if (!moving.contains(key)) {
+                    Pin pin = pinned.get(key);
+                    pinnedBook = pin != null;
+                    answer = shards.get(pinnedBook ? pin.shard : ring.shardFor(key)).call(line).get(0);
+                    if (pinnedBook && answer.startsWith("OK") && command.equals("DELETE"))
+                        pinned.remove(key); // Nothing left to move.
+                    break;
+                }
+            } finally {
+                routing.readLock().unlock();
+            }
+            awaitMove(key);
+        }
+        reply(out, answer);
+        // A copy that came back (or a queue that got shorter) may let a pinned book move now.
+        if (pinnedBook && answer.startsWith("OK") && (command.equals("RETURN") || command.equals("CANCEL")))
+            moveBooks(List.of(key));
+    }
+
+    /**
+     * Sends a command to every shard at once and waits for all the replies.
+     * @return The replies, in shard order.
+     */
+    private List<List<String>> gather(String command) throws IOException {
+        String[] commands = new String[shards.size()];
+        Arrays.fill(commands, command);
+        return gather(commands);
+    }
+
+    /**
+     * Sends each shard its own command at once and waits for all the replies.
+     * @param commands The command for each shard, in shard order.
+     * @return The replies, in shard order.
+     */
+    private List<List<String>> gather(String[] commands) throws IOException {
+        return gather(shards, commands);
+    }
+
+    /**
+     * Like gather(String[]), for a given list of shards.
+     */
+    private List<List<String>> gather(List<Shard> targets, String[] commands) throws IOException {
+        List<Future<List<String>>> futures = new ArrayList<>();
+        for (int i = 0; i < commands.length; i++) {
+            Shard shard = targets.get(i);
+            String command = commands[i];
+            futures.add(scatter.submit(() -> shard.call(command)));
+        }
+        List<List<String>> replies = new ArrayList<>();
+        for (Future<List<String>> f : futures) {
+            try {
+                replies.add(f.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the shards.");
+            }
+        }
+        // A shard that rejected the command answers alone with ERR; pass its message on.
+        for (List<String> r : replies)
+            if (r.size() == 1 && r.get(0).startsWith("ERR "))
+                throw new IllegalArgumentException(r.get(0).substring(4));
+        return replies;
+    }
+
+    /**
+     * Like gather(), holding the listing read lock so no book is on two shards meanwhile.
+     */
+    private List<List<String>> gatherRouted(String command) throws IOException {
+        listing.readLock().lock();
+        try {
+            return gather(command);
+        } finally {
+            listing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a page of names in alphabetical order: finds how many names of each shard
+     * come before the page (pageStart()), then merges 'limit' names from there on every shard.
+     * A page near the start is merged from every shard's first offset+limit names instead.
+     */
+    private void page(int offset, int limit, Appendable out) throws IOException {
+        if (offset < 0)
+            return;
+        if (offset < PAGE_SCAN) {
+            merge(gatherRouted("PAGE 0 " + (offset + limit)), limit, offset, out);
+            return;
+        }
+        listing.readLock().lock();
+        try {
+            int[] start = pageStart(offset);
+            String[] commands = new String[start.length];
+            for (int shard = 0; shard < start.length; shard++)
+                commands[shard] = "PAGE " + start[shard] + " " + limit;
+            merge(gather(commands), limit, 0, out);
+        } finally {
+            listing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds, for every shard, how many of its names come before the name at position
+     * 'offset' of the whole library (all of its names if the library is shorter).
+     *
+     * Those counts always lie in a range [lo, hi] per shard, at first [0, offset]. Each step
+     * takes the name in the middle of the widest range (a one-name PAGE on that shard) and
+     * asks every shard for its RANK. If the ranks add up to 'offset', that name starts the
+     * page; if less, every range starts at least at the name's rank there (past the name on
+     * its own shard); if more, every range ends at most there. Each step halves the widest
+     * range, so it takes O(shards * log offset) steps of O(log n) each, whatever the offset.
+     * Called with the listing read lock held.
+     */
+    private int[] pageStart(int offset) throws IOException {
+        int n = shards.size();
+        int[] lo = new int[n], hi = new int[n];
+        Arrays.fill(hi, offset);
+        while (true) {
+            int s = -1;
+            for (int t = 0; t < n; t++)
+                if (hi[t] > lo[t] && (s < 0 || hi[t] - lo[t] > hi[s] - lo[s]))
+                    s = t;
+            if (s < 0)
+                return lo;
+            int p = (lo[s] + hi[s]) >>> 1;
+            List<String> name = shards.get(s).call("PAGE " + p + " 1");
+            if (name.isEmpty()) {
+                hi[s] = p; // The shard has no more than p names.
+                continue;
+            }
+            List<List<String>> replies = gather("RANK " + name.get(0));
+            int[] rank = new int[n];
+            long sum = 0;
+            for (int t = 0; t < n; t++) {
+                rank[t] = Integer.parseInt(replies.get(t).get(0).substring(3));
+                sum += rank[t];
+            }
+            if (sum == offset)
+                return rank;
+            for (int t = 0; t < n; t++) {
+                if (sum < offset)
+                    lo[t] = Math.max(lo[t], t == s ? p + 1 : rank[t]);
+                else
+                    hi[t] = Math.min(hi[t], rank[t]);
+            }
+        }
+    }
+
+    /**
+     * Merges the shards' alphabetical lists into one (a k-way merge on the book name,
+     * which is each line's text up to the first tab) and writes part of it.
+     * @param limit The most lines to write.
+     * @param skip How many lines to leave out first.
+     */
+    private static void merge(List<List<String>> lists, int limit, int skip, Appendable out) throws IOException {
+        // Each cursor is {list, position}; the queue orders them by the name at their position.
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Comparator.comparing((int[] c) ->
+                nameKey(lists.get(c[0]).get(c[1]))));
+        for (int i = 0; i < lists.size(); i++)
+            if (!lists.get(i).isEmpty())
+                heads.add(new int[] { i, 0 });
+        int written = 0;
+        for (int n = 0; !heads.isEmpty() && written < limit; n++) {
+            int[] c = heads.poll();
+            List<String> list = lists.get(c[0]);
+            if (n >= skip) {
+                reply(out, list.get(c[1]));
+                written++;
+            }
+            if (++c[1] < list.size())
+                heads.add(c);
+        }
+    }
+
+    private static TitleKey nameKey(String line) {
+        int tab = line.indexOf('\t');
+        return TitleKey.of(tab < 0 ? line : line.substring(0, tab));
+    }
+
+    private static String commandOf(String line) {
+        int space = line.indexOf(' ');
+        return (space < 0 ? line : line.substring(0, space)).toUpperCase();
+    }
+
+    private String requireName(String name) {
+        if (name.isEmpty())
+            throw new IllegalArgumentException("Missing shard: a directory or host:port.");
+        for (int shard = 0; shard < ring.size(); shard++)
+            if (ring.name(shard).equals(name))
+                throw new IllegalArgumentException("Shard " + name + " is already in the library.");
+        return name;
+    }
+
+    private static void reply(Appendable out, String line) throws IOException {
+        out.append(line).append('\n');
+    }
+
+    /**
+     * Opens a shard from its name: host:port for a LibraryServer, otherwise a directory
+     * for a shard in this JVM (created if needed).
+     */
+    static Shard open(String name, StudentRegistry students) throws IOException {
+        int colon = name.lastIndexOf(':');
+        if (colon > 0 && name.substring(colon + 1).matches("\\d+"))
+            return new RemoteShard(name.substring(0, colon), Integer.parseInt(name.substring(colon + 1)));
+        File dir = new File(name);
+        dir.mkdirs();
+        return new LocalShard(LoanService.open(dir, students, library_management.LOAN_PERIOD_MILLIS));
+    }
+
+    /**
+     * Closes every shard; shards in this JVM save a snapshot.
+     */
+    @Override
+    public void close() throws IOException {
+        scatter.shutdown();
+        for (Shard shard : shards)
+            shard.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = LibraryServer.DEFAULT_PORT;
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port"))
+                port = Integer.parseInt(args[++i]);
+            else
+                names.add(args[i]);
+        }
+        if (names.isEmpty()) {
+            System.out.println("Usage: java ShardedLibrary [-port N] shard...   (a shard is a directory or host:port)");
+            return;
+        }
+
+        // Shards in this JVM share the students, so borrowing limits count every shard's loans.
+        StudentRegistry students = library_management.loadStudents();
+        List<Shard> shards = new ArrayList<>();
+        for (String name : names)
+            shards.add(open(name, students));
+        ShardedLibrary library = new ShardedLibrary(names, shards, students);
+        System.out.println("Sharded library over " + names.size() + " shards; " + library.pinnedBooks()
+                + " books waiting to move.");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                library.close();
+            } catch (IOException e) {
+                System.out.println("Could not close the shards: " + e.getMessage());
+            }
+        }));
+
+        try (ServerSocket server = new ServerSocket(port, 4096)) {
+            System.out.println("Library server listening on port " + port + ".");
+            new LibraryServer(library).serve(server);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * The Student class is a simple data structure (a blueprint) to hold information
+ * about each student. It acts like a container for student details.
+ */
+class Student {
+    String name;
+    int id_no;
+    String Stream;
+    int book_no; // A counter for the number of books currently issued (the books are in LoanTable).
+    int holds; // Books the student has reserved and is waiting for (these count towards the limit).
+    int limit = -1; // How many books the student may have at once (see LoanService.limitOf()); -1 until known.
+    int issuedbook; // This variable seems declared but not used in the logic.
+
+    /**
+     * Constructor for the Student class.
+     * It's called when a new Student object is created and initializes its properties.
+     * @param name The student's name.
+     * @param id_no The student's unique ID number.
+     * @param Stream The student's academic stream (e.g., "B.Tech-ICT").
+     */
+    Student(String name, int id_no, String Stream) {
+        this.name = name;
+        this.id_no = id_no;
+        this.Stream = Stream;
+    }
+}
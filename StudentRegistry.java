@@ -0,0 +1,176 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The StudentRegistry class holds every registered student and finds one by ID in
+ * constant time. IDs are kept in an open-addressing hash table of plain ints, so a
+ * lookup never boxes the ID or walks a list of students.
+ *
+ * It replaces the fixed Student array that issue and return used to scan, and the
+ * selection sort that ordered it: sortedById() sorts the IDs with a radix sort,
+ * which takes linear time even with hundreds of thousands of students.
+ */
+class StudentRegistry {
+    private static final int EMPTY = -1;
+
+    private int[] table; // Hash table of positions in 'students'. Length is a power of two.
+    private int[] ids; // ids[i] is the ID of students[i], kept next to the table for fast probing.
+    private Student[] students;
+    private int size;
+
+    StudentRegistry(int expectedStudents) {
+        int n = Math.max(16, expectedStudents);
+        ids = new int[n];
+        students = new Student[n];
+        table = newTable(Hashing.tableSizeFor(n));
+    }
+
+    /**
+     * Finds a student by ID.
+     * @param id The student's ID.
+     * @return The student, or null if no student has this ID.
+     */
+    Student get(int id) {
+        int mask = table.length - 1;
+        for (int i = Hashing.spread(id) & mask; ; i = (i + 1) & mask) {
+            int pos = table[i];
+            if (pos == EMPTY)
+                return null;
+            if (ids[pos] == id)
+                return students[pos];
+        }
+    }
+
+    /**
+     * Registers a student.
+     * @param s The student.
+     * @return true if registered, false if a student with the same ID already exists.
+     */
+    boolean register(Student s) {
+        if (get(s.id_no) != null)
+            return false;
+        if (size == students.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            students = Arrays.copyOf(students, size * 2);
+        }
+        // Keep the table at most half full so probe sequences stay short.
+        if ((size + 1) * 2 > table.length)
+            rehash(Hashing.tableSizeFor(size + 1));
+
+        ids[size] = s.id_no;
+        students[size] = s;
+        insertIntoTable(size);
+        size++;
+        return true;
+    }
+
+    /**
+     * @return The number of registered students.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Visits every student, in registration order.
+     */
+    void forEach(Consumer<Student> action) {
+        for (int i = 0; i < size; i++)
+            action.accept(students[i]);
+    }
+
+    /**
+     * Returns the students in ascending order of their ID number.
+     * The IDs are sorted with an LSD radix sort (four passes of 8 bits), which is linear
+     * in the number of students, instead of the quadratic selection sort used before.
+     * @return A new array of the students, sorted by ID.
+     */
+    Student[] sortedById() {
+        // Sort positions by ID. Flipping the sign bit makes negative IDs sort first.
+        int[] keys = new int[size];
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ids[i] ^ Integer.MIN_VALUE;
+            order[i] = i;
+        }
+        int[] keyBuf = new int[size];
+        int[] orderBuf = new int[size];
+        int[] count = new int[257];
+        for (int shift = 0; shift < 32; shift += 8) {
+            Arrays.fill(count, 0);
+            for (int i = 0; i < size; i++)
+                count[((keys[i] >>> shift) & 0xFF) + 1]++;
+            for (int b = 0; b < 256; b++)
+                count[b + 1] += count[b];
+            for (int i = 0; i < size; i++) {
+                int dst = count[(keys[i] >>> shift) & 0xFF]++;
+                keyBuf[dst] = keys[i];
+                orderBuf[dst] = order[i];
+            }
+            int[] t = keys; keys = keyBuf; keyBuf = t;
+            t = order; order = orderBuf; orderBuf = t;
+        }
+
+        Student[] sorted = new Student[size];
+        for (int i = 0; i < size; i++)
+            sorted[i] = students[order[i]];
+        return sorted;
+    }
+
+    /**
+     * Registers every student listed in a roster file. Each line is
+     * "id,name,stream"; blank lines and lines starting with '#' are skipped.
+     * @param roster The roster file.
+     * @return The number of students registered (duplicates are skipped).
+     */
+    int loadRoster(File roster) throws IOException {
+        int added = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(roster), 1 << 16)) {
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] parts = line.split(",", 3);
+                if (parts.length < 3)
+                    throw new IOException(roster + " line " + lineNo + ": expected id,name,stream");
+                try {
+                    Student s = new Student(parts[1].trim(), Integer.parseInt(parts[0].trim()), parts[2].trim());
+                    if (register(s))
+                        added++;
+                } catch (NumberFormatException e) {
+                    throw new IOException(roster + " line " + lineNo + ": bad student id '" + parts[0] + "'");
+                }
+            }
+        }
+        return added;
+    }
+
+
+    private void insertIntoTable(int pos) {
+        int mask = table.length - 1;
+        int i = Hashing.spread(ids[pos]) & mask;
+        while (table[i] != EMPTY)
+            i = (i + 1) & mask;
+        table[i] = pos;
+    }
+
+    private void rehash(int newSize) {
+        table = newTable(newSize);
+        for (int pos = 0; pos < size; pos++)
+            insertIntoTable(pos);
+    }
+
+    private static int[] newTable(int size) {
+        int[] t = new int[size];
+        Arrays.fill(t, EMPTY);
+        return t;
+    }
+
+}
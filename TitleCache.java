@@ -0,0 +1,296 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The TitleCache class remembers the slots (see InventoryStore) of the books asked for most
+ * often, so issuing a popular book takes one hash probe instead of a walk down the book tree
+ * followed by the inventory lookup.
+ *
+ * Circulation is very uneven: a few hundred textbooks make up most of the issues. The cache
+ * keeps a fixed number of names and evicts with the CLOCK algorithm: entries sit in a ring
+ * with a "referenced" bit that every hit sets. To make room, a hand sweeps the ring, clearing
+ * set bits and stopping at the first entry whose bit is already clear, so a book that keeps
+ * being asked for survives every sweep.
+ *
+ * Before that entry is evicted, a TinyLFU admission filter decides whether the new book is
+ * worth it: a count-min sketch (four small counters per name, the smallest one counts)
+ * estimates how often each name was looked up recently, and the new book only replaces the
+ * old one if it was asked for more often. So books asked for once in a while never push out
+ * the textbooks. All counters are halved every few thousand counted lookups, so old
+ * popularity fades.
+ *
+ * Names are found by their TitleKey through an open-addressing hash table of entries, so
+ * every spelling of a name (ignoring case) shares one entry. get() compares the typed name
+ * with the cached keys directly, so a hit makes no key. Only names that were found are
+ * cached, and LoanService removes a book's entry when the book is deleted.
+ *
+ * get() takes no lock, so every desk can look up popular books at once:
+ *   - An entry never changes once it is in the table (a new slot means a new entry), so a
+ *     reader that finds one can trust it. The table itself is only changed by put() and
+ *     remove(), which are synchronized; a reader that races with them may miss a name that
+ *     is being moved and then just looks the book up the slow way.
+ *   - A hit only writes the referenced bit when it is still clear, so popular entries are
+ *     read by every core but written once per sweep of the hand.
+ *   - Only one lookup in SAMPLE is counted in the sketch, without a lock. The sketch is an
+ *     estimate anyway, so an increment lost to a race does not matter.
+ */
+class TitleCache {
+    // Returned by get() when the name is not cached.
+    static final int MISS = -1;
+    private static final int SAMPLE = 16; // One lookup in SAMPLE is counted in the sketch.
+
+    /**
+     * A cached name with its slot.
+     */
+    private static final class Entry {
+        final TitleKey key;
+        final int hash;
+        final int slot;
+        final int ring; // Its place in the ring.
+        boolean referenced; // Set by hits, cleared by the CLOCK hand; a lost write is harmless.
+
+        Entry(TitleKey key, int hash, int slot, int ring) {
+            this.key = key;
+            this.hash = hash;
+            this.slot = slot;
+            this.ring = ring;
+        }
+    }
+
+    // The entry ring, only used under the lock. A null entry is free.
+    private final Entry[] ring;
+    private int used; // Entries handed out so far; those from 'used' on were never used.
+    private int hand; // Next entry the CLOCK hand looks at.
+    private int size;
+
+    // Hash table from name to entry (linear probing, null = empty bucket), read without the lock.
+    private final AtomicReferenceArray<Entry> index;
+
+    // Frequency sketch: 4-bit counters, at most 15, in one byte each.
+    private final byte[] sketch;
+    private final int sampleSize; // Counted lookups between two halvings of the counters.
+    private int sampled;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long evictions, rejections;
+
+    /**
+     * Creates an empty cache.
+     * @param capacity The most names the cache keeps.
+     */
+    TitleCache(int capacity) {
+        int n = Math.max(1, capacity);
+        ring = new Entry[n];
+        index = new AtomicReferenceArray<>(Hashing.tableSizeFor(n));
+        sketch = new byte[Hashing.tableSizeFor(n * 4)];
+        sampleSize = Math.max(16, 10 * n / SAMPLE);
+    }
+
+    /**
+     * Looks up a book. The typed name is compared with the cached keys (see
+     * TitleKey.matches()), so no key is made for it.
+     * @param title The name of the book (ignoring case).
+     * @return The book's slot, or MISS if it is not cached.
+     */
+    int get(String title) {
+        int h = Hashing.spread(TitleKey.hashOf(title));
+        if ((ThreadLocalRandom.current().nextInt() & (SAMPLE - 1)) == 0)
+            countLookup(h);
+        int mask = index.length() - 1;
+        Entry e;
+        for (int i = h & mask; (e = index.get(i)) != null; i = (i + 1) & mask)
+            if (e.hash == h && e.key.matches(title))
+                break;
+        if (e == null) {
+            misses.increment();
+            return MISS;
+        }
+        hits.increment();
+        if (!e.referenced)
+            e.referenced = true;
+        return e.slot;
+    }
+
+    /**
+     * Caches the slot of a book that was just found. If the cache is full, the book takes
+     * the place of the entry the CLOCK hand stops at, but only if it was looked up more
+     * often recently (see the class comment).
+     */
+    synchronized void put(TitleKey key, int slot) {
+        int h = hash(key);
+        Entry old = find(key, h);
+        if (old != null) {
+            if (old.slot != slot) {
+                Entry e = new Entry(key, h, slot, old.ring);
+                e.referenced = old.referenced;
+                ring[old.ring] = e;
+                index.set(bucketOf(old), e);
+            }
+            return;
+        }
+        int r;
+        if (used < ring.length) {
+            r = used++;
+        } else {
+            r = victim();
+            if (ring[r] != null) {
+                if (frequency(h) <= frequency(ring[r].hash)) {
+                    rejections++;
+                    return;
+                }
+                remove(ring[r]);
+                evictions++;
+            }
+        }
+        Entry e = new Entry(key, h, slot, r);
+        ring[r] = e;
+        size++;
+        int mask = index.length() - 1;
+        int i = h & mask;
+        while (index.get(i) != null)
+            i = (i + 1) & mask;
+        index.set(i, e);
+    }
+
+    /**
+     * Forgets a book, for example because it was deleted.
+     */
+    synchronized void remove(TitleKey key) {
+        Entry e = find(key, hash(key));
+        if (e != null)
+            remove(e);
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return How many books were not cached because the admission filter kept the old entry.
+     */
+    synchronized long rejections() {
+        return rejections;
+    }
+
+    /**
+     * @return The number of names cached.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The share of lookups that were hits, from 0 to 1 (0 before the first lookup).
+     */
+    double hitRate() {
+        long h = hits.sum();
+        long lookups = h + misses.sum();
+        return lookups == 0 ? 0 : (double) h / lookups;
+    }
+
+    /**
+     * Moves the CLOCK hand past the first free or unreferenced entry, clearing the bits it
+     * passes.
+     * @return That entry's place in the ring.
+     */
+    private int victim() {
+        while (true) {
+            int r = hand;
+            hand = (hand + 1) % ring.length;
+            if (ring[r] == null || !ring[r].referenced)
+                return r;
+            ring[r].referenced = false;
+        }
+    }
+
+    /**
+     * Adds one counted lookup of a name to the frequency sketch, halving every counter once
+     * sampleSize lookups were counted. Runs without a lock (see the class comment).
+     */
+    private void countLookup(int h) {
+        for (int row = 0; row < 4; row++) {
+            int i = sketchIndex(h, row);
+            if (sketch[i] < 15)
+                sketch[i]++;
+        }
+        if (++sampled == sampleSize) {
+            for (int i = 0; i < sketch.length; i++)
+                sketch[i] >>= 1;
+            sampled /= 2;
+        }
+    }
+
+    /**
+     * @return About how often a name was looked up recently (the smallest of its counters).
+     */
+    private int frequency(int h) {
+        int f = 15;
+        for (int row = 0; row < 4; row++)
+            f = Math.min(f, sketch[sketchIndex(h, row)]);
+        return f;
+    }
+
+    private int sketchIndex(int h, int row) {
+        int x = (h + row) * 0x9E3779B9;
+        x ^= x >>> 15;
+        x *= 0x85EBCA6B;
+        return (x ^ (x >>> 13)) & (sketch.length - 1);
+    }
+
+    /**
+     * @return The entry holding a name, or null.
+     */
+    private Entry find(TitleKey key, int h) {
+        int mask = index.length() - 1;
+        Entry e;
+        for (int i = h & mask; (e = index.get(i)) != null; i = (i + 1) & mask)
+            if (e.hash == h && e.key.equals(key))
+                return e;
+        return null;
+    }
+
+    /**
+     * @return The bucket of an entry that is in the table. Called with the lock held.
+     */
+    private int bucketOf(Entry e) {
+        int mask = index.length() - 1;
+        int i = e.hash & mask;
+        while (index.get(i) != e)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * Empties an entry and deletes it from the hash table (see Hashing.fillsGap()).
+     */
+    private void remove(Entry e) {
+        int mask = index.length() - 1;
+        int gap = bucketOf(e);
+        Entry next;
+        for (int j = (gap + 1) & mask; (next = index.get(j)) != null; j = (j + 1) & mask) {
+            if (Hashing.fillsGap(next.hash & mask, gap, j, mask)) {
+                index.set(gap, next);
+                gap = j;
+            }
+        }
+        index.set(gap, null);
+        ring[e.ring] = null;
+        size--;
+    }
+
+    private static int hash(TitleKey key) {
+        return Hashing.spread(key.hashCode());
+    }
+
+
+}
@@ -0,0 +1,357 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The TitleIndex class finds books whose name contains a piece of text anywhere
+ * (for example "data" finds "Big Data Systems"), ignoring case.
+ *
+ * Every book name is cut into overlapping three-letter pieces called trigrams
+ * ("java" gives "jav" and "ava"). For each trigram the index keeps a list of the
+ * slots (see InventoryStore) of the books that contain it. A search takes the
+ * trigram of the query with the shortest list and only checks those books, instead
+ * of every book in the library.
+ *
+ * Texts of one or two letters have no trigram. Every such letter of a name is either the
+ * start of a trigram or one of the name's last two letters, so the index also keeps the
+ * end of every name (its last two letters, or the one letter of a one-letter name) as a
+ * gram of its own, and for every one- and two-letter text a list of the grams that start
+ * with it (or, for an end, contain it). A short search reads only those lists.
+ *
+ * The answer is always the first 'limit' matches in alphabetical order. When the
+ * candidates are few, all of them are checked and the first ones kept. When they are
+ * so many that matches are common, walking the book tree in order (see
+ * library_management.firstMatching()) reaches 'limit' matches sooner, so that is used.
+ *
+ * Grams are packed into a long and kept in an open-addressing hash table, and the
+ * slot lists are plain int arrays, so the index holds no per-entry objects.
+ * Prefix searches do not need this index: the book tree is sorted, so
+ * library_management.startingWith() answers them directly.
+ */
+class TitleIndex {
+    private static final int GRAM = 3;
+    // Kinds of grams, in the bits above the packed letters. A trigram has none.
+    private static final long END1 = 1L << 48; // A one-letter name.
+    private static final long END2 = 2L << 48; // The last two letters of a name.
+    private static final long SHORT1 = 3L << 48; // A one-letter text; its list holds list numbers.
+    private static final long SHORT2 = 4L << 48; // A two-letter text; its list holds list numbers.
+    // Candidates checked to guess how many of them match.
+    private static final int SAMPLE = 64;
+
+    private long[] grams; // Hash table of packed trigrams. Its length is always a power of two.
+    private int[] listOf; // listOf[i] is 1 + the list number of grams[i], or 0 if bucket i is empty.
+
+    private int[][] lists; // lists[l] holds the slots of the books containing trigram l.
+    private int[] lengths; // How many entries of lists[l] are used.
+    private int listCount;
+
+    TitleIndex(int expectedGrams) {
+        int n = Math.max(16, expectedGrams);
+        grams = new long[Hashing.tableSizeFor(n)];
+        listOf = new int[grams.length];
+        lists = new int[n][];
+        lengths = new int[n];
+    }
+
+    /**
+     * Builds the index for every book in an inventory store.
+     */
+    static TitleIndex build(InventoryStore inventory) {
+        // A catalog has roughly one distinct trigram for every 16 books.
+        TitleIndex index = new TitleIndex(Math.max(1024, inventory.size() / 16));
+        for (int slot = 0; slot < inventory.slotLimit(); slot++) {
+            String title = inventory.title(slot);
+            if (title != null)
+                index.add(slot, title);
+        }
+        return index;
+    }
+
+    /**
+     * Adds a book to the index.
+     * @param slot The book's slot in the inventory store.
+     * @param title The name of the book.
+     */
+    void add(int slot, String title) {
+        int count = gramCount(title);
+        for (int i = 0; i < count; i++) {
+            int l = gramList(title, i, true);
+            // The slots of one book are added one after the other, so a trigram that
+            // appears twice in the same name is already at the end of the list.
+            if (lengths[l] == 0 || lists[l][lengths[l] - 1] != slot)
+                append(l, slot);
+        }
+    }
+
+    /**
+     * Removes a book from the index. Must be called with the same name it was added with.
+     */
+    void remove(int slot, String title) {
+        int count = gramCount(title);
+        for (int i = 0; i < count; i++) {
+            int l = gramList(title, i, false);
+            if (l < 0)
+                continue;
+            int[] list = lists[l];
+            int len = lengths[l];
+            for (int j = 0; j < len; j++) {
+                if (list[j] == slot) {
+                    // Order does not matter, so the last entry fills the gap.
+                    list[j] = list[len - 1];
+                    lengths[l] = len - 1;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return How many grams a name has: its trigrams, then its end.
+     */
+    private static int gramCount(String title) {
+        return title.isEmpty() ? 0 : Math.max(0, title.length() - GRAM + 1) + 1;
+    }
+
+    /**
+     * Finds the list of gram number i of a name (see gramCount()).
+     * @param create Whether to add the gram if it is not in the table yet.
+     * @return The list number, or -1 if the gram is missing and 'create' is false.
+     */
+    private int gramList(String title, int i, boolean create) {
+        int n = title.length();
+        if (i + GRAM <= n)
+            return listFor(gramAt(title, i), create);
+        return n == 1 ? listFor(END1 | lower(title, 0), create) : listFor(END2 | pairAt(title, n - 2), create);
+    }
+
+    private void append(int l, int value) {
+        int len = lengths[l];
+        if (lists[l] == null)
+            lists[l] = new int[4];
+        else if (len == lists[l].length)
+            lists[l] = Arrays.copyOf(lists[l], len * 2);
+        lists[l][len] = value;
+        lengths[l] = len + 1;
+    }
+
+    /**
+     * Adds a gram that was just put in the table to the lists of the one- and two-letter
+     * texts that find it (see the class comment).
+     */
+    private void addToShortLists(long gram, int l) {
+        long kind = gram & ~0xFFFFFFFFFFFFL;
+        if (kind == 0) {
+            append(listFor(SHORT1 | (gram >>> 32), true), l);
+            append(listFor(SHORT2 | (gram >>> 16), true), l);
+        } else if (kind == END1) {
+            append(listFor(SHORT1 | (gram & 0xFFFF), true), l);
+        } else if (kind == END2) {
+            long first = (gram >>> 16) & 0xFFFF, second = gram & 0xFFFF;
+            append(listFor(SHORT1 | first, true), l);
+            if (second != first)
+                append(listFor(SHORT1 | second, true), l);
+            append(listFor(SHORT2 | (gram & 0xFFFFFFFFL), true), l);
+        }
+    }
+
+    /**
+     * Finds the books whose name contains some text, ignoring case.
+     * @param text The text to look for.
+     * @param limit The most names to return.
+     * @param inventory The inventory store the slots refer to.
+     * @param tree The book tree, walked in order when matches are common.
+     * @return The first 'limit' matching names in alphabetical order.
+     */
+    List<String> containing(String text, int limit, InventoryStore inventory, library_management tree) {
+        if (text.isEmpty() || limit <= 0)
+            return new ArrayList<>();
+        int books = tree.size();
+
+        if (text.length() < GRAM) {
+            // Every gram on the text's list contains it, so its books all match.
+            int dir = listFor(text.length() == 1 ? SHORT1 | lower(text, 0) : SHORT2 | pairAt(text, 0), false);
+            if (dir < 0)
+                return new ArrayList<>();
+            long candidates = 0;
+            for (int j = 0; j < lengths[dir]; j++)
+                candidates += lengths[lists[dir][j]];
+            if (candidates * candidates > (long) books * limit)
+                return tree.firstMatching(title -> containsIgnoreCase(title, text), limit);
+            // A book may be on several of the lists, so the slots are sorted to drop repeats.
+            int[] slots = new int[(int) candidates];
+            int n = 0;
+            for (int j = 0; j < lengths[dir]; j++) {
+                int l = lists[dir][j];
+                System.arraycopy(lists[l], 0, slots, n, lengths[l]);
+                n += lengths[l];
+            }
+            Arrays.sort(slots);
+            return first(slots, n, true, text, limit, inventory);
+        }
+
+        // Every match contains all trigrams of the text, so the shortest list is enough.
+        int best = -1;
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            int l = listFor(gramAt(text, i), false);
+            if (l < 0 || lengths[l] == 0)
+                return new ArrayList<>(); // No book contains this trigram.
+            if (best < 0 || lengths[l] < lengths[best])
+                best = l;
+        }
+        // Checking every candidate costs 'len'; walking the tree costs about limit * books
+        // / matches. The matches are guessed from the first few candidates.
+        int len = lengths[best];
+        int sample = Math.min(len, SAMPLE), hits = 0;
+        for (int j = 0; j < sample; j++) {
+            String title = inventory.title(lists[best][j]);
+            if (title != null && containsIgnoreCase(title, text))
+                hits++;
+        }
+        if (hits > 0 && (long) len * len * hits > (long) books * limit * sample)
+            return tree.firstMatching(title -> containsIgnoreCase(title, text), limit);
+        return first(lists[best], len, false, text, limit, inventory);
+    }
+
+    /**
+     * Checks candidate books and keeps the first 'limit' matches in alphabetical order,
+     * with a heap of the best ones so far, so it costs O(n log limit).
+     * @param sorted Whether the slots are sorted, so repeats sit next to each other.
+     */
+    private static List<String> first(int[] slots, int n, boolean sorted, String text, int limit,
+            InventoryStore inventory) {
+        // The largest name kept is on top, so it is the one a better match replaces.
+        PriorityQueue<String> kept = new PriorityQueue<>(Collections.reverseOrder(String.CASE_INSENSITIVE_ORDER));
+        for (int j = 0; j < n; j++) {
+            if (sorted && j > 0 && slots[j] == slots[j - 1])
+                continue;
+            String title = inventory.title(slots[j]);
+            if (title == null || !containsIgnoreCase(title, text))
+                continue;
+            if (kept.size() < limit)
+                kept.add(title);
+            else if (String.CASE_INSENSITIVE_ORDER.compare(title, kept.peek()) < 0) {
+                kept.poll();
+                kept.add(title);
+            }
+        }
+        List<String> result = new ArrayList<>(kept);
+        result.sort(String.CASE_INSENSITIVE_ORDER);
+        return result;
+    }
+
+    /**
+     * @return The number of distinct grams in the index (trigrams, name ends and
+     *         one- and two-letter texts).
+     */
+    int gramCount() {
+        return listCount;
+    }
+
+    /**
+     * Estimates the memory used by the index, in bytes
+     * (array contents plus a 16-byte header for each array).
+     */
+    long memoryBytes() {
+        long bytes = 16 + grams.length * 8L + 16 + listOf.length * 4L
+                + 16 + lists.length * 4L + 16 + lengths.length * 4L;
+        for (int l = 0; l < listCount; l++)
+            if (lists[l] != null)
+                bytes += 16 + lists[l].length * 4L;
+        return bytes;
+    }
+
+    /**
+     * Finds the list number of a trigram.
+     * @param create Whether to add the trigram if it is not in the table yet.
+     * @return The list number, or -1 if the trigram is missing and 'create' is false.
+     */
+    private int listFor(long gram, boolean create) {
+        int mask = grams.length - 1;
+        int i = Hashing.hash(gram) & mask;
+        while (listOf[i] != 0) {
+            if (grams[i] == gram)
+                return listOf[i] - 1;
+            i = (i + 1) & mask;
+        }
+        if (!create)
+            return -1;
+
+        if (listCount == lists.length) {
+            lists = Arrays.copyOf(lists, listCount * 2);
+            lengths = Arrays.copyOf(lengths, listCount * 2);
+        }
+        // Keep the table at most half full so probe sequences stay short.
+        if ((listCount + 1) * 2 > grams.length) {
+            rehash(grams.length * 2);
+            return listFor(gram, true);
+        }
+        grams[i] = gram;
+        listOf[i] = ++listCount;
+        int l = listCount - 1;
+        addToShortLists(gram, l);
+        return l;
+    }
+
+    private void rehash(int newSize) {
+        long[] oldGrams = grams;
+        int[] oldListOf = listOf;
+        grams = new long[newSize];
+        listOf = new int[newSize];
+        int mask = newSize - 1;
+        for (int b = 0; b < oldGrams.length; b++) {
+            if (oldListOf[b] == 0)
+                continue;
+            int i = Hashing.hash(oldGrams[b]) & mask;
+            while (listOf[i] != 0)
+                i = (i + 1) & mask;
+            grams[i] = oldGrams[b];
+            listOf[i] = oldListOf[b];
+        }
+    }
+
+    /**
+     * Packs the lower-case trigram starting at position i into a long (16 bits per char).
+     */
+    private static long gramAt(String s, int i) {
+        return (lower(s, i) << 32) | (lower(s, i + 1) << 16) | lower(s, i + 2);
+    }
+
+    /**
+     * Packs the two lower-case characters starting at position i.
+     */
+    private static long pairAt(String s, int i) {
+        return (lower(s, i) << 16) | lower(s, i + 1);
+    }
+
+    private static long lower(String s, int i) {
+        return Character.toLowerCase(s.charAt(i));
+    }
+
+
+    private static boolean containsIgnoreCase(String title, String text) {
+        // regionMatches() is only tried where the first character matches, the way it
+        // compares characters (same, same in upper case, or same in lower case after that).
+        char first = text.charAt(0);
+        char upper = Character.toUpperCase(first);
+        char lower = Character.toLowerCase(upper);
+        for (int i = 0; i + text.length() <= title.length(); i++) {
+            char c = title.charAt(i);
+            if (c != first) {
+                if (c < 0x80 && upper < 0x80) {
+                    if ((c >= 'a' && c <= 'z' ? c - ('a' - 'A') : c) != upper)
+                        continue;
+                } else {
+                    char u = Character.toUpperCase(c);
+                    if (u != upper && Character.toLowerCase(u) != lower)
+                        continue;
+                }
+            }
+            if (title.regionMatches(true, i, text, 0, text.length()))
+                return true;
+        }
+        return false;
+    }
+
+}
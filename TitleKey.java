@@ -0,0 +1,134 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The TitleKey class is the one key a book's name is known by in the book tree, the
+ * inventory store, the title cache and the catalog snapshots.
+ *
+ * Book names are compared ignoring case everywhere. Comparing two Strings with
+ * compareToIgnoreCase() folds the case of every character again on every comparison, so a
+ * walk down the tree folds the name once per level. A TitleKey folds the name once, when
+ * it enters the library, and keeps the folded name as UTF-8 bytes together with its hash.
+ * Two keys are then compared byte by byte (like memcmp) and looked up in a hash table
+ * without any case folding at all.
+ *
+ * Case is folded the way compareToIgnoreCase() does it (upper case, then lower case, one
+ * character at a time), and UTF-8 bytes sort in the same order as the characters they
+ * encode, so keys sort exactly like the names did before. The name as it was typed is
+ * kept for display.
+ *
+ * Issues, returns and reservations look a name up in tables of keys that are already
+ * stored. hashOf() and matches() fold the typed name on the fly while they compare, so
+ * these lookups make no key at all for an ASCII name.
+ */
+final class TitleKey implements Comparable<TitleKey> {
+    final String title; // The name as it was typed, for display.
+    private final byte[] folded; // The name with its case folded, in UTF-8.
+    private final int hash;
+
+    private TitleKey(String title, byte[] folded) {
+        this.title = title;
+        this.folded = folded;
+        this.hash = Arrays.hashCode(folded);
+    }
+
+    /**
+     * Makes the key of a book name.
+     */
+    static TitleKey of(String title) {
+        // Names are mostly ASCII letters, which fold without a lookup.
+        byte[] ascii = new byte[title.length()];
+        for (int i = 0; i < ascii.length; i++) {
+            char c = title.charAt(i);
+            if (c >= 0x80)
+                return new TitleKey(title, fold(title).getBytes(StandardCharsets.UTF_8));
+            ascii[i] = foldAscii(c);
+        }
+        return new TitleKey(title, ascii);
+    }
+
+    /**
+     * @return The hash code of TitleKey.of(title), made without the key when the name is
+     *         ASCII (any other name is folded the usual way).
+     */
+    static int hashOf(String title) {
+        int h = 1; // Arrays.hashCode() of the folded bytes.
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+            if (c >= 0x80)
+                return of(title).hashCode();
+            h = 31 * h + foldAscii(c);
+        }
+        return h;
+    }
+
+    /**
+     * Like equals(TitleKey.of(title)), without making that key when the name is ASCII.
+     * @return true if this key is the name, ignoring case.
+     */
+    boolean matches(String title) {
+        // ASCII characters fold to one byte each, so a difference before the first other
+        // character settles it.
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+            if (c >= 0x80)
+                return equals(of(title));
+            if (i == folded.length || folded[i] != foldAscii(c))
+                return false;
+        }
+        return folded.length == title.length();
+    }
+
+    private static byte foldAscii(char c) {
+        return (byte) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+    }
+
+    /**
+     * Folds the case of every character like compareToIgnoreCase() does.
+     */
+    private static String fold(String title) {
+        StringBuilder sb = new StringBuilder(title.length());
+        for (int i = 0; i < title.length(); i++)
+            sb.append(Character.toLowerCase(Character.toUpperCase(title.charAt(i))));
+        return sb.toString();
+    }
+
+    /**
+     * Compares two names ignoring case, in alphabetical order.
+     */
+    @Override
+    public int compareTo(TitleKey other) {
+        return Arrays.compareUnsigned(folded, other.folded);
+    }
+
+    /**
+     * @return true if this name starts with another one (ignoring case).
+     */
+    boolean startsWith(TitleKey prefix) {
+        return folded.length >= prefix.folded.length
+                && Arrays.equals(folded, 0, prefix.folded.length, prefix.folded, 0, prefix.folded.length);
+    }
+
+    /**
+     * @return true if the other key is the same name, ignoring case.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof TitleKey))
+            return false;
+        TitleKey other = (TitleKey) o;
+        return hash == other.hash && Arrays.equals(folded, other.folded);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return title;
+    }
+}
@@ -0,0 +1,605 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The TransactionLog class is an append-only binary log of issue, return and reservation
+ * events, and of books being added and deleted. It replaces the old text log (append.txt).
+ * Every event is a fixed-width 32-byte record, so writing one is a handful of buffer puts
+ * with no string formatting.
+ *
+ * Records are collected in memory and written to disk in groups by a background
+ * "flusher" thread, which calls fsync once per group (group commit). The durability
+ * window sets how long a record may wait in memory before it is forced to disk,
+ * which is the most work a crash can lose. Callers that need a record to be on disk
+ * before they continue can call awaitDurable() with the sequence number from append().
+ *
+ * Appends of different books do not wait for each other. The log has several stripes,
+ * each with its own lock and buffers, and a book's records always go to the stripe its
+ * slot hashes to. The only thing all appenders share is one atomic counter that numbers
+ * the records. The flusher takes every stripe's buffer at once and writes each record at
+ * the place its sequence number gives it, so the file reads the same as if there were one
+ * buffer. An appender only wakes the flusher (and only when it is waiting for records),
+ * and the flusher wakes the appenders of a full stripe and the durability waiters.
+ *
+ * Record layout (big-endian):
+ *   byte  op          ISSUE, RETURN, ADD_COPIES, RESERVE, CANCEL_RESERVATION, ADD_TITLE,
+ *                     TITLE_NAME, DELETE_TITLE or RETURN_DELETED (laid out like RETURN; 'slot'
+ *                     is -1, as the loan was detached from the deleted book's slot, and
+ *                     only the loan ends)
+ *   byte[3] reserved
+ *   int   studentId   (ADD_TITLE: the length of the book's name in UTF-8 bytes)
+ *   int   slot        the book's slot in the InventoryStore
+ *   int   amount      number of copies added (ADD_COPIES), the copy number (ISSUE and
+ *                     RETURN), or the total copies of a new book (ADD_TITLE)
+ *   long  issueEpoch  event time in epoch milliseconds
+ *   long  dueEpoch    due date in epoch milliseconds (for RETURN, the due date of the loan
+ *                     that ended, so late fees can be totalled), or the available copies
+ *                     of a new book (ADD_TITLE)
+ * An ADD_TITLE record is followed by as many TITLE_NAME records as the name needs; each
+ * holds the next NAME_BYTES bytes of the name after its op and reserved bytes. scan()
+ * joins them back together and hands the whole book to RecordVisitor.visitTitle().
+ */
+class TransactionLog implements AutoCloseable {
+    static final int RECORD_SIZE = 32;
+    static final int HEADER_SIZE = 16;
+    static final int MAGIC = 0x4C49424C; // "LIBL"
+    static final int VERSION = 1;
+    static final int NAME_BYTES = 28; // Bytes of a book name in one TITLE_NAME record.
+
+    // Event types.
+    static final byte ISSUE = 1;
+    static final byte RETURN = 2;
+    static final byte ADD_COPIES = 3;
+    static final byte RESERVE = 4; // The student joined the book's waiting queue.
+    static final byte CANCEL_RESERVATION = 5; // The student left the queue without the book.
+    static final byte ADD_TITLE = 6; // A new book was added in 'slot'.
+    static final byte TITLE_NAME = 7; // Part of the name of the book in the ADD_TITLE record before it.
+    static final byte DELETE_TITLE = 8; // The book in 'slot' was deleted and the slot freed.
+    static final byte RETURN_DELETED = 9; // A copy of a book deleted while it was out came back.
+
+    /**
+     * Receives the records of a log file, in order, from scan().
+     */
+    interface RecordVisitor {
+        void visit(long seq, byte op, int studentId, int slot, int amount, long issueEpoch, long dueEpoch)
+                throws IOException;
+
+        /**
+         * Receives an ADD_TITLE record together with the name stored after it.
+         * Visitors that are not interested in new books can leave this out.
+         */
+        default void visitTitle(long seq, int slot, String title, int total, int available, long epoch)
+                throws IOException {
+        }
+    }
+
+    private final FileChannel channel;
+    private final long windowMillis; // Longest time a record may wait before being fsynced.
+    private final int groupSize; // Flush early once this many records are waiting.
+
+    /**
+     * Records waiting to be written: their bytes one after another, and the sequence number
+     * of each one (the records of one stripe are in order, but other stripes' records sit
+     * between them in the file).
+     */
+    private static final class Batch {
+        ByteBuffer bytes;
+        long[] seqs;
+        int count;
+
+        Batch(int records) {
+            bytes = ByteBuffer.allocateDirect(records * RECORD_SIZE);
+            seqs = new long[records];
+        }
+
+        void put(long seq, byte op, int studentId, int slot, int amount, long issueEpoch, long dueEpoch) {
+            bytes.put(op).put((byte) 0).put((byte) 0).put((byte) 0)
+                    .putInt(studentId).putInt(slot).putInt(amount)
+                    .putLong(issueEpoch).putLong(dueEpoch);
+            seqs[count++] = seq;
+        }
+
+        int room() {
+            return seqs.length - count;
+        }
+    }
+
+    /**
+     * The records of the books whose slots hash to one stripe. Appenders fill 'active'
+     * while the flusher writes out 'flushing'; an appender that finds 'active' full waits
+     * on 'notFull' without holding the lock, so the flusher can always take it to swap.
+     */
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition notFull = lock.newCondition();
+        Batch active;
+        Batch flushing;
+
+        Stripe(int records) {
+            active = new Batch(records);
+            flushing = new Batch(records);
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    // Sequence number of the next record (records are numbered from 0). Taken with one
+    // atomic add while the stripe lock is held, so a stripe's records are numbered in order.
+    private final AtomicLong nextSeq = new AtomicLong();
+    private volatile long durableSeq; // All records with a sequence number below this are on disk.
+    private volatile long requestedSeq; // A caller is waiting for all records below this to be on disk.
+    private volatile boolean closed;
+    private volatile IOException failure; // Set if the flusher could not write; reported to callers.
+
+    // What the flusher is doing, so appenders only wake it when it is waiting for them.
+    private static final int BUSY = 0, IDLE = 1, WAITING = 2;
+    private volatile int flusherState = BUSY;
+    private final Thread flusher;
+
+    // The flusher lays each group out here in sequence order before writing it.
+    private ByteBuffer merged = ByteBuffer.allocateDirect(0);
+    private boolean[] present = new boolean[0];
+
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition durable = durableLock.newCondition(); // awaitDurable() callers wait here.
+
+    /**
+     * Opens (or creates) a log file and starts its flusher thread.
+     * @param file The log file.
+     * @param windowMillis The durability window in milliseconds. 0 means every append
+     *                     waits until its record is on disk.
+     * @param groupSize How many records to collect before flushing early.
+     */
+    TransactionLog(File file, long windowMillis, int groupSize) throws IOException {
+        this.windowMillis = windowMillis;
+        this.groupSize = Math.max(1, groupSize);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(0).flip();
+            channel.write(header, 0);
+            channel.force(true);
+            size = HEADER_SIZE;
+        } else {
+            checkHeader(channel);
+        }
+        // Ignore a partly written record at the end (left by a crash mid-write).
+        nextSeq.set((size - HEADER_SIZE) / RECORD_SIZE);
+        durableSeq = nextSeq.get();
+
+        stripes = new Stripe[Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe(this.groupSize * 2);
+
+        flusher = new Thread(this::flushLoop, "transaction-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Adds an event to the log.
+     * @return The sequence number of the new record.
+     */
+    long append(byte op, int studentId, int slot, long issueEpoch, long dueEpoch) throws IOException {
+        return append(op, studentId, slot, 0, issueEpoch, dueEpoch);
+    }
+
+    /**
+     * Records that one copy of a book was issued or returned (see LoanTable).
+     * @param op ISSUE or RETURN.
+     * @return The sequence number of the new record.
+     */
+    long appendLoan(byte op, int studentId, int slot, int copy, long issueEpoch, long dueEpoch) throws IOException {
+        return append(op, studentId, slot, copy, issueEpoch, dueEpoch);
+    }
+
+    /**
+     * Records that copies were added to a book.
+     * @return The sequence number of the new record.
+     */
+    long appendCopies(int slot, int quantity, long epoch) throws IOException {
+        return append(ADD_COPIES, 0, slot, quantity, epoch, 0);
+    }
+
+    /**
+     * Records that a new book was added in a slot (see the record layout).
+     * @return The sequence number of the ADD_TITLE record.
+     */
+    long appendTitle(int slot, String title, int total, int available, long epoch) throws IOException {
+        byte[] name = title.getBytes(StandardCharsets.UTF_8);
+        int nameRecords = (name.length + NAME_BYTES - 1) / NAME_BYTES;
+        Stripe s = stripeOf(slot);
+        long seq;
+        s.lock.lock();
+        try {
+            Batch b = awaitRoom(s, 1 + nameRecords);
+            // The book and its name get consecutive numbers, so they stay together in the file.
+            seq = nextSeq.getAndAdd(1 + nameRecords);
+            b.put(seq, ADD_TITLE, name.length, slot, total, epoch, available);
+            for (int r = 0; r < nameRecords; r++) {
+                int from = r * NAME_BYTES;
+                int n = Math.min(NAME_BYTES, name.length - from);
+                b.bytes.put(TITLE_NAME).put((byte) 0).put((byte) 0).put((byte) 0).put(name, from, n);
+                for (int pad = n; pad < NAME_BYTES; pad++)
+                    b.bytes.put((byte) 0);
+                b.seqs[b.count++] = seq + 1 + r;
+            }
+        } finally {
+            s.lock.unlock();
+        }
+        appended(seq + 1 + nameRecords);
+        if (windowMillis == 0)
+            awaitDurable(seq + nameRecords);
+        return seq;
+    }
+
+    /**
+     * Records that the book in a slot was deleted.
+     * @return The sequence number of the new record.
+     */
+    long appendDelete(int slot, long epoch) throws IOException {
+        return append(DELETE_TITLE, 0, slot, 0, epoch, 0);
+    }
+
+    private long append(byte op, int studentId, int slot, int amount, long issueEpoch, long dueEpoch)
+            throws IOException {
+        Stripe s = stripeOf(slot);
+        long seq;
+        s.lock.lock();
+        try {
+            Batch b = awaitRoom(s, 1);
+            seq = nextSeq.getAndIncrement();
+            b.put(seq, op, studentId, slot, amount, issueEpoch, dueEpoch);
+        } finally {
+            s.lock.unlock();
+        }
+        appended(seq + 1);
+        if (windowMillis == 0)
+            awaitDurable(seq);
+        return seq;
+    }
+
+    /**
+     * @return The stripe of a book. All records of one slot go to the same stripe, so they
+     *         reach the file in the order they were appended.
+     */
+    private Stripe stripeOf(int slot) {
+        return stripes[(slot * 0x9E3779B9 >>> 16) & (stripes.length - 1)];
+    }
+
+    /**
+     * Waits until a stripe's active batch has room for some records (backpressure). Called
+     * with the stripe lock held. A book with a long name may need more than a whole batch;
+     * it then gets a larger batch of its own once the active one is empty.
+     * @return The active batch.
+     */
+    private Batch awaitRoom(Stripe s, int records) throws IOException {
+        checkOpen();
+        while (s.active.room() < records) {
+            if (s.active.count == 0) {
+                s.active = new Batch(records);
+                break;
+            }
+            LockSupport.unpark(flusher);
+            s.notFull.awaitUninterruptibly();
+            checkOpen();
+        }
+        return s.active;
+    }
+
+    /**
+     * Wakes the flusher when the first records arrive, and early when a full group is
+     * waiting. Appenders only read 'flusherState' otherwise, so they share no written memory.
+     * @param end The sequence number after the records just appended.
+     */
+    private void appended(long end) {
+        int state = flusherState;
+        if (state == IDLE || (state == WAITING && end - durableSeq >= groupSize))
+            LockSupport.unpark(flusher);
+    }
+
+    /**
+     * Blocks until the record with the given sequence number is on disk.
+     * Many threads waiting at once are all released by the same fsync.
+     */
+    void awaitDurable(long seq) throws IOException {
+        if (durableSeq > seq)
+            return;
+        durableLock.lock();
+        try {
+            if (seq >= requestedSeq) {
+                requestedSeq = seq + 1;
+                LockSupport.unpark(flusher); // Don't make the caller sit out the rest of the window.
+            }
+            while (durableSeq <= seq) {
+                if (failure != null)
+                    throw failure;
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    /**
+     * Forces every record appended so far to disk.
+     */
+    void sync() throws IOException {
+        long last = nextSeq.get() - 1;
+        if (last >= 0)
+            awaitDurable(last);
+    }
+
+    /**
+     * @return The number of records in the log (the next sequence number).
+     */
+    long size() {
+        return nextSeq.get();
+    }
+
+    /**
+     * Flushes all waiting records, stops the flusher and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        sync();
+        closed = true;
+        LockSupport.unpark(flusher);
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                s.notFull.signalAll();
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Body of the flusher thread. Once records are waiting, it holds off until a group
+     * is full, a caller asks for durability, or the window runs out, then takes every
+     * stripe's batch, lays the records out in sequence order and writes and fsyncs them
+     * all at once.
+     *
+     * Every record numbered below 'upTo' (read before the first stripe is taken) is in one
+     * of the batches: its number was taken under its stripe lock, so the flusher cannot swap
+     * that stripe until the record is in. Records numbered after 'upTo' may have made it into
+     * a batch too; they are written now and counted as durable by the next round. A record
+     * whose stripe was swapped before it arrived leaves a gap that the next round fills in.
+     */
+    private void flushLoop() {
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        while (true) {
+            // Sleep until there is something to write.
+            flusherState = IDLE;
+            while (!closed && nextSeq.get() == durableSeq)
+                LockSupport.park(this);
+            flusherState = WAITING;
+            if (nextSeq.get() == durableSeq)
+                return; // Closed and fully flushed.
+
+            // Give other appenders until the end of the window to join this group.
+            long deadline = System.nanoTime() + windowNanos;
+            while (!closed && nextSeq.get() - durableSeq < groupSize && requestedSeq <= durableSeq) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0)
+                    break;
+                LockSupport.parkNanos(this, wait);
+            }
+            flusherState = BUSY;
+
+            // Swap batches so appenders can keep going during the write.
+            long upTo = nextSeq.get();
+            for (Stripe s : stripes) {
+                s.lock.lock();
+                try {
+                    Batch full = s.active;
+                    s.active = s.flushing;
+                    s.flushing = full;
+                    s.notFull.signalAll();
+                } finally {
+                    s.lock.unlock();
+                }
+            }
+
+            try {
+                write();
+                durableSeq = upTo;
+            } catch (IOException e) {
+                failure = e;
+            }
+            durableLock.lock();
+            try {
+                durable.signalAll();
+            } finally {
+                durableLock.unlock();
+            }
+            if (failure != null) {
+                for (Stripe s : stripes) {
+                    s.lock.lock();
+                    try {
+                        s.notFull.signalAll();
+                    } finally {
+                        s.lock.unlock();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the stripes' flushing batches to their places in the file and fsyncs them.
+     * Each run of consecutive records goes out in one write; usually the whole group is one run.
+     */
+    private void write() throws IOException {
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (Stripe s : stripes) {
+            Batch b = s.flushing;
+            if (b.count > 0) {
+                first = Math.min(first, b.seqs[0]);
+                last = Math.max(last, b.seqs[b.count - 1]);
+            }
+        }
+        if (last < first)
+            return; // Only records already written by the last round were waiting.
+
+        int span = (int) (last - first + 1);
+        if (present.length < span) {
+            merged = ByteBuffer.allocateDirect(span * RECORD_SIZE);
+            present = new boolean[span];
+        }
+        for (Stripe s : stripes) {
+            Batch b = s.flushing;
+            for (int i = 0; i < b.count; i++) {
+                int at = (int) (b.seqs[i] - first);
+                merged.put(at * RECORD_SIZE, b.bytes, i * RECORD_SIZE, RECORD_SIZE);
+                present[at] = true;
+            }
+            b.bytes.clear();
+            b.count = 0;
+        }
+        for (int i = 0; i < span; ) {
+            if (!present[i]) {
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j < span && present[j])
+                present[j++] = false;
+            merged.limit(j * RECORD_SIZE).position(i * RECORD_SIZE);
+            long pos = HEADER_SIZE + (first + i) * RECORD_SIZE;
+            while (merged.hasRemaining())
+                pos += channel.write(merged, pos);
+            merged.clear();
+            i = j;
+        }
+        channel.force(false);
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("Transaction log is closed.");
+    }
+
+    /**
+     * Verifies that a file starts with a transaction log header of the current version.
+     */
+    static void checkHeader(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ch.read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+            throw new IOException("Not a transaction log file (bad header).");
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported transaction log version " + version + ".");
+    }
+
+    /**
+     * @return The number of whole records in a log file (0 if it does not exist yet).
+     */
+    static long records(File file) {
+        long size = file.length();
+        return size < HEADER_SIZE ? 0 : (size - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    /**
+     * Reads the records of a log file in order, starting at the given sequence number.
+     * A partly written record at the end of the file (left by a crash) is ignored, and so
+     * are gaps of zeros and a new book whose name was not completely written.
+     * @param file The log file.
+     * @param fromSeq The first record to visit.
+     * @param visitor Receives each record.
+     * @return The sequence number after the last record visited.
+     */
+    static long scan(File file, long fromSeq, RecordVisitor visitor) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            checkHeader(ch);
+            long records = (ch.size() - HEADER_SIZE) / RECORD_SIZE;
+            long seq = Math.max(0, fromSeq);
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            while (seq < records) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), (records - seq) * RECORD_SIZE));
+                long pos = HEADER_SIZE + seq * RECORD_SIZE;
+                while (buf.hasRemaining()) {
+                    int n = ch.read(buf, pos);
+                    if (n <= 0)
+                        throw new IOException("Transaction log ended early.");
+                    pos += n;
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    byte op = buf.get();
+                    buf.position(buf.position() + 3); // Reserved bytes.
+                    int studentId = buf.getInt();
+                    int slot = buf.getInt();
+                    int amount = buf.getInt();
+                    long issueEpoch = buf.getLong();
+                    long dueEpoch = buf.getLong();
+                    if (op == ADD_TITLE) {
+                        String title = readName(ch, seq + 1, studentId, records);
+                        if (title != null)
+                            visitor.visitTitle(seq, slot, title, amount, (int) dueEpoch, issueEpoch);
+                    } else if (op != TITLE_NAME && op != 0) {
+                        // Name records were read with their ADD_TITLE. A record of zeros is a gap
+                        // left by a crash between two writes of one group (see flushLoop()).
+                        visitor.visit(seq, op, studentId, slot, amount, issueEpoch, dueEpoch);
+                    }
+                    seq++;
+                }
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * Reads the name of a new book from the TITLE_NAME records after its ADD_TITLE record.
+     * @param fromSeq The first TITLE_NAME record.
+     * @param length The length of the name in UTF-8 bytes.
+     * @param records The number of whole records in the file.
+     * @return The name, or null if its records were not all written.
+     */
+    private static String readName(FileChannel ch, long fromSeq, int length, long records) throws IOException {
+        int nameRecords = (length + NAME_BYTES - 1) / NAME_BYTES;
+        if (length < 0 || fromSeq + nameRecords > records)
+            return null;
+        ByteBuffer buf = ByteBuffer.allocate(nameRecords * RECORD_SIZE);
+        long pos = HEADER_SIZE + fromSeq * RECORD_SIZE;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n <= 0)
+                return null;
+            pos += n;
+        }
+        byte[] name = new byte[length];
+        for (int r = 0; r < nameRecords; r++) {
+            if (buf.get(r * RECORD_SIZE) != TITLE_NAME)
+                return null;
+            int from = r * NAME_BYTES;
+            buf.get(r * RECORD_SIZE + 4, name, from, Math.min(NAME_BYTES, length - from));
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * The TransactionLogDump class turns the binary transaction log back into the
+ * human-readable format that used to be written to append.txt.
+ * Formatting only happens here, on demand, never while books are being issued.
+ *
+ * Usage: java TransactionLogDump [transactions.log]
+ * Slots are reused once their book is deleted, so a record is labelled with the book its
+ * slot held at that point in the log: the name of the slot's last ADD_TITLE record, until a
+ * DELETE_TITLE clears it. Only slots the log never adds a book to (books the library started
+ * with) are looked up in catalog.bin (see CatalogFile), whose slots match the log's, or in
+ * the catalog files (x.txt, y.txt, z.txt) if there is none yet. Student names come from the
+ * student registry (the demonstration student and students.txt).
+ */
+class TransactionLogDump {
+
+    /**
+     * Writes every record of a log file in the old text layout.
+     * @param log The binary log file.
+     * @param out Where to write the text.
+     * @param titles Looks up the name of a book the library has now from its slot (may
+     *               return null). Only used for slots the log never adds a book to.
+     * @param names Looks up a student name from their ID (may return null).
+     * @return The number of records written.
+     */
+    static long render(File log, Writer out, IntFunction<String> titles, IntFunction<String> names) throws IOException {
+        // First pass: the slots the log adds a book to, which get their names from the log.
+        BitSet namedInLog = new BitSet();
+        TransactionLog.scan(log, 0, new TransactionLog.RecordVisitor() {
+            @Override
+            public void visit(long seq, byte op, int studentId, int slot, int amount, long issueEpoch, long dueEpoch) {
+            }
+
+            @Override
+            public void visitTitle(long seq, int slot, String title, int total, int available, long epoch) {
+                namedInLog.set(slot);
+            }
+        });
+
+        // The book each slot holds at the current point of the log.
+        Map<Integer, String> held = new HashMap<>();
+        long count = TransactionLog.scan(log, 0, new TransactionLog.RecordVisitor() {
+            @Override
+            public void visit(long seq, byte op, int studentId, int slot, int amount, long issueEpoch, long dueEpoch)
+                    throws IOException {
+                String book = held.get(slot);
+                if (book == null && slot >= 0 && !namedInLog.get(slot))
+                    book = titles.apply(slot);
+                book = orUnknown(book, slot < 0 ? "a deleted book" : "slot " + slot);
+                if (op == TransactionLog.ADD_COPIES) {
+                    out.write("\nCopies added:   " + amount + " x " + book);
+                    out.write("\nAdded on    :   " + LibraryClock.format(issueEpoch));
+                    out.write(System.lineSeparator());
+                    return;
+                }
+                if (op == TransactionLog.DELETE_TITLE) {
+                    out.write("\nBook deleted:   " + book);
+                    out.write("\nDeleted on  :   " + LibraryClock.format(issueEpoch));
+                    out.write(System.lineSeparator());
+                    held.remove(slot);
+                    return;
+                }
+                out.write("\nStudent name:   " + orUnknown(names.apply(studentId), "unknown"));
+                out.write("\nStudent ID  :   " + studentId);
+                if (op == TransactionLog.ISSUE) {
+                    out.write("\nIssued Book :   " + book);
+                    out.write("\nCopy        :   " + amount);
+                    out.write("\nIssued date :   " + LibraryClock.format(issueEpoch));
+                    out.write("\nReturn date :   " + LibraryClock.format(dueEpoch));
+                } else if (op == TransactionLog.RESERVE) {
+                    out.write("\nReserved Book:  " + book);
+                    out.write("\nReserved on :   " + LibraryClock.format(issueEpoch));
+                } else if (op == TransactionLog.CANCEL_RESERVATION) {
+                    out.write("\nCancelled reservation: " + book);
+                    out.write("\nCancelled on:   " + LibraryClock.format(issueEpoch));
+                } else {
+                    out.write("\nReturned Book:  " + book);
+                    out.write("\nCopy        :   " + amount);
+                    out.write("\nReturned on :   " + LibraryClock.format(issueEpoch));
+                    out.write("\nDue date    :   " + LibraryClock.format(dueEpoch));
+                }
+                out.write(System.lineSeparator());
+            }
+
+            @Override
+            public void visitTitle(long seq, int slot, String title, int total, int available, long epoch)
+                    throws IOException {
+                held.put(slot, title);
+                out.write("\nBook added  :   " + title + " (slot " + slot + ")");
+                out.write("\nCopies      :   " + total + " (" + available + " available)");
+                out.write("\nAdded on    :   " + LibraryClock.format(epoch));
+                out.write(System.lineSeparator());
+            }
+        });
+        out.flush();
+        return count;
+    }
+
+    private static String orUnknown(String s, String fallback) {
+        return s != null ? s : fallback;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File log = new File(args.length > 0 ? args[0] : "transactions.log");
+
+        library_management tree = new library_management();
+        InventoryStore inventory = new InventoryStore(1024);
+        try (CatalogFile catalog = CatalogFile.open(new File("catalog.bin"))) {
+            if (catalog != null)
+                catalog.restore(inventory);
+            else
+                CatalogLoader.load(new File("x.txt"), new File("y.txt"), new File("z.txt"), tree, inventory);
+        }
+
+        StudentRegistry students = library_management.loadStudents();
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        render(log, out, slot -> slot >= 0 && slot < inventory.slotLimit() ? inventory.title(slot) : null,
+                id -> {
+                    Student s = students.get(id);
+                    return s != null ? s.name : null;
+                });
+    }
+}
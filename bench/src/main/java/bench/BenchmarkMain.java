@@ -0,0 +1,34 @@
+package bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The BenchmarkMain class runs the benchmarks like the normal JMH main class, but writes
+ * the results as JSON to bench-results.json unless -rf / -rff say otherwise, so every run
+ * leaves a file that can be compared with the previous one.
+ *
+ * All normal JMH options work, for example:
+ *   java -jar benchmarks.jar TreeBenchmark -p titles=1000000
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams()
+                || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        if (!cmd.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!cmd.getResult().hasValue())
+            options.result("bench-results.json");
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Checks the order queries of the book tree (rank, select, between, after and page)
+ * against a TreeSet that orders names the same way, over random inserts and deletes.
+ */
+class BookTreeCheck {
+    private static final int STEPS = 200_000;
+
+    static void run() {
+        Random random = new Random(15);
+        library_management tree = new library_management();
+        TreeSet<String> model = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+        for (int step = 0; step < STEPS; step++) {
+            String name = randomName(random);
+            if (random.nextInt(3) > 0) {
+                tree.insert(name);
+                model.add(name);
+            } else {
+                tree.deleteKey(name);
+                model.remove(name);
+            }
+            if (step % 1000 == 0)
+                compare(tree, model, random);
+        }
+        compare(tree, model, random);
+    }
+
+    private static void compare(library_management tree, TreeSet<String> model, Random random) {
+        List<String> names = new ArrayList<>(model);
+        Checks.check(tree.size() == names.size(), "size " + tree.size() + ", expected " + names.size());
+
+        for (int i = 0; i < 20; i++) {
+            String key = randomName(random);
+            Checks.check(tree.rank(key) == model.headSet(key).size(), "rank of " + key);
+
+            int index = random.nextInt(names.size() + 2) - 1;
+            String expected = index >= 0 && index < names.size() ? names.get(index) : null;
+            Checks.check(equal(tree.select(index), expected), "select(" + index + ")");
+
+            int limit = random.nextInt(30);
+            String to = randomName(random);
+            List<String> range = new ArrayList<>();
+            if (String.CASE_INSENSITIVE_ORDER.compare(key, to) <= 0)
+                for (String name : model.subSet(key, true, to, true))
+                    if (range.size() < limit)
+                        range.add(name);
+            Checks.check(tree.between(key, to, limit).equals(range), "between " + key + " and " + to);
+
+            List<String> after = new ArrayList<>();
+            for (String name : model.tailSet(key, false))
+                if (after.size() < limit)
+                    after.add(name);
+            Checks.check(tree.after(key, limit).equals(after), "after " + key);
+
+            int offset = random.nextInt(names.size() + 2);
+            List<String> page = names.subList(Math.min(offset, names.size()), Math.min(offset + limit, names.size()));
+            Checks.check(tree.page(offset, limit).equals(page), "page at " + offset);
+        }
+    }
+
+    /**
+     * @return A short name from a small alphabet, so names often repeat in another case.
+     */
+    private static String randomName(Random random) {
+        String letters = "abcABC xyz";
+        StringBuilder name = new StringBuilder("Book ");
+        for (int i = 1 + random.nextInt(5); i > 0; i--)
+            name.append(letters.charAt(random.nextInt(letters.length())));
+        return name.toString();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
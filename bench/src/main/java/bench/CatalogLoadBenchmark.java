@@ -0,0 +1,74 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Startup time: loading x.txt, y.txt and z.txt into an empty tree and inventory store.
+ * Sorted files take the buildFromSorted() path; shuffled files are inserted one by one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CatalogLoadBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int titles;
+
+    @Param({"true", "false"})
+    boolean sorted;
+
+    File dir;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("library-bench").toFile();
+        String[] names = Titles.sorted(titles);
+        if (!sorted)
+            names = Titles.shuffled(names, 42);
+        try (BufferedWriter x = new BufferedWriter(new FileWriter(new File(dir, "x.txt")));
+             BufferedWriter y = new BufferedWriter(new FileWriter(new File(dir, "y.txt")));
+             BufferedWriter z = new BufferedWriter(new FileWriter(new File(dir, "z.txt")))) {
+            for (String b : names) {
+                x.write(b + "\n");
+                y.write("3\n");
+                z.write("3\n");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (String name : new String[] {"x.txt", "y.txt", "z.txt"})
+            new File(dir, name).delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public InventoryStore load() throws IOException {
+        library_management tree = new library_management();
+        InventoryStore inventory = new InventoryStore(1024);
+        CatalogLoader.load(new File(dir, "x.txt"), new File(dir, "y.txt"), new File(dir, "z.txt"), tree, inventory);
+        return inventory;
+    }
+}
@@ -0,0 +1,122 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the persistent catalog that listings read: after every change the newest
+ * snapshot must hold exactly the books and counts of the inventory store, in alphabetical
+ * order, and snapshots taken earlier must never change. Then, while two desks issue and
+ * return books, a reader checks that no snapshot ever shows impossible counts.
+ */
+class CatalogSnapshotCheck {
+    private static final int BOOKS = 200;
+    private static final int STUDENTS = 40;
+    private static final int STEPS = 20_000;
+
+    static void run() throws IOException {
+        String[] titles = new String[BOOKS];
+        for (int i = 0; i < BOOKS; i++)
+            titles[i] = "Book " + i;
+        File dir = Checks.newLibrary(titles, 3);
+        System.setProperty("library.snapshot.every", Long.toString(Long.MAX_VALUE));
+        LoanService loans = LoanService.open(dir, Checks.students(STUDENTS, "B.Tech-CSE"), 1000);
+        try {
+            sequential(loans);
+            concurrent(loans);
+        } finally {
+            loans.close();
+        }
+    }
+
+    private static void sequential(LoanService loans) throws IOException {
+        Random random = new Random(16);
+        List<PersistentCatalog.Snapshot> kept = new ArrayList<>();
+        List<String> keptContents = new ArrayList<>();
+        for (int step = 0; step < STEPS; step++) {
+            String title = "Book " + random.nextInt(BOOKS + 20);
+            int studentId = 1 + random.nextInt(STUDENTS);
+            switch (random.nextInt(6)) {
+                case 0 -> loans.addTitle(title, 1 + random.nextInt(3));
+                case 1 -> loans.deleteTitle(title);
+                case 2 -> loans.addCopies(title, 1, 0);
+                case 3, 4 -> loans.issue(studentId, title, 0);
+                default -> loans.returnBook(studentId, title, 0);
+            }
+
+            PersistentCatalog.Snapshot snapshot = loans.catalog();
+            compareWithInventory(snapshot, loans.inventory());
+            if (step % 500 == 0) {
+                kept.add(snapshot);
+                keptContents.add(contents(snapshot));
+            }
+        }
+        for (int i = 0; i < kept.size(); i++)
+            Checks.check(contents(kept.get(i)).equals(keptContents.get(i)), "snapshot " + i + " changed");
+    }
+
+    private static void compareWithInventory(PersistentCatalog.Snapshot snapshot, InventoryStore inventory) {
+        Checks.check(snapshot.size() == inventory.size(), "snapshot has " + snapshot.size() + " books, store " + inventory.size());
+        String previous = null;
+        for (PersistentCatalog.Book book : snapshot) {
+            Checks.check(previous == null || String.CASE_INSENSITIVE_ORDER.compare(previous, book.title) < 0,
+                    "out of order: " + previous + ", " + book.title);
+            previous = book.title;
+            int slot = inventory.slotOf(book.title);
+            Checks.check(slot == book.slot, book.title + " is in slot " + slot + ", snapshot says " + book.slot);
+            Checks.check(inventory.total(slot) == book.total && inventory.available(slot) == book.available,
+                    "counts of " + book.title);
+        }
+    }
+
+    private static String contents(PersistentCatalog.Snapshot snapshot) {
+        StringBuilder text = new StringBuilder();
+        for (PersistentCatalog.Book book : snapshot)
+            text.append(book.title).append(' ').append(book.total).append('/').append(book.available).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Two desks issue and return books while a reader walks snapshot after snapshot.
+     * Every book a snapshot shows must have between 0 and 'total' copies on the shelf.
+     */
+    private static void concurrent(LoanService loans) {
+        Thread[] desks = new Thread[2];
+        for (int d = 0; d < desks.length; d++) {
+            int first = 1 + d * (STUDENTS / 2);
+            Random random = new Random(d);
+            desks[d] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 100_000; i++) {
+                        int studentId = first + random.nextInt(STUDENTS / 2);
+                        String title = "Book " + random.nextInt(BOOKS);
+                        if (random.nextBoolean())
+                            loans.issue(studentId, title, 0);
+                        else
+                            loans.returnBook(studentId, title, 0);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            desks[d].start();
+        }
+        while (desks[0].isAlive() || desks[1].isAlive()) {
+            for (PersistentCatalog.Book book : loans.catalog())
+                Checks.check(book.available >= 0 && book.available <= book.total,
+                        book.title + " shows " + book.available + " of " + book.total + " on the shelf");
+        }
+        for (Thread desk : desks) {
+            try {
+                desk.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        compareWithInventory(loans.catalog(), loans.inventory());
+    }
+}
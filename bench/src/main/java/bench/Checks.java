@@ -0,0 +1,70 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * The Checks class runs the correctness checks that go with the benchmarks: each one
+ * drives the real library classes through a scenario or a random workload and compares
+ * the result with a simple model, failing with an AssertionError at the first difference.
+ *
+ * Run all of them, or some by name:
+ *   java -cp bench/target/benchmarks.jar bench.Checks
+ *   java -cp bench/target/benchmarks.jar bench.Checks ReservationCheck RecoveryCheck
+ */
+public class Checks {
+    private static final String[] ALL = {
+            "BookTreeCheck", "CatalogSnapshotCheck", "RecoveryCheck", "ReservationCheck", "TitleCacheCheck"
+    };
+
+    public static void main(String[] args) throws Exception {
+        String[] names = args.length > 0 ? args : ALL;
+        for (String name : names) {
+            long start = System.nanoTime();
+            switch (name) {
+                case "BookTreeCheck" -> BookTreeCheck.run();
+                case "CatalogSnapshotCheck" -> CatalogSnapshotCheck.run();
+                case "RecoveryCheck" -> RecoveryCheck.run();
+                case "ReservationCheck" -> ReservationCheck.run();
+                case "TitleCacheCheck" -> TitleCacheCheck.run();
+                default -> throw new IllegalArgumentException("Unknown check: " + name);
+            }
+            System.out.printf("OK %s (%d ms)%n", name, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * Makes a new library directory whose catalog files hold the given books.
+     */
+    static File newLibrary(String[] titles, int copies) throws IOException {
+        File dir = Files.createTempDirectory("library-check").toFile();
+        try (BufferedWriter x = new BufferedWriter(new FileWriter(new File(dir, "x.txt")));
+             BufferedWriter y = new BufferedWriter(new FileWriter(new File(dir, "y.txt")));
+             BufferedWriter z = new BufferedWriter(new FileWriter(new File(dir, "z.txt")))) {
+            for (String title : titles) {
+                x.write(title + "\n");
+                y.write(copies + "\n");
+                z.write(copies + "\n");
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * @return A registry with students 1 to 'count', all of one stream.
+     */
+    static StudentRegistry students(int count, String stream) {
+        StudentRegistry students = new StudentRegistry(count);
+        for (int id = 1; id <= count; id++)
+            students.register(new Student("Student " + id, id, stream));
+        return students;
+    }
+}
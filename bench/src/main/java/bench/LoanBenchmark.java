@@ -0,0 +1,104 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full issue then return of one book through the LoanService, including the
+ * transaction log. Each benchmark thread acts as its own student, so the threaded
+ * run shows how well issues of different books proceed side by side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoanBenchmark {
+    private static final int FIRST_STUDENT = 100000;
+
+    @Param({"100000"})
+    int titles;
+
+    File dir;
+    LoanService loans;
+    String[] books;
+    final AtomicInteger nextStudent = new AtomicInteger(FIRST_STUDENT);
+
+    @State(Scope.Thread)
+    public static class Desk {
+        int studentId;
+        int next;
+
+        @Setup
+        public void setUp(LoanBenchmark library) {
+            studentId = library.nextStudent.getAndIncrement();
+            next = studentId * 31;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("library-bench").toFile();
+        books = Titles.sorted(titles);
+        try (BufferedWriter x = new BufferedWriter(new FileWriter(new File(dir, "x.txt")));
+             BufferedWriter y = new BufferedWriter(new FileWriter(new File(dir, "y.txt")));
+             BufferedWriter z = new BufferedWriter(new FileWriter(new File(dir, "z.txt")))) {
+            for (String b : books) {
+                x.write(b + "\n");
+                y.write("1000\n");
+                z.write("1000\n");
+            }
+        }
+        StudentRegistry students = new StudentRegistry(256);
+        for (int i = 0; i < 256; i++)
+            students.register(new Student("Student " + i, FIRST_STUDENT + i, "B.Tech-CSE"));
+
+        // Measure issue and return themselves, not the periodic snapshot of the whole catalog.
+        System.setProperty("library.snapshot.every", Long.toString(Long.MAX_VALUE));
+        loans = LoanService.open(dir, students, 14L * 24 * 3600 * 1000);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        loans.close();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public LoanService.ReturnResult issueThenReturn(Desk desk) throws IOException {
+        String book = books[(desk.next++ & Integer.MAX_VALUE) % books.length];
+        long now = loans.now();
+        loans.issue(desk.studentId, book, now);
+        return loans.returnBook(desk.studentId, book, now);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public LoanService.ReturnResult issueThenReturn4Desks(Desk desk) throws IOException {
+        return issueThenReturn(desk);
+    }
+}
@@ -0,0 +1,78 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The hash lookups behind every issue and return: finding a book's slot in the
+ * InventoryStore (which replaced the old hashmapping HashMap) and finding a student
+ * in the StudentRegistry. Also times sortedById(), which replaced Selectionsort.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LookupBenchmark {
+    private static final int PROBES = 1 << 16;
+
+    @Param({"1000", "100000", "1000000"})
+    int size;
+
+    InventoryStore inventory;
+    String[] titleProbes;
+    StudentRegistry students;
+    int[] idProbes;
+    int next;
+
+    @Setup
+    public void setUp() {
+        String[] titles = Titles.sorted(size);
+        inventory = new InventoryStore(size);
+        for (String t : titles)
+            inventory.add(t, 3, 3);
+        titleProbes = Titles.sample(titles, PROBES, 11);
+
+        Random random = new Random(13);
+        students = new StudentRegistry(size);
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            // Random IDs, so the registration order is not the ID order.
+            do {
+                ids[i] = random.nextInt(Integer.MAX_VALUE);
+            } while (!students.register(new Student("Student " + i, ids[i], "B.Tech-CSE")));
+        }
+        idProbes = new int[PROBES];
+        for (int i = 0; i < PROBES; i++)
+            idProbes[i] = ids[random.nextInt(size)];
+    }
+
+    @Benchmark
+    public int inventorySlotOf() {
+        return inventory.slotOf(titleProbes[next++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public Student studentGet() {
+        return students.get(idProbes[next++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Student[] studentsSortedById() {
+        return students.sortedById();
+    }
+}
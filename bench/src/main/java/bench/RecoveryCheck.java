@@ -0,0 +1,94 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks crash recovery: a random mix of adds, deletes, issues, returns and reservations
+ * runs against a library that saves a snapshot every 50 log records, then the library is
+ * opened again without being closed (as after a crash, so the newest snapshot plus the log
+ * tail are replayed) and once more after a clean close. Every recovered state must equal
+ * the state before. Long names that need several log records are mixed in.
+ */
+class RecoveryCheck {
+    private static final int STUDENTS = 20;
+    private static final int STEPS = 3000;
+    private static final String LONG_NAME = "A rather long book name that needs several name records éè ";
+
+    static void run() throws IOException {
+        System.setProperty("library.snapshot.every", "50");
+        System.setProperty("library.log.windowMillis", "0");
+        try {
+            for (long seed = 1; seed <= 3; seed++)
+                run(seed);
+        } finally {
+            System.clearProperty("library.snapshot.every");
+            System.clearProperty("library.log.windowMillis");
+        }
+    }
+
+    private static void run(long seed) throws IOException {
+        String[] titles = new String[50];
+        for (int i = 0; i < titles.length; i++)
+            titles[i] = "Base " + i;
+        File dir = Checks.newLibrary(titles, 2);
+        FakeClock clock = new FakeClock(1_000_000_000L);
+        LoanService loans = LoanService.open(dir, Checks.students(STUDENTS, "ICT"), 10_000, clock);
+
+        Random random = new Random(seed);
+        for (int step = 0; step < STEPS; step++) {
+            String title = random.nextBoolean() ? "Base " + random.nextInt(60)
+                    : "New " + (random.nextInt(3) == 0 ? LONG_NAME : "") + random.nextInt(60);
+            int studentId = 1 + random.nextInt(STUDENTS);
+            long now = clock.millis();
+            switch (random.nextInt(10)) {
+                case 0, 1 -> loans.addTitle(title, 1 + random.nextInt(3));
+                case 2 -> loans.deleteTitle(title);
+                case 3, 4, 5 -> loans.issue(studentId, title, now);
+                case 6, 7 -> loans.returnBook(studentId, title, now);
+                case 8 -> loans.reserve(studentId, title, now);
+                default -> loans.cancelReservation(studentId, title, now);
+            }
+            clock.advance(10);
+        }
+        String before = state(loans);
+
+        // The first instance is dropped without close(), like a crash.
+        LoanService replayed = LoanService.open(dir, Checks.students(STUDENTS, "ICT"), 10_000, clock);
+        Checks.check(state(replayed).equals(before), "seed " + seed + ": state after crash replay differs");
+        replayed.close();
+
+        LoanService reopened = LoanService.open(dir, Checks.students(STUDENTS, "ICT"), 10_000, clock);
+        Checks.check(state(reopened).equals(before), "seed " + seed + ": state after a clean restart differs");
+        reopened.close();
+    }
+
+    /**
+     * @return Every book with its counts, and every student's counters, loans and places in queues.
+     */
+    static String state(LoanService loans) {
+        StringBuilder state = new StringBuilder();
+        for (PersistentCatalog.Book book : loans.catalog())
+            state.append(book.title).append(' ').append(book.total).append('/').append(book.available)
+                    .append(" waiting ").append(loans.waitingFor(book.title)).append('\n');
+        for (Student s : loans.students().sortedById()) {
+            state.append(s.id_no).append(": ").append(s.book_no).append(" out, ").append(s.holds).append(" held");
+            List<String> held = new ArrayList<>();
+            for (Loan loan : loans.loansOf(s.id_no))
+                held.add(loan.title + "#" + loan.copy + "@" + loan.dueEpoch);
+            Collections.sort(held);
+            for (PersistentCatalog.Book book : loans.catalog()) {
+                int place = loans.queuePosition(s.id_no, book.title);
+                if (place > 0)
+                    held.add(book.title + " (place " + place + " in the queue)");
+            }
+            state.append(' ').append(held).append('\n');
+        }
+        state.append(loans.inventory().size()).append(" books, ").append(loans.tree().size()).append(" in the tree\n");
+        return state.toString();
+    }
+}
@@ -0,0 +1,173 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks reservations: first a scenario with known answers (queueing, the limit counting
+ * holds, hand-off on return and on new copies, cancelling on delete) that survives a crash
+ * and a restart, then four desks issuing, returning, reserving and cancelling at random.
+ * After the random run, the copies out must equal the loans, no copy may sit on the shelf
+ * while students wait for it, and the state must come back the same after a restart.
+ */
+class ReservationCheck {
+    private static final int LOAN_PERIOD = 5000;
+
+    static void run() throws IOException {
+        System.setProperty("library.log.windowMillis", "0");
+        try {
+            scenario();
+        } finally {
+            System.clearProperty("library.log.windowMillis");
+        }
+        stress();
+    }
+
+    private static void scenario() throws IOException {
+        File dir = Checks.newLibrary(new String[0], 0);
+        List<String> events = new ArrayList<>();
+        LoanService loans = open(dir, 10, events);
+        loans.addTitle("Rare Book", 1);
+        loans.addTitle("Other", 2);
+
+        expect(loans.issue(1, "Rare Book", 0), LoanService.IssueResult.ISSUED);
+        expect(loans.issue(2, "rare book", 0), LoanService.IssueResult.UNAVAILABLE);
+        expect(loans.reserve(2, "Rare Book", 0), LoanService.ReserveResult.RESERVED);
+        expect(loans.reserve(2, "Rare Book", 0), LoanService.ReserveResult.ALREADY_RESERVED);
+        expect(loans.reserve(1, "Rare Book", 0), LoanService.ReserveResult.ALREADY_ISSUED);
+        expect(loans.reserve(3, "RARE BOOK", 0), LoanService.ReserveResult.RESERVED);
+        expect(loans.reserve(4, "Rare Book", 0), LoanService.ReserveResult.RESERVED);
+        expect(loans.reserve(5, "Other", 0), LoanService.ReserveResult.AVAILABLE);
+        expect(loans.issue(3, "Other", 0), LoanService.IssueResult.ISSUED);
+        // Student 3 has one book and one hold, which is the limit of two.
+        expect(loans.issue(3, "Other", 0), LoanService.IssueResult.LIMIT_REACHED);
+        expect(loans.queuePosition(4, "Rare Book"), 3);
+        expect(loans.cancelReservation(3, "Rare Book", 0), true);
+        expect(loans.cancelReservation(3, "Rare Book", 0), false);
+        expect(loans.queuePosition(4, "Rare Book"), 2);
+
+        // The returned copy goes straight to the first student in the queue.
+        expect(loans.returnBook(1, "Rare Book", 0), LoanService.ReturnResult.RETURNED);
+        expect(events, List.of("ready 2 Rare Book"));
+        expect(loans.catalog().get("Rare Book").available, 0);
+        expect(loans.waitingFor("Rare Book"), 1);
+        expect(loans.queuePosition(4, "Rare Book"), 1);
+
+        // A crash (no close), then a clean restart.
+        String before = RecoveryCheck.state(loans);
+        LoanService replayed = open(dir, 10, events);
+        Checks.check(RecoveryCheck.state(replayed).equals(before), "state after crash replay differs");
+        replayed.close();
+        loans = open(dir, 10, events);
+        Checks.check(RecoveryCheck.state(loans).equals(before), "state after restart differs");
+
+        // A new copy is handed out too, and deleting the book cancels the rest of the queue.
+        expect(loans.addCopies("Rare Book", 1, 0), true);
+        expect(events, List.of("ready 2 Rare Book", "ready 4 Rare Book"));
+        expect(loans.reserve(5, "Rare Book", 0), LoanService.ReserveResult.RESERVED);
+        expect(loans.reserve(6, "Rare Book", 0), LoanService.ReserveResult.RESERVED);
+        expect(loans.deleteTitle("Rare Book"), true);
+        expect(events, List.of("ready 2 Rare Book", "ready 4 Rare Book",
+                "cancelled 5 Rare Book", "cancelled 6 Rare Book"));
+        expect(loans.reservationsWaiting(), 0);
+        before = RecoveryCheck.state(loans);
+        loans.close();
+
+        loans = open(dir, 10, events);
+        Checks.check(RecoveryCheck.state(loans).equals(before), "state after delete and restart differs");
+        loans.close();
+    }
+
+    private static void stress() throws IOException {
+        int books = 5;
+        int students = 200;
+        String[] titles = new String[books];
+        for (int i = 0; i < books; i++)
+            titles[i] = "B" + i;
+        File dir = Checks.newLibrary(titles, 2);
+        System.setProperty("library.snapshot.every", "5000");
+        LoanService loans;
+        try {
+            loans = open(dir, students, Collections.synchronizedList(new ArrayList<>()));
+        } finally {
+            System.clearProperty("library.snapshot.every");
+        }
+
+        Thread[] desks = new Thread[4];
+        for (int d = 0; d < desks.length; d++) {
+            Random random = new Random(d);
+            desks[d] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 100_000; i++) {
+                        int studentId = 1 + random.nextInt(students);
+                        String title = "B" + random.nextInt(books);
+                        switch (random.nextInt(4)) {
+                            case 0 -> loans.issue(studentId, title, 0);
+                            case 1 -> loans.returnBook(studentId, title, 0);
+                            case 2 -> loans.reserve(studentId, title, 0);
+                            default -> loans.cancelReservation(studentId, title, 0);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            desks[d].start();
+        }
+        for (Thread desk : desks) {
+            try {
+                desk.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int onLoan = 0;
+        int holds = 0;
+        for (Student s : loans.students().sortedById()) {
+            Checks.check(s.book_no >= 0 && s.holds >= 0 && s.book_no + s.holds <= loans.limitOf(s),
+                    "student " + s.id_no + " has " + s.book_no + " books and " + s.holds + " holds");
+            onLoan += s.book_no;
+            holds += s.holds;
+        }
+        int out = 0;
+        for (PersistentCatalog.Book book : loans.catalog()) {
+            out += book.total - book.available;
+            Checks.check(book.available == 0 || loans.waitingFor(book.title) == 0,
+                    "a copy of " + book.title + " is on the shelf while students wait");
+        }
+        expect(out, onLoan);
+        expect(loans.reservationsWaiting(), holds);
+
+        String before = RecoveryCheck.state(loans);
+        loans.close();
+        LoanService reopened = open(dir, students, new ArrayList<>());
+        Checks.check(RecoveryCheck.state(reopened).equals(before), "state after the random run and a restart differs");
+        reopened.close();
+    }
+
+    private static LoanService open(File dir, int students, List<String> events) throws IOException {
+        LoanService loans = LoanService.open(dir, Checks.students(students, "B.Tech-CSE"), LOAN_PERIOD);
+        loans.addReservationListener(new ReservationListener() {
+            @Override
+            public void bookReady(int studentId, String title, long dueEpoch) {
+                events.add("ready " + studentId + " " + title);
+            }
+
+            @Override
+            public void reservationCancelled(int studentId, String title) {
+                events.add("cancelled " + studentId + " " + title);
+            }
+        });
+        return loans;
+    }
+
+    private static void expect(Object actual, Object expected) {
+        Checks.check(actual.equals(expected), "got " + actual + ", expected " + expected);
+    }
+}
@@ -0,0 +1,101 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the title cache: CLOCK eviction keeps entries that were looked up, removed and
+ * deleted books are never served from it, and on a Zipf(1.1) workload over 20,000 titles
+ * a 512-entry cache in front of the book tree answers at least MIN_HIT_RATIO of lookups.
+ */
+class TitleCacheCheck {
+    private static final int BOOKS = 20_000;
+    private static final int LOOKUPS = 1_000_000;
+    private static final double MIN_HIT_RATIO = 0.6;
+
+    static void run() throws IOException {
+        clock();
+        library();
+    }
+
+    private static void clock() {
+        TitleCache cache = new TitleCache(4);
+        for (int i = 0; i < 4; i++)
+            cache.put(TitleKey.of("T" + i), i);
+        cache.get("T0");
+        cache.get("T1");
+        cache.put(TitleKey.of("T4"), 4);
+        cache.put(TitleKey.of("T5"), 5);
+        Checks.check(cache.get("T0") == 0 && cache.get("t1") == 1, "CLOCK dropped an entry that was looked up");
+        Checks.check(cache.size() == 4, "size " + cache.size());
+
+        cache.remove(TitleKey.of("t0"));
+        Checks.check(cache.get("T0") == TitleCache.MISS && cache.size() == 3, "removed entry still cached");
+        for (int i = 0; i < 100; i++)
+            cache.put(TitleKey.of("U" + i), i);
+        Checks.check(cache.size() == 4, "size " + cache.size() + " after churn");
+    }
+
+    private static void library() throws IOException {
+        String[] titles = new String[BOOKS];
+        for (int i = 0; i < BOOKS; i++)
+            titles[i] = String.format("Book %05d", i);
+        File dir = Checks.newLibrary(titles, 1_000_000);
+        System.setProperty("library.snapshot.every", Long.toString(Long.MAX_VALUE));
+        System.setProperty("library.titleCache.size", "512");
+        LoanService loans;
+        try {
+            loans = LoanService.open(dir, Checks.students(10, "B.Tech-CSE"), 1000);
+        } finally {
+            System.clearProperty("library.snapshot.every");
+            System.clearProperty("library.titleCache.size");
+        }
+        try {
+            // A deleted book must not be found through the cache, and a new book of the same name is found.
+            Checks.check(loans.issue(1, "Book 00001", 0) == LoanService.IssueResult.ISSUED, "issue");
+            loans.returnBook(1, "Book 00001", 0);
+            loans.deleteTitle("book 00001");
+            Checks.check(loans.issue(1, "Book 00001", 0) == LoanService.IssueResult.NOT_IN_LIBRARY, "deleted book issued");
+            loans.addTitle("Book 00001", 3);
+            Checks.check(loans.issue(1, "Book 00001", 0) == LoanService.IssueResult.ISSUED, "re-added book");
+            Checks.check(loans.catalog().get("Book 00001").available == 2, "re-added book's counts");
+            loans.returnBook(1, "Book 00001", 0);
+
+            String[] names = zipf(titles, new Random(21));
+            TitleCache cache = loans.titleCache();
+            long hits = cache.hits();
+            long misses = cache.misses();
+            for (int i = 0; i < names.length; i++) {
+                int studentId = 1 + i % 10;
+                if (loans.issue(studentId, names[i], 0) == LoanService.IssueResult.ISSUED)
+                    loans.returnBook(studentId, names[i], 0);
+            }
+            hits = cache.hits() - hits;
+            misses = cache.misses() - misses;
+            double ratio = hits / (double) (hits + misses);
+            Checks.check(ratio >= MIN_HIT_RATIO, String.format("hit ratio %.3f", ratio));
+        } finally {
+            loans.close();
+        }
+    }
+
+    /**
+     * @return LOOKUPS names drawn from 'titles', the k-th most popular with weight 1 / k^1.1.
+     */
+    private static String[] zipf(String[] titles, Random random) {
+        double[] cumulative = new double[titles.length];
+        double sum = 0;
+        for (int i = 0; i < titles.length; i++) {
+            sum += 1.0 / Math.pow(i + 1, 1.1);
+            cumulative[i] = sum;
+        }
+        String[] names = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            int k = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            names[i] = titles[Math.min(k < 0 ? -k - 1 : k, titles.length - 1)];
+        }
+        return names;
+    }
+}
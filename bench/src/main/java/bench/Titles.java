@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The Titles class makes book names for the benchmarks. Names are distinct
+ * (also ignoring case) and the same for every run, so results can be compared.
+ */
+final class Titles {
+    private Titles() {
+    }
+
+    /**
+     * @return 'count' book names in alphabetical order.
+     */
+    static String[] sorted(int count) {
+        String[] titles = new String[count];
+        for (int i = 0; i < count; i++)
+            titles[i] = String.format("Book %08d", i);
+        return titles;
+    }
+
+    /**
+     * @return A copy of 'titles' in a random (but repeatable) order.
+     */
+    static String[] shuffled(String[] titles, long seed) {
+        String[] copy = Arrays.copyOf(titles, titles.length);
+        Random random = new Random(seed);
+        for (int i = copy.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            String t = copy[i];
+            copy[i] = copy[j];
+            copy[j] = t;
+        }
+        return copy;
+    }
+
+    /**
+     * @return 'count' names picked at random from 'titles', used as lookup keys.
+     */
+    static String[] sample(String[] titles, int count, long seed) {
+        Random random = new Random(seed);
+        String[] sample = new String[count];
+        for (int i = 0; i < count; i++)
+            sample[i] = titles[random.nextInt(titles.length)];
+        return sample;
+    }
+}
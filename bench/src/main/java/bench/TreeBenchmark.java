@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups and deletes on a book tree of a given size: containsNode() for names that are
+ * and are not in the library, and deleteKey() (the book is inserted again straight away,
+ * so the tree keeps its size).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class TreeBenchmark {
+    private static final int PROBES = 1 << 16;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int titles;
+
+    library_management tree;
+    String[] hits;
+    String[] misses;
+    int next;
+
+    @Setup
+    public void setUp() {
+        String[] sorted = Titles.sorted(titles);
+        tree = new library_management();
+        tree.buildFromSorted(sorted, sorted.length);
+        hits = Titles.sample(sorted, PROBES, 7);
+        misses = new String[PROBES];
+        for (int i = 0; i < PROBES; i++)
+            misses[i] = hits[i] + " (2nd edition)";
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return tree.containsNode(hits[next++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return tree.containsNode(misses[next++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public library_management.Node deleteAndReinsert() {
+        String title = hits[next++ & (PROBES - 1)];
+        tree.deleteKey(title);
+        tree.insert(title);
+        return tree.root;
+    }
+}
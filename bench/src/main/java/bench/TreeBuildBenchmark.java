@@ -0,0 +1,64 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to build the whole book tree, one insertRec() per book, from names that arrive in
+ * alphabetical order (the order of x.txt) and in random order, compared with
+ * buildFromSorted(). Every measurement builds a fresh tree, so it is timed once per build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class TreeBuildBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int titles;
+
+    String[] sorted;
+    String[] shuffled;
+
+    @Setup
+    public void setUp() {
+        sorted = Titles.sorted(titles);
+        shuffled = Titles.shuffled(sorted, 42);
+    }
+
+    @Benchmark
+    public library_management insertSorted() {
+        library_management tree = new library_management();
+        for (String t : sorted)
+            tree.insert(t);
+        return tree;
+    }
+
+    @Benchmark
+    public library_management insertRandom() {
+        library_management tree = new library_management();
+        for (String t : shuffled)
+            tree.insert(t);
+        return tree;
+    }
+
+    @Benchmark
+    public library_management buildFromSorted() {
+        library_management tree = new library_management();
+        tree.buildFromSorted(sorted, sorted.length);
+        return tree;
+    }
+}
@@ -1,102 +1,50 @@
-import java.util.Date;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
-import java.util.Set;
-
-/**
- * The Student class is a simple data structure (a blueprint) to hold information
- * about each student. It acts like a container for student details.
- */
-class Student {
-    String name;
-    int id_no;
-    String Stream;
-    String book1, book2; // Stores the names of the books the student has issued.
-    int book_no; // A counter for the number of books currently issued.
-    int issuedbook; // This variable seems declared but not used in the logic.
-
-    /**
-     * Constructor for the Student class.
-     * It's called when a new Student object is created and initializes its properties.
-     * @param name The student's name.
-     * @param id_no The student's unique ID number.
-     * @param Stream The student's academic stream (e.g., "B.Tech-ICT").
-     */
-    Student(String name, int id_no, String Stream) {
-        this.name = name;
-        this.id_no = id_no;
-        this.Stream = Stream;
-    }
-}
+import java.util.function.Predicate;
 
 /**
  * This is the main class for the Library Management System.
- * It contains the core logic for managing books (using a Binary Search Tree),
+ * It contains the core logic for managing books (using a self-balancing Binary Search Tree),
  * handling student data, and processing user interactions.
  */
 public class library_management {
 
     /**
-     * Sorts an array of Student objects based on their ID number in ascending order.
-     * This uses the Selection Sort algorithm.
-     * @param arr The array of Student objects to be sorted.
-     */
-    static void Selectionsort(Student arr[]) {
-        int n = arr.length;
-
-        // Iterate through the array to find the minimum element in the unsorted part.
-        for (int i = 0; i < n - 1; i++) {
-            // Assume the current element is the minimum.
-            int min_idx = i;
-            for (int j = i + 1; j < n; j++)
-                // If we find a student with a smaller ID, update the minimum index.
-                if (arr[j].id_no < arr[min_idx].id_no)
-                    min_idx = j;
-
-            // Swap the found minimum element with the first element of the unsorted part.
-            // We swap the entire Student object to keep all details (name, ID, etc.) consistent.
-            Student temp = arr[min_idx];
-            arr[min_idx] = arr[i];
-            arr[i] = temp;
-        }
-    }
-
-    /**
-     * Displays the details of all students in the provided array.
-     * @param arr The array of Student objects.
-     */
-    static void display(Student arr[]) {
-        for (int i = 0; i < arr.length; i++) {
-            System.out.println("\nName of Student:" + arr[i].name);
-            System.out.println("Id of Student:" + arr[i].id_no);
-            System.out.println("Stream of Student:" + arr[i].Stream);
-        }
-    }
-
-    /**
-     * The Node class represents a single node in the Binary Search Tree.
-     * Each node holds a book's name (the key) and references to its left and right children.
+     * The Node class represents a single node in the book tree.
+     * Each node holds a book's name (the key, see TitleKey), references to its left and right children,
+     * and the height of the subtree rooted at this node. The height is what lets the tree
+     * rebalance itself (AVL rules), so sorted input no longer turns it into a linked list.
+     * The node also counts the books in its subtree, so the tree can find the n-th book
+     * (or the position of a book) in O(log n) instead of walking past all earlier books.
      */
     class Node {
-        String key; // The key is the name of the book.
+        TitleKey key; // The key is the name of the book, with its case already folded for comparing.
         Node left, right;
+        int height; // Height of the subtree rooted here (a leaf has height 1).
+        int size; // Number of books in the subtree rooted here (a leaf has size 1).
 
-        public Node(String item) {
+        public Node(TitleKey item) {
             key = item;
             left = null;
             right = null;
+            height = 1;
+            size = 1;
         }
     }
 
-    // 'root' is the starting point of the Binary Search Tree for books.
+    // How long a book may be kept (5 seconds for demonstration).
+    static final long LOAN_PERIOD_MILLIS = 5000;
+
+    // The librarian's login, for the console menu and the LOGIN server command.
+    static final String LIBRARIAN_ID = "Admin@123";
+    static final String LIBRARIAN_PASSWORD = "abc123";
+
+    // 'root' is the starting point of the (self-balancing) Binary Search Tree for books.
     Node root;
     private static Scanner input;
 
@@ -108,23 +56,115 @@ public class library_management {
         root = null;
     }
 
+    /**
+     * Returns the height of a subtree, treating an empty subtree as height 0.
+     * @param n The root of the subtree.
+     * @return The height of the subtree.
+     */
+    int height(Node n) {
+        return n == null ? 0 : n.height;
+    }
+
+    /**
+     * Returns the number of books in a subtree, treating an empty subtree as size 0.
+     * @param n The root of the subtree.
+     * @return The number of books in the subtree.
+     */
+    int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    /**
+     * Recomputes a node's height and size from its children. Must be called whenever a child changes.
+     * Every insert, delete and rotation already calls it on the way back up, so the sizes
+     * are kept right at no extra cost in time.
+     * @param n The node to fix.
+     */
+    void updateHeight(Node n) {
+        n.height = 1 + Math.max(height(n.left), height(n.right));
+        n.size = 1 + size(n.left) + size(n.right);
+    }
+
+    /**
+     * Rotates a subtree to the right. The left child becomes the new subtree root.
+     * @param y The current subtree root.
+     * @return The new subtree root.
+     */
+    Node rotateRight(Node y) {
+        Node x = y.left;
+        y.left = x.right;
+        x.right = y;
+        updateHeight(y);
+        updateHeight(x);
+        return x;
+    }
+
+    /**
+     * Rotates a subtree to the left. The right child becomes the new subtree root.
+     * @param x The current subtree root.
+     * @return The new subtree root.
+     */
+    Node rotateLeft(Node x) {
+        Node y = x.right;
+        x.right = y.left;
+        y.left = x;
+        updateHeight(x);
+        updateHeight(y);
+        return y;
+    }
+
+    /**
+     * Restores the AVL property at a node after one of its subtrees changed height.
+     * The two sides may differ in height by at most one; otherwise one or two rotations
+     * bring the subtree back into balance.
+     * @param n The node to rebalance.
+     * @return The root of the rebalanced subtree.
+     */
+    Node rebalance(Node n) {
+        updateHeight(n);
+        int balance = height(n.left) - height(n.right);
+
+        if (balance > 1) {
+            // Left side is too tall. A left-right shape needs the child rotated first.
+            if (height(n.left.left) < height(n.left.right))
+                n.left = rotateLeft(n.left);
+            return rotateRight(n);
+        }
+        if (balance < -1) {
+            // Right side is too tall. A right-left shape needs the child rotated first.
+            if (height(n.right.right) < height(n.right.left))
+                n.right = rotateRight(n.right);
+            return rotateLeft(n);
+        }
+        return n;
+    }
+
     /**
      * Public method to insert a new book into the tree.
      * This is the method that's called from outside the class.
      * @param key The name of the book to add.
      */
     void insert(String key) {
+        insert(TitleKey.of(key));
+    }
+
+    /**
+     * Inserts a book whose key was already made (for example by the inventory store),
+     * so the tree shares it instead of making its own.
+     */
+    void insert(TitleKey key) {
         root = insertRec(root, key);
     }
 
     /**
      * A recursive helper method to find the correct position and insert a new node (book).
-     * It ensures the tree remains sorted alphabetically (case-insensitive).
+     * It ensures the tree remains sorted alphabetically (case-insensitive) and balanced,
+     * so the recursion never goes deeper than about 1.44 * log2(n) levels.
      * @param root The current node in the traversal.
      * @param key The name of the book to insert.
      * @return The node after insertion, which helps in linking the tree back together.
      */
-    Node insertRec(Node root, String key) {
+    Node insertRec(Node root, TitleKey key) {
         // If the tree is empty or we've found an empty spot, create a new node here.
         if (root == null) {
             root = new Node(key);
@@ -132,7 +172,7 @@ public class library_management {
         }
 
         // Compare the new book's name with the current node's name (case-insensitive).
-        int cmp = key.compareToIgnoreCase(root.key);
+        int cmp = key.compareTo(root.key);
 
         // If the new book's name comes before the current node's name alphabetically, go left.
         if (cmp < 0)
@@ -140,9 +180,47 @@ public class library_management {
             // If it comes after, go right.
         else if (cmp > 0)
             root.right = insertRec(root.right, key);
+        else
+            // If cmp is 0, the book already exists, so we do nothing.
+            return root;
+
+        return rebalance(root);
+    }
+
+    /**
+     * Replaces the whole tree with a perfectly balanced tree built from sorted keys.
+     * This is used when loading a catalog that is already in alphabetical order:
+     * building the tree directly takes O(n), while n separate inserts take O(n log n).
+     * @param keys Book names in strictly increasing (case-insensitive) order.
+     * @param count How many entries of 'keys' to use.
+     */
+    void buildFromSorted(String[] keys, int count) {
+        TitleKey[] titleKeys = new TitleKey[count];
+        for (int i = 0; i < count; i++)
+            titleKeys[i] = TitleKey.of(keys[i]);
+        buildFromSorted(titleKeys, count);
+    }
+
+    /**
+     * Like buildFromSorted(String[], int), with keys that were already made.
+     */
+    void buildFromSorted(TitleKey[] keys, int count) {
+        root = buildRec(keys, 0, count - 1);
+    }
 
-        // If cmp is 0, the book already exists, so we do nothing.
-        return root;
+    /**
+     * A recursive helper that makes the middle key the subtree root.
+     * The recursion depth is log2(n), since each call halves the range.
+     */
+    Node buildRec(TitleKey[] keys, int lo, int hi) {
+        if (lo > hi)
+            return null;
+        int mid = (lo + hi) >>> 1;
+        Node n = new Node(keys[mid]);
+        n.left = buildRec(keys, lo, mid - 1);
+        n.right = buildRec(keys, mid + 1, hi);
+        updateHeight(n);
+        return n;
     }
 
     /**
@@ -158,34 +236,28 @@ public class library_management {
 
     /**
      * Public method to check if a book exists in the tree.
+     * The search walks down the tree in a loop, so it uses no stack space at all.
      * @param value The name of the book to search for.
      * @return true if the book is found, false otherwise.
      */
     public boolean containsNode(String value) {
-        return containsNodeRecursive(root, value);
+        return containsNode(TitleKey.of(value));
     }
 
     /**
-     * A recursive helper method to search for a book in the tree.
-     * @param current The current node being checked.
-     * @param key The name of the book to find.
-     * @return true if the book is found, false otherwise.
+     * Like containsNode(String), with a key that was already made. The name's case was
+     * folded once when the key was made, so every step is a plain byte comparison.
      */
-    private boolean containsNodeRecursive(Node current, String key) {
-        // If we reach a null node, the book isn't in this branch.
-        if (current == null) {
-            return false;
-        }
-        // If the names match (case-insensitive), we found it!
-        if (key.equalsIgnoreCase(current.key)) {
-            return true;
+    boolean containsNode(TitleKey value) {
+        Node current = root;
+        while (current != null) {
+            // Decide whether to search in the left or right subtree based on alphabetical order.
+            int cmp = value.compareTo(current.key);
+            if (cmp == 0)
+                return true; // The names match (case-insensitive), we found it!
+            current = cmp < 0 ? current.left : current.right;
         }
-
-        // Decide whether to search in the left or right subtree based on alphabetical order.
-        int cmp = key.compareToIgnoreCase(current.key);
-        return cmp < 0
-                ? containsNodeRecursive(current.left, key)
-                : containsNodeRecursive(current.right, key);
+        return false;
     }
 
     /**
@@ -198,6 +270,7 @@ public class library_management {
     /**
      * A recursive helper method to print the tree structure.
      * It performs a reverse in-order traversal to display the tree visually.
+     * The tree is balanced, so the recursion depth is bounded by its (logarithmic) height.
      * @param t The current node to print.
      * @param space The amount of space to print for indentation, creating the tree structure.
      */
@@ -214,7 +287,7 @@ public class library_management {
         System.out.println();
         for (int i = 5; i < space; i++)
             System.out.print(" ");
-        System.out.print("[" + t.key + "]");
+        System.out.print("[" + t.key.title + "]");
 
         // Process the left child.
         printTreeRec(t.left, space);
@@ -225,20 +298,28 @@ public class library_management {
      * @param key The name of the book to delete.
      */
     void deleteKey(String key) {
+        deleteKey(TitleKey.of(key));
+    }
+
+    /**
+     * Like deleteKey(String), with a key that was already made.
+     */
+    void deleteKey(TitleKey key) {
         root = deleteRec(root, key);
     }
 
     /**
      * A recursive helper method to find and delete a book node.
      * It handles three cases: node is a leaf, node has one child, or node has two children.
+     * Every node on the way back up is rebalanced.
      * @param root The current node in the traversal.
      * @param key The name of the book to delete.
      * @return The modified node after deletion.
      */
-    Node deleteRec(Node root, String key) {
+    Node deleteRec(Node root, TitleKey key) {
         if (root == null) return root;
 
-        int cmp = key.compareToIgnoreCase(root.key);
+        int cmp = key.compareTo(root.key);
 
         // Traverse the tree to find the node to delete.
         if (cmp < 0)
@@ -259,7 +340,7 @@ public class library_management {
             root.right = deleteRec(root.right, root.key);
         }
 
-        return root;
+        return rebalance(root);
     }
 
     /**
@@ -268,8 +349,8 @@ public class library_management {
      * @param root The root of the subtree to search.
      * @return The smallest key value.
      */
-    String minValue(Node root) {
-        String minv = root.key;
+    TitleKey minValue(Node root) {
+        TitleKey minv = root.key;
         while (root.left != null) {
             minv = root.left.key;
             root = root.left;
@@ -279,15 +360,24 @@ public class library_management {
 
     /**
      * Prints all the books in alphabetical order (in-order traversal).
-     * @param node The current node.
+     * The traversal uses an explicit stack instead of recursion.
+     * @param node The node whose subtree should be printed.
      */
     void printInorder(Node node) {
-        if (node == null)
-            return;
-
-        printInorder(node.left);
-        System.out.print(node.key + "      ");
-        printInorder(node.right);
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        Node current = node;
+
+        while (current != null || !stack.isEmpty()) {
+            // Go as far left as possible, remembering the path.
+            while (current != null) {
+                stack.push(current);
+                current = current.left;
+            }
+            // Visit the smallest unvisited node, then move into its right subtree.
+            current = stack.pop();
+            System.out.print(current.key.title + "      ");
+            current = current.right;
+        }
     }
 
     // Wrapper for the printInorder method.
@@ -295,75 +385,285 @@ public class library_management {
         printInorder(root);
     }
 
+    /**
+     * Collects the keys of all books in alphabetical order, using the same explicit-stack walk
+     * as printInorder().
+     * @return The keys, in alphabetical order.
+     */
+    List<TitleKey> keysInOrder() {
+        List<TitleKey> keys = new ArrayList<>();
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        Node current = root;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                stack.push(current);
+                current = current.left;
+            }
+            current = stack.pop();
+            keys.add(current.key);
+            current = current.right;
+        }
+        return keys;
+    }
+
+    /**
+     * Finds the books whose name starts with a prefix (ignoring case), in alphabetical order.
+     * Because the tree is sorted, all matches sit next to each other in an in-order walk:
+     * the search goes down to the first name that is not smaller than the prefix and then
+     * walks forward until a name no longer matches, so it costs O(log n + limit).
+     * @param prefix The start of the book name.
+     * @param limit The most names to return.
+     * @return The matching names.
+     */
+    List<String> startingWith(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        TitleKey start = TitleKey.of(prefix);
+        ArrayDeque<Node> stack = seek(start, true);
+        while (!stack.isEmpty() && result.size() < limit) {
+            Node current = next(stack);
+            if (!current.key.startsWith(start))
+                break; // Past the last name with this prefix.
+            result.add(current.key.title);
+        }
+        return result;
+    }
+
+    /**
+     * Walks the books in alphabetical order and collects the first names that pass a test.
+     * It looks at one book per step, so it is quick when most names pass (see TitleIndex).
+     * @param limit The most names to return.
+     * @return The names, in alphabetical order.
+     */
+    List<String> firstMatching(Predicate<String> test, int limit) {
+        List<String> result = new ArrayList<>();
+        ArrayDeque<Node> stack = seekPosition(0);
+        while (!stack.isEmpty() && result.size() < limit) {
+            String title = next(stack).key.title;
+            if (test.test(title))
+                result.add(title);
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of books in the tree.
+     */
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Finds the position a book has (or would have) in alphabetical order.
+     * @param key A book name; it does not need to be in the tree.
+     * @return The number of books whose name comes before it (ignoring case).
+     */
+    int rank(String key) {
+        TitleKey k = TitleKey.of(key);
+        int rank = 0;
+        Node current = root;
+        while (current != null) {
+            if (k.compareTo(current.key) <= 0) {
+                current = current.left;
+            } else {
+                // This node and everything on its left come before the key.
+                rank += size(current.left) + 1;
+                current = current.right;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Finds the book at a position in alphabetical order.
+     * @param index The position, starting at 0.
+     * @return The book name, or null if the index is outside the tree.
+     */
+    String select(int index) {
+        ArrayDeque<Node> stack = seekPosition(index);
+        return stack.isEmpty() ? null : stack.peek().key.title;
+    }
+
+    /**
+     * Finds the books whose name lies between two names (both included, ignoring case).
+     * @param from The first name of the range.
+     * @param to The last name of the range.
+     * @param limit The most names to return.
+     * @return The names, in alphabetical order.
+     */
+    List<String> between(String from, String to, int limit) {
+        List<String> result = new ArrayList<>();
+        TitleKey last = TitleKey.of(to);
+        ArrayDeque<Node> stack = seek(TitleKey.of(from), true);
+        while (!stack.isEmpty() && result.size() < limit) {
+            Node current = next(stack);
+            if (current.key.compareTo(last) > 0)
+                break;
+            result.add(current.key.title);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the books that come right after a name, for paging through the catalog:
+     * pass the last name of one page to get the next page.
+     * @param cursor The name to start after; it does not need to be in the tree.
+     * @param limit The most names to return.
+     * @return The names, in alphabetical order.
+     */
+    List<String> after(String cursor, int limit) {
+        return collect(seek(TitleKey.of(cursor), false), limit);
+    }
+
+    /**
+     * Finds the books from a position in alphabetical order onwards.
+     * @param offset The position of the first book, starting at 0.
+     * @param limit The most names to return.
+     * @return The names, in alphabetical order.
+     */
+    List<String> page(int offset, int limit) {
+        return collect(seekPosition(offset), limit);
+    }
+
+    /**
+     * Walks down to the first book not smaller than a key (or larger than it, when
+     * 'inclusive' is false), remembering only the nodes that are not smaller; these are
+     * exactly the nodes an in-order walk from there still has to visit. Every range
+     * query starts this way, so it costs O(log n) plus one step per name returned.
+     * @return The stack for next(); its top is the first book found.
+     */
+    private ArrayDeque<Node> seek(TitleKey key, boolean inclusive) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        Node current = root;
+        while (current != null) {
+            int cmp = key.compareTo(current.key);
+            if (cmp < 0 || (cmp == 0 && inclusive)) {
+                stack.push(current);
+                current = current.left;
+            } else {
+                current = current.right;
+            }
+        }
+        return stack;
+    }
+
+    /**
+     * Like seek(), but walks down to the book at a position, using the subtree sizes
+     * to choose a side at every node.
+     * @return The stack for next(); its top is the book at 'index' (empty if there is none).
+     */
+    private ArrayDeque<Node> seekPosition(int index) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        if (index < 0 || index >= size())
+            return stack;
+        Node current = root;
+        while (true) {
+            int leftSize = size(current.left);
+            if (index < leftSize) {
+                stack.push(current);
+                current = current.left;
+            } else if (index == leftSize) {
+                stack.push(current);
+                return stack;
+            } else {
+                index -= leftSize + 1;
+                current = current.right;
+            }
+        }
+    }
+
+    /**
+     * Takes the next book of an in-order walk off a stack made by seek() or seekPosition().
+     */
+    private static Node next(ArrayDeque<Node> stack) {
+        Node current = stack.pop();
+        for (Node n = current.right; n != null; n = n.left)
+            stack.push(n);
+        return current;
+    }
+
+    private static List<String> collect(ArrayDeque<Node> stack, int limit) {
+        List<String> result = new ArrayList<>();
+        while (!stack.isEmpty() && result.size() < limit)
+            result.add(next(stack).key.title);
+        return result;
+    }
+
+    /**
+     * Reads a whole line as a book or file name, so names may contain spaces.
+     * Blank input (such as the rest of the line after a menu number) is skipped.
+     */
+    static String readName() {
+        String line = input.nextLine();
+        while (line.trim().isEmpty())
+            line = input.nextLine();
+        return line.trim();
+    }
+
+    /**
+     * Prints a list of loans: the student, the book and its due date.
+     */
+    static void printLoans(List<Loan> list, LoanService loans) {
+        if (list.isEmpty())
+            System.out.println("None.");
+        for (Loan loan : list) {
+            Student s = loans.student(loan.studentId);
+            System.out.println("Student: " + (s != null ? s.name : "unknown") + " (" + loan.studentId + ")"
+                    + "   Book: " + loan.title + "   Due: " + LibraryClock.format(loan.dueEpoch));
+        }
+    }
+
+    /**
+     * Creates the registry of students who may use the library.
+     * Besides the demonstration student, everyone listed in the roster file
+     * (students.txt, one "id,name,stream" per line) is registered if the file exists.
+     * @return The student registry.
+     */
+    static StudentRegistry loadStudents() throws IOException {
+        StudentRegistry students = new StudentRegistry(1024);
+        students.register(new Student("Prabhas", 3373, "B.Tech-CSM"));
+        File roster = new File("students.txt");
+        if (roster.exists())
+            students.loadRoster(roster);
+        return students;
+    }
+
     /**
      * The main method, which is the entry point of the program.
      * It sets up the initial data and handles the main menu logic.
      */
     public static void main(String[] args) throws Exception {
+        // "--batch" runs a file of commands without the menus (see LibraryBatch).
+        if (args.length > 0 && args[0].equals("--batch")) {
+            LibraryBatch.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
 
         // Initialize scanner for user input.
         input = new Scanner(System.in);
-        // Create an instance of our library management system.
-        library_management tree = new library_management();
-        // A HashMap to map a book's name (String) to an index (Integer) in the 'arr' array.
-        // This allows quick lookup of a book's quantity data.
-        HashMap<String, Integer> hashmapping = new HashMap<>();
-        // Formatter for displaying dates and times in a readable format.
-        SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-        Calendar cal = Calendar.getInstance();
-
-        // Create an array to hold 3 Student objects for demonstration.
-        Student[] array = {
-         new Student("Prabhas", 3373, "B.Tech-CSM");
-        }
-
-        // A 2D array to store book quantities.
-        // arr[i][0] = total quantity of book 'i'.
-        // arr[i][1] = available quantity of book 'i'.
-        int[][] arr = new int[100][2];
-
-        // Set up FileWriters and BufferedWriters to save data to files.
-        // Using multiple writers for the same file ('append.txt') isn't standard practice,
-        // but the code is kept as is. It's better to use one writer object.
-        FileWriter fr = new FileWriter("append.txt", true);
-        BufferedWriter br = new BufferedWriter(fr); // For student transaction logs.
-
-        // These writers are for saving book data. It's more efficient to have one writer per file.
-        FileWriter fr1 = new FileWriter("x.txt", true); // For book names.
-        BufferedWriter br1 = new BufferedWriter(fr1);
-        FileWriter fr2 = new FileWriter("y.txt", true); // For total book quantities.
-        BufferedWriter br2 = new BufferedWriter(fr2);
-        FileWriter fr3 = new FileWriter("z.txt", true); // For available book quantities.
-        BufferedWriter br3 = new BufferedWriter(fr3);
-
-        // BufferedReader objects to load existing book data from files at startup.
-        BufferedReader reader = null; // Reads book names from x.txt
-        BufferedReader reader2 = null; // Reads total quantities from y.txt
-        BufferedReader reader3 = null; // Reads available quantities from z.txt
-
-        // Safely open files only if they exist to prevent errors.
-        try {
-            File fx = new File("x.txt");
-            if (fx.exists()) reader = new BufferedReader(new FileReader(fx));
-            File fy = new File("y.txt");
-            if (fy.exists()) reader2 = new BufferedReader(new FileReader(fy));
-            File fz = new File("z.txt");
-            if (fz.exists()) reader3 = new BufferedReader(new FileReader(fz));
-        } catch (Exception e) {
-            System.out.println("Error opening book data files. Starting with an empty library.");
-        }
-
-        // Variables to manage dates for issuing and returning books.
-        Date Rday1 = null, Rday2 = null, Cday = null;
+        // The registered students, found by ID through a hash table.
+        StudentRegistry array = loadStudents();
+
+        // Restore the library (newest snapshot plus the log written after it, or the
+        // catalog files on the first run). All issues, returns and catalog changes go
+        // through the thread-safe loan service, which also writes the transaction log.
+        LoanService loans = LoanService.open(new File("."), array, LOAN_PERIOD_MILLIS);
+        // Writes operation counts and latencies to metrics.prom if metrics are switched on.
+        LibraryMetrics.startDumper(loans, new File("metrics.prom"));
+        // Tell the desk when a returned copy goes straight to a student who reserved it.
+        loans.addReservationListener((studentId, title, dueEpoch) -> System.out.println("\nNotice: '" + title
+                + "' was issued to student " + studentId + ", who reserved it. Due: " + LibraryClock.format(dueEpoch)));
+        library_management tree = loans.tree();
+        InventoryStore inventory = loans.inventory();
+
+        // Times are epoch milliseconds from the loan service's clock. Each loan keeps its
+        // own due date, so returns are checked against the right one.
         boolean e1 = false; // Controls the main application loop.
 
-        int i = 0; // A counter used as an index for new books.
-
         // Display login credentials for the admin/librarian.
         System.out.println("====================================");
         System.out.println(" Admin Login Credentials:");
-        System.out.println(" ID: Admin@123");
-        System.out.println(" Password: abc123");
+        System.out.println(" ID: " + LIBRARIAN_ID);
+        System.out.println(" Password: " + LIBRARIAN_PASSWORD);
         System.out.println("====================================");
 
         // Main application loop.
@@ -379,8 +679,8 @@ public class library_management {
 
             switch (ch1) {
                 case 1: // Librarian Login
-                    String pwd1 = "abc123";
-                    String id1 = "Admin@123";
+                    String pwd1 = LIBRARIAN_PASSWORD;
+                    String id1 = LIBRARIAN_ID;
 
                     System.out.println("\nEnter UserId:");
                     String id2 = input.next();
@@ -402,7 +702,12 @@ public class library_management {
                             System.out.println("4. Print Books Details. ");
                             System.out.println("5. Print Books in-order. ");
                             System.out.println("6. Print tree ");
-                            System.out.println("7. Exit");
+                            System.out.println("7. Print overdue books. ");
+                            System.out.println("8. Print books due soon. ");
+                            System.out.println("9. Import books from file. ");
+                            System.out.println("10. Export books to file. ");
+                            System.out.println("11. Print reports. ");
+                            System.out.println("12. Exit");
                             System.out.println("\n.....................................");
 
                             System.out.println("\nEnter Your choice:");
@@ -410,36 +715,8 @@ public class library_management {
 
                             switch (ch2) {
                                 case 1: // Add a book
-                                    // First, load any existing books from files into memory.
-                                    String line;
-                                    if (reader != null) {
-                                        while ((line = reader.readLine()) != null) {
-                                            tree.insert(line);
-                                            hashmapping.put(line, i);
-                                            i++;
-                                        }
-                                    }
-                                    // Load total quantities.
-                                    if (reader2 != null) {
-                                        String number;
-                                        int o = 0;
-                                        while ((number = reader2.readLine()) != null) {
-                                            arr[o][0] = Integer.parseInt(number.trim());
-                                            o++;
-                                        }
-                                    }
-                                    // Load available quantities.
-                                    if (reader3 != null) {
-                                        String number1;
-                                        int pq = 0;
-                                        while ((number1 = reader3.readLine()) != null) {
-                                            arr[pq][1] = Integer.parseInt(number1.trim());
-                                            pq++;
-                                        }
-                                    }
-
                                     System.out.println("\nEnter name of book:");
-                                    String name = input.next();
+                                    String name = readName();
                                     boolean z1 = tree.containsNode(name);
 
                                     if (z1 == true) {
@@ -448,32 +725,20 @@ public class library_management {
                                         System.out.println("\nEnter quantity of book:");
                                         int quantity = input.nextInt();
 
-                                        // Write new book data to the files for persistence.
-                                        br1.write(name);
-                                        br1.newLine();
-                                        br2.write(String.valueOf(quantity));
-                                        br2.newLine();
-                                        br3.write(String.valueOf(quantity));
-                                        br3.newLine();
-
-                                        // Add book to the in-memory data structures.
-                                        tree.insert(name);
-                                        hashmapping.put(name, i);
-                                        arr[i][0] = quantity; // Total quantity
-                                        arr[i][1] = quantity; // Available quantity
-                                        i++;
+                                        // Add book to the in-memory data structures (total and available quantity).
+                                        // The loan service writes it to the book data files in the background.
+                                        if (quantity < 0)
+                                            System.out.println("Quantity cannot be negative.");
+                                        else
+                                            loans.addTitle(name, quantity);
                                     }
                                     break;
 
                                 case 2: // Delete a book
                                     System.out.println("\nEnter name of book:");
-                                    String b1 = input.next();
+                                    String b1 = readName();
 
-                                    if (tree.containsNode(b1)) {
-                                        tree.deleteKey(b1);
-                                        hashmapping.remove(b1);
-                                        // Note: The quantity data in 'arr' is now orphaned but will be overwritten
-                                        // if a new book is added at this index. A better design would remove it properly.
+                                    if (loans.deleteTitle(b1)) {
                                         System.out.println("Book '" + b1 + "' deleted.");
                                     } else {
                                         System.out.println("Book not found.");
@@ -482,17 +747,21 @@ public class library_management {
 
                                 case 3: // Update book quantity
                                     System.out.println("\nEnter name of book:");
-                                    String b2 = input.next();
+                                    String b2 = readName();
 
                                     if (tree.containsNode(b2)) {
-                                        // Get the index for this book from the HashMap.
-                                        Integer a = hashmapping.get(b2);
-                                        if (a != null) {
+                                        // Get the slot for this book from the inventory store.
+                                        int a = inventory.slotOf(b2);
+                                        if (a != InventoryStore.NOT_FOUND) {
                                             System.out.println("\nEnter quantity of books to add:");
                                             int q = input.nextInt();
-                                            arr[a][0] += q; // Increase total quantity.
-                                            arr[a][1] += q; // Increase available quantity.
-                                            System.out.println("Quantity updated.");
+                                            // Increase total and available quantity.
+                                            if (q <= 0) {
+                                                System.out.println("Quantity to add must be at least 1.");
+                                            } else {
+                                                loans.addCopies(b2, q, loans.now());
+                                                System.out.println("Quantity updated.");
+                                            }
                                         } else {
                                             System.out.println("Book mapping error.");
                                         }
@@ -503,13 +772,12 @@ public class library_management {
 
                                 case 4: // Print Books Details
                                     System.out.println("\n--- Book Inventory ---");
-                                    Set<Entry<String, Integer>> setOfEntries = hashmapping.entrySet();
-
-                                    for (Entry<String, Integer> entry : setOfEntries) {
-                                        int r = entry.getValue(); // Get the index from HashMap.
-                                        System.out.println("Name: " + entry.getKey());
-                                        System.out.println("Total Quantity: " + arr[r][0]);
-                                        System.out.println("Available Quantity: " + arr[r][1]);
+                                    // A snapshot never changes, so the counts cannot tear
+                                    // even if books are issued while the list is printed.
+                                    for (PersistentCatalog.Book book : loans.catalog()) {
+                                        System.out.println("Name: " + book.title);
+                                        System.out.println("Total Quantity: " + book.total);
+                                        System.out.println("Available Quantity: " + book.available);
                                         System.out.println();
                                     }
                                     break;
@@ -525,7 +793,51 @@ public class library_management {
                                     tree.printTree();
                                     break;
 
-                                case 7: // Exit librarian menu
+                                case 7: // Books that should have been returned already
+                                    System.out.println("\n--- Overdue Books ---");
+                                    printLoans(loans.loansDueBefore(loans.now(), 100), loans);
+                                    break;
+
+                                case 8: // Books that have to come back within some hours
+                                    System.out.println("\nDue within how many hours:");
+                                    int hours = input.nextInt();
+                                    long from = loans.now();
+                                    // Only the loans still on time are shown; overdue ones are in option 7.
+                                    List<Loan> dueSoon = loans.loansDueBetween(from, from + hours * 3600000L, 100);
+                                    System.out.println("\n--- Books Due In The Next " + hours + " Hours ---");
+                                    printLoans(dueSoon, loans);
+                                    break;
+
+                                case 9: // Add many books at once from a CSV/TSV file
+                                    System.out.println("\nEnter file to import (title, total, available per line):");
+                                    File importFile = new File(readName());
+                                    if (!importFile.exists()) {
+                                        System.out.println("File not found.");
+                                        break;
+                                    }
+                                    long importStart = System.nanoTime();
+                                    BulkCatalog.Rows rows = BulkCatalog.read(importFile);
+                                    int added = loans.importCatalog(rows);
+                                    System.out.println(added + " books added, " + (rows.count - added)
+                                            + " already in the library or repeated, " + rows.skipped + " lines skipped, in "
+                                            + (System.nanoTime() - importStart) / 1000000 + " ms.");
+                                    break;
+
+                                case 10: // Write all books to a CSV/TSV file
+                                    System.out.println("\nEnter file to export to (.csv or .tsv):");
+                                    File exportFile = new File(readName());
+                                    System.out.println(loans.exportCatalog(exportFile) + " books written to "
+                                            + exportFile + ".");
+                                    break;
+
+                                case 11: // Utilization, most borrowed books, loans per stream and late fees
+                                    System.out.println("\nHow many books to list per ranking (0 for all):");
+                                    int top = input.nextInt();
+                                    System.out.println();
+                                    loans.report(top).write(System.out);
+                                    break;
+
+                                case 12: // Exit librarian menu
                                     e2 = true;
                                     break;
                             }
@@ -539,7 +851,8 @@ public class library_management {
                         System.out.println("\n.....................................");
                         System.out.println("1. Issue book. ");
                         System.out.println("2. Return book. ");
-                        System.out.println("3. Exit");
+                        System.out.println("3. Search books. ");
+                        System.out.println("4. Exit");
                         System.out.println("\n.....................................");
 
                         System.out.println("\nEnter Your choice:");
@@ -547,62 +860,45 @@ public class library_management {
 
                         switch (ch3) {
                             case 1: // Issue a book
-                                int index = -1;
                                 System.out.println("\nEnter your student id:");
                                 int id = input.nextInt();
 
                                 // Find the student with the matching ID.
-                                for (int k = 0; k < 3; k++) {
-                                    if (array[k].id_no == id)
-                                        index = k;
-                                }
+                                Student student = loans.student(id);
 
-                                if (index != -1) { // If student found.
-                                    // Check if the student has already issued the maximum number of books (2).
-                                    if (array[index].book_no == 2) {
-                                        System.out.println("\nYou can't issue more than two books.");
+                                if (student != null) { // If student found.
+                                    // Check if the student has already issued (or reserved) as many books
+                                    // as their stream allows (see BorrowingLimits).
+                                    if (student.book_no + student.holds >= loans.limitOf(student)) {
+                                        System.out.println("\n" + LoanService.IssueResult.LIMIT_REACHED.message);
                                     } else {
                                         System.out.println("\nEnter name of book to issue:");
-                                        String book = input.next();
-
-                                        if (tree.containsNode(book)) {
-                                            Integer a = hashmapping.get(book); // Get book index.
-                                            if (a == null) {
-                                                System.out.println("Book mapping error.");
-                                            } else {
-                                                // Check if the book is available.
-                                                if (arr[a][1] > 0) {
-                                                    // Assign the book to the student's first or second book slot.
-                                                    if (array[index].book1 == null)
-                                                        array[index].book1 = book;
-                                                    else
-                                                        array[index].book2 = book;
-
-                                                    System.out.println("Book issued successfully.");
-                                                    arr[a][1]--; // Decrement available quantity.
-                                                    array[index].book_no++; // Increment student's issued book count.
-
-                                                    // Record the transaction details.
-                                                    Cday = cal.getTime();
-                                                    System.out.println("Current Date Time : " + formatter.format(Cday));
-                                                    // Set a due date (5 seconds from now for demonstration).
-                                                    cal.add(Calendar.SECOND, 5);
-                                                    Rday1 = cal.getTime();
-                                                    System.out.println("Due Date Time: " + formatter.format(Rday1));
-
-                                                    // Write the log to the transaction file.
-                                                    br.write("\nStudent name:   " + array[index].name);
-                                                    br.write("\nStudent ID  :   " + array[index].id_no);
-                                                    br.write("\nIssued Book :   " + book);
-                                                    br.write("\nIssued date :   " + formatter.format(Cday));
-                                                    br.write("\nReturn date :   " + formatter.format(Rday1));
-                                                    br.newLine();
-                                                } else {
-                                                    System.out.println("Book is currently unavailable. Try again later.");
-                                                }
-                                            }
-                                        } else {
-                                            System.out.println("This book is not in our library.");
+                                        String book = readName();
+
+                                        // The loan service re-checks everything under its locks and
+                                        // records the issue in the transaction log.
+                                        long now = loans.now();
+                                        LoanService.IssueResult result = loans.issue(id, book, now);
+                                        switch (result) {
+                                            case ISSUED:
+                                                System.out.println(result.message);
+
+                                                // Show the transaction details.
+                                                System.out.println("Current Date Time : " + LibraryClock.format(now));
+                                                // The due date is 5 seconds from now for demonstration.
+                                                System.out.println("Due Date Time: "
+                                                        + LibraryClock.format(now + LOAN_PERIOD_MILLIS));
+                                                break;
+                                            case UNAVAILABLE:
+                                                // Instead of trying again later, the student can join the queue.
+                                                System.out.println(result.message);
+                                                System.out.println("Reserve it and get the next copy returned? (y/n)");
+                                                if (readName().equalsIgnoreCase("y"))
+                                                    System.out.println(loans.reserve(id, book, loans.now()).message);
+                                                break;
+                                            default:
+                                                System.out.println(result.message);
+                                                break;
                                         }
                                     }
                                 } else {
@@ -611,58 +907,45 @@ public class library_management {
                                 break;
 
                             case 2: // Return a book
-                                int ind = -1;
                                 System.out.println("\nEnter your student id:");
                                 int s_id = input.nextInt();
                                 System.out.println("\nEnter name of book to return:");
-                                String Rbook = input.next();
-
-                                // Find the student and verify they have the book.
-                                for (int k = 0; k < 3; k++) {
-                                    if (array[k].id_no == s_id) {
-                                        boolean hasBook1 = array[k].book1 != null && array[k].book1.equalsIgnoreCase(Rbook);
-                                        boolean hasBook2 = array[k].book2 != null && array[k].book2.equalsIgnoreCase(Rbook);
-                                        if (hasBook1 || hasBook2) {
-                                            ind = k;
-                                        }
-                                    }
-                                }
-
-                                if (ind != -1) { // If student found and has the book.
-                                    // Remove the book from the student's record.
-                                    if (array[ind].book1 != null && array[ind].book1.equalsIgnoreCase(Rbook))
-                                        array[ind].book1 = null;
-                                    else if (array[ind].book2 != null && array[ind].book2.equalsIgnoreCase(Rbook))
-                                        array[ind].book2 = null;
-
-                                    // Check for late fees.
-                                    cal = Calendar.getInstance();
-                                    Rday2 = cal.getTime(); // Current time of return.
-
-                                    if (Rday1 != null && Rday2.after(Rday1)) {
+                                String Rbook = readName();
+
+                                // The loan service verifies the student has the book, removes it from
+                                // their record, puts the copy back on the shelf and logs the return.
+                                long now = loans.now();
+                                long due = loans.returnBookDue(s_id, Rbook, now);
+                                if (due != LoanService.NOT_ISSUED) {
+                                    // Check for late fees against this loan's own due date.
+                                    if (now > due) {
                                         System.out.println("Book is overdue.");
-                                        long diff = Rday2.getTime() - Rday1.getTime(); // Difference in milliseconds.
+                                        long diff = now - due; // Difference in milliseconds.
                                         int noofseconds = (int) (diff / 1000); // Convert to seconds for demo.
-                                        double charge = noofseconds * 5; // Calculate fine (5 Rs per second).
+                                        double charge = ReportEngine.lateFee(due, now); // Calculate fine (5 Rs per second).
                                         System.out.println("Book is delayed by " + noofseconds + " seconds.");
                                         System.out.println("Your late fee is: " + charge + " Rs.");
                                     } else {
                                         System.out.println("Book returned successfully on time.");
                                     }
-
-                                    // Update the library's inventory.
-                                    Integer a = hashmapping.get(Rbook);
-                                    if (a != null) {
-                                        arr[a][1]++; // Increment available quantity.
-                                    }
-                                    array[ind].book_no--; // Decrement student's issued book count.
-
                                 } else {
                                     System.out.println("Invalid ID or you have not issued this book.");
                                 }
                                 break;
 
-                            case 3: // Exit user menu
+                            case 3: // Search for books by part of their name
+                                System.out.println("\nEnter part of the book name:");
+                                String text = readName();
+
+                                System.out.println("\nBooks starting with '" + text + "':");
+                                for (String name : loans.searchPrefix(text, 10))
+                                    System.out.println("  " + name);
+                                System.out.println("Books containing '" + text + "':");
+                                for (String name : loans.searchText(text, 10))
+                                    System.out.println("  " + name);
+                                break;
+
+                            case 4: // Exit user menu
                                 e3 = true;
                                 break;
                         }
@@ -674,19 +957,11 @@ public class library_management {
                     break;
             }
         }
-        // Safely close all file writers and readers to ensure data is saved
+        // Save a snapshot and the last book changes to ensure data is saved
         // and resources are released.
-        try { if (br != null) br.close(); } catch (Exception ex) {}
-        try { if (fr != null) fr.close(); } catch (Exception ex) {}
-        try { if (br1 != null) br1.close(); } catch (Exception ex) {}
-        try { if (fr1 != null) fr1.close(); } catch (Exception ex) {}
-        try { if (br2 != null) br2.close(); } catch (Exception ex) {}
-        try { if (fr2 != null) fr2.close(); } catch (Exception ex) {}
-        try { if (br3 != null) br3.close(); } catch (Exception ex) {}
-        try { if (fr3 != null) fr3.close(); } catch (Exception ex) {}
-        try { if (reader != null) reader.close(); } catch (Exception ex) {}
-        try { if (reader2 != null) reader2.close(); } catch (Exception ex) {}
-        try { if (reader3 != null) reader3.close(); } catch (Exception ex) {}
+        try { loans.close(); } catch (Exception ex) {
+            System.out.println("Could not save a snapshot: " + ex.getMessage());
+        }
         System.out.println("Library system shut down. Goodbye!");
     }
 }